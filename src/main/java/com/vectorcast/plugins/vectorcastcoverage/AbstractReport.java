@@ -4,6 +4,7 @@ import hudson.model.Run;
 import hudson.model.ModelObject;
 
 import java.io.IOException;
+import java.util.List;
 
 /**
  * Base class of the coverage report tree,
@@ -73,4 +74,9 @@ public abstract class AbstractReport<
     public Run<?,?> getBuild() {
         return parent.getBuild();
     }
+
+    @Override
+    List<CoverageHistoryIndex.Entry> getIndexedTrend(int maxHistory) {
+        return CoverageSeriesStore.getTrend(this, maxHistory);
+    }
 }
@@ -18,14 +18,63 @@ public abstract class AggregatedReport<PARENT extends AggregatedReport<?,PARENT,
 
     private final Map<String, CHILD> children = new TreeMap<String, CHILD>();
 
+    /**
+     * Children not yet read from the {@link CoverageReportSnapshot} or the
+     * {@link CoverageColumns} this node was restored from, or null.
+     */
+    private transient volatile PendingChildren pendingChildren;
+
+    /**
+     * Children of a node that are only created the first time they are
+     * asked for.
+     */
+    interface PendingChildren {
+        /**
+         * Adds the children to the node and sets their back pointers.
+         */
+        void readInto(AggregatedReport<?,?,?> parent);
+    }
+
     public void add(CHILD child) {
         children.put(child.getName(),child);
     }
 
     public Map<String,CHILD> getChildren() {
+        if (pendingChildren != null) {
+            synchronized (children) {
+                PendingChildren p = pendingChildren;
+                if (p != null) {
+                    p.readInto(this);
+                    pendingChildren = null;
+                }
+            }
+        }
         return children;
     }
 
+    /**
+     * Folds another report of the same node into this one. Ratios are
+     * summed, children with the same name are merged, and the others are
+     * taken over. Back pointers are left for {@link #setParent} to fix.
+     * @param other report to fold in, which must not be used afterwards
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    void merge(AggregatedReport<?,?,?> other) {
+        mergeRatios(other);
+        for (AbstractReport child : other.getChildren().values()) {
+            AbstractReport mine = getChildren().get(child.getName());
+            if (mine != null && mine.getClass() == child.getClass()) {
+                ((AggregatedReport) mine).merge((AggregatedReport) child);
+            } else {
+                add((CHILD) child);
+            }
+        }
+    }
+
+    void setPendingChildren(PendingChildren p) {
+        this.pendingChildren = p;
+    }
+
     protected void setParent(PARENT p) {
         super.setParent(p);
         for (CHILD c : children.values())
@@ -0,0 +1,497 @@
+package com.vectorcast.plugins.vectorcastcoverage;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * A {@link CoverageReport} tree held in immutable nodes and primitive
+ * arrays, instead of one object per node with seven {@link Ratio}s and a
+ * map of children.
+ *
+ * <p>
+ * The root, the environments and the units are {@link Node}s. The
+ * subprograms of a unit are held in columns of its node: the ids of their
+ * names, a column of numerators and one of denominators per metric, and
+ * flags for the metrics present and the failed flag. Names are ids in a
+ * {@link NameDictionary}, usually the one of the job.
+ *
+ * <p>
+ * Nodes are hash-consed: a unit or an environment equal to one of the
+ * previous tree built with the same dictionary is that node, so the trees
+ * of consecutive builds of a job share everything that did not change. Two
+ * nodes are equal if their values are and their children are the same
+ * nodes, which is cheap to check bottom-up. A shared node is charged to
+ * one tree, the first that held it; when that tree leaves the
+ * {@link CoverageReportCache}, {@link #release()} charges its nodes to the
+ * other cached trees that hold them.
+ *
+ * <p>
+ * {@link #view(VectorCASTBuildAction)} exposes the tree as the usual
+ * report objects, for Jelly views and Stapler URLs. Only the root is
+ * created up front; the children of a node are created the first time they
+ * are asked for, so a page only creates the nodes on its path and their
+ * siblings, and they are garbage once the page is rendered. An instance is
+ * immutable.
+ *
+ * @see CoverageReportCache
+ */
+final class CoverageColumns {
+
+    private static final int METRICS = 7;
+
+    private static final byte KIND_ROOT = 0;
+    private static final byte KIND_ENVIRONMENT = 1;
+    private static final byte KIND_UNIT = 2;
+
+    /**
+     * Flag of a failed subprogram, next to the bits of its metrics.
+     */
+    private static final int LEAF_FAILED = 1 << METRICS;
+
+    private static final Node[] NO_NODES = new Node[0];
+    private static final int[] NO_INTS = new int[0];
+    private static final long[] NO_LONGS = new long[0];
+    private static final byte[] NO_BYTES = new byte[0];
+
+    /**
+     * The trees built with each dictionary. They go away with the
+     * dictionary, that is when no tree of the job is cached any more.
+     */
+    private static final Cache<NameDictionary, Pool> POOLS = Caffeine.newBuilder().weakKeys().build();
+
+    private final NameDictionary names;
+
+    private final Node root;
+
+    private final Charge charge = new Charge();
+
+    /**
+     * Size of the names, if the dictionary is this tree's own.
+     */
+    private final long nameBytes;
+
+    /**
+     * Copies a fully built tree, with names of its own.
+     * Children a snapshot has not decoded yet are decoded.
+     * @param report the tree
+     */
+    CoverageColumns(CoverageReport report) {
+        this(report, new NameDictionary());
+    }
+
+    /**
+     * Copies a fully built tree, sharing the nodes that are equal to those
+     * of the last tree built with the same dictionary. Children a snapshot
+     * has not decoded yet are decoded.
+     * @param report the tree
+     * @param names the dictionary to add the names to, saved afterwards
+     */
+    CoverageColumns(CoverageReport report, NameDictionary names) {
+        this.names = names;
+        synchronized (names) {
+            Pool pool = POOLS.getIfPresent(names);
+            if (pool == null) {
+                pool = new Pool();
+                POOLS.put(names, pool);
+            }
+            Interning in = new Interning(pool.last);
+            root = in.intern(report);
+            pool.last = in.next;
+            pool.live.add(this);
+        }
+        if (root.count != report.getNodeCount()) {
+            throw new IllegalStateException("Node count " + report.getNodeCount() + " does not match the tree: " + root.count);
+        }
+        names.trySave();
+
+        long b = 0;
+        if (!names.isStored()) {
+            // the names are only charged to the columns that own them
+            for (int id = 0; id < names.size(); id++) {
+                // object header, array and characters
+                b += 48 + 2 * names.nameOf(id).length();
+            }
+        }
+        nameBytes = b;
+    }
+
+    /**
+     * Creates the root of a report tree backed by these columns.
+     * @param action owner of the tree
+     * @return the root, whose children are created when first asked for
+     */
+    CoverageReport view(VectorCASTBuildAction action) {
+        CoverageReport report = new CoverageReport(action);
+        read(root, report);
+        report.setParent(null);
+        report.setNodeCount(root.count);
+        return report;
+    }
+
+    /**
+     * @return estimated heap size in bytes of the nodes this tree is
+     *      charged for: those no other tree that is still held had before
+     */
+    long getBytes() {
+        return charge.bytes + nameBytes;
+    }
+
+    /**
+     * Gives up the nodes this tree is charged for, once it is no longer
+     * held. Each is charged to another tree of the same dictionary that
+     * holds it, if there is one.
+     * @return the trees that are charged for more than before, to be
+     *      weighed again
+     */
+    List<CoverageColumns> release() {
+        synchronized (names) {
+            Pool pool = POOLS.getIfPresent(names);
+            if (pool == null || !pool.live.remove(this)) {
+                return Collections.emptyList();
+            }
+            int freed = free(root);
+            charge.bytes = 0;
+            List<CoverageColumns> grown = new ArrayList<CoverageColumns>();
+            for (CoverageColumns c : new ArrayList<CoverageColumns>(pool.live)) {
+                if (freed == 0) {
+                    break;
+                }
+                int claimed = c.claim(c.root);
+                if (claimed > 0) {
+                    freed -= claimed;
+                    grown.add(c);
+                }
+            }
+            return grown;
+        }
+    }
+
+    /**
+     * @return the number of nodes of the subtree that were charged to
+     *      this tree and are not any more
+     */
+    private int free(Node n) {
+        int freed = 0;
+        if (n.owner == charge) {
+            n.owner = null;
+            freed++;
+        }
+        for (Node c : n.children) {
+            freed += free(c);
+        }
+        return freed;
+    }
+
+    /**
+     * Charges this tree for the nodes of a subtree that are not charged.
+     * @return the number of nodes
+     */
+    private int claim(Node n) {
+        int claimed = 0;
+        if (n.owner == null) {
+            n.owner = charge;
+            charge.bytes += n.getBytes();
+            claimed++;
+        }
+        for (Node c : n.children) {
+            claimed += claim(c);
+        }
+        return claimed;
+    }
+
+    int size() {
+        return root.count;
+    }
+
+    private void read(Node n, AggregatedReport<?,?,?> node) {
+        if (n.nameId >= 0) {
+            node.setName(names.nameOf(n.nameId));
+        }
+        if (n.failed) {
+            node.setFailed();
+        }
+        for (int m = 0; m < METRICS; m++) {
+            if ((n.present & (1 << m)) != 0) {
+                node.getRatio(m).setValue(n.ratios[2 * m], n.ratios[2 * m + 1]);
+            }
+        }
+        if (n.children.length > 0 || n.leafNames.length > 0) {
+            node.setPendingChildren(new Children(n));
+        }
+    }
+
+    private static byte kindOf(AbstractReport<?,?> node) {
+        if (node instanceof EnvironmentReport)
+            return KIND_ENVIRONMENT;
+        if (node instanceof UnitReport)
+            return KIND_UNIT;
+        return KIND_ROOT;
+    }
+
+    /**
+     * What a tree is charged for. Nodes refer to it rather than to the
+     * tree, which would keep the dictionary, the key of its pool, alive.
+     */
+    private static final class Charge {
+        volatile long bytes;
+    }
+
+    /**
+     * The trees built with one dictionary: the nodes of the last one, to be
+     * shared by the next, and those that are still held.
+     */
+    private static final class Pool {
+        Map<Node, Node> last = new HashMap<Node, Node>();
+        final Set<CoverageColumns> live = Collections.newSetFromMap(new WeakHashMap<CoverageColumns, Boolean>());
+    }
+
+    /**
+     * Builds the nodes of a tree bottom-up, taking the equal nodes of the
+     * previous tree instead of new ones.
+     */
+    private final class Interning {
+        private final Map<Node, Node> last;
+        private final Map<Node, Node> next = new HashMap<Node, Node>();
+
+        Interning(Map<Node, Node> last) {
+            this.last = last;
+        }
+
+        Node intern(AggregatedReport<?,?,?> report) {
+            Node n = report instanceof UnitReport ? unit((UnitReport) report) : inner(report);
+            Node shared = last.get(n);
+            if (shared == null) {
+                shared = next.get(n);
+            }
+            if (shared == null) {
+                shared = n;
+            }
+            if (shared.owner == null) {
+                shared.owner = charge;
+                charge.bytes += shared.getBytes();
+            }
+            next.put(shared, shared);
+            return shared;
+        }
+
+        private Node inner(AggregatedReport<?,?,?> report) {
+            Map<String, ? extends AbstractReport<?,?>> children = report.getChildren();
+            Node[] nodes = new Node[children.size()];
+            int count = 1;
+            int i = 0;
+            for (AbstractReport<?,?> child : children.values()) {
+                nodes[i] = intern((AggregatedReport<?,?,?>) child);
+                count += nodes[i++].count;
+            }
+            return new Node(report, idOf(report), nodes, NO_INTS, NO_LONGS, NO_LONGS, NO_BYTES, count);
+        }
+
+        private Node unit(UnitReport report) {
+            Map<String, SubprogramReport> children = report.getChildren();
+            int leaves = children.size();
+            if (leaves == 0) {
+                return new Node(report, idOf(report), NO_NODES, NO_INTS, NO_LONGS, NO_LONGS, NO_BYTES, 1);
+            }
+            int[] leafNames = new int[leaves];
+            long[] numerators = new long[METRICS * leaves];
+            long[] denominators = new long[METRICS * leaves];
+            byte[] flags = new byte[leaves];
+            int j = 0;
+            for (SubprogramReport sub : children.values()) {
+                leafNames[j] = idOf(sub);
+                int f = sub.isFailed() ? LEAF_FAILED : 0;
+                for (int m = 0; m < METRICS; m++) {
+                    Ratio r = sub.getRatio(m);
+                    if (r.isInitialized()) {
+                        numerators[m * leaves + j] = r.getNumeratorCount();
+                        denominators[m * leaves + j] = r.getDenominatorCount();
+                        f |= 1 << m;
+                    }
+                }
+                flags[j++] = (byte) f;
+            }
+            return new Node(report, idOf(report), NO_NODES, leafNames, numerators, denominators, flags, 1 + leaves);
+        }
+
+        private int idOf(AbstractReport<?,?> report) {
+            return report.getName() == null ? -1 : names.idOf(report.getName());
+        }
+    }
+
+    /**
+     * The root, an environment or a unit. Equality is by value, with the
+     * children compared by identity since they are shared already.
+     */
+    private static final class Node {
+        final byte kind;
+        final int nameId;
+        final boolean failed;
+
+        /**
+         * Bit m is set if metric m is present.
+         */
+        final int present;
+
+        /**
+         * Numerator of metric m at 2 * m, its denominator at 2 * m + 1.
+         */
+        final long[] ratios = new long[2 * METRICS];
+
+        /**
+         * Environments of the root or units of an environment, in name
+         * order.
+         */
+        final Node[] children;
+
+        /**
+         * Subprograms of a unit in name order: name ids, numerators and
+         * denominators with the column of metric m starting at
+         * m * leafNames.length, and the bits of the metrics present plus
+         * {@link #LEAF_FAILED}.
+         */
+        final int[] leafNames;
+        final long[] leafNumerators;
+        final long[] leafDenominators;
+        final byte[] leafFlags;
+
+        /**
+         * Number of nodes of the subtree.
+         */
+        final int count;
+
+        private final int hash;
+
+        /**
+         * The tree charged for this node, null if none of the trees
+         * holding it is. Guarded by the lock of the dictionary.
+         */
+        Charge owner;
+
+        Node(AggregatedReport<?,?,?> report, int nameId, Node[] children, int[] leafNames,
+             long[] leafNumerators, long[] leafDenominators, byte[] leafFlags, int count) {
+            this.kind = kindOf(report);
+            this.nameId = nameId;
+            this.failed = report.isFailed();
+            int p = 0;
+            for (int m = 0; m < METRICS; m++) {
+                Ratio r = report.getRatio(m);
+                if (r.isInitialized()) {
+                    ratios[2 * m] = r.getNumeratorCount();
+                    ratios[2 * m + 1] = r.getDenominatorCount();
+                    p |= 1 << m;
+                }
+            }
+            this.present = p;
+            this.children = children;
+            this.leafNames = leafNames;
+            this.leafNumerators = leafNumerators;
+            this.leafDenominators = leafDenominators;
+            this.leafFlags = leafFlags;
+            this.count = count;
+
+            int h = kind;
+            h = 31 * h + nameId;
+            h = 31 * h + (failed ? 1 : 0);
+            h = 31 * h + present;
+            h = 31 * h + Arrays.hashCode(ratios);
+            for (Node c : children) {
+                h = 31 * h + System.identityHashCode(c);
+            }
+            h = 31 * h + Arrays.hashCode(leafNames);
+            h = 31 * h + Arrays.hashCode(leafNumerators);
+            h = 31 * h + Arrays.hashCode(leafDenominators);
+            h = 31 * h + Arrays.hashCode(leafFlags);
+            this.hash = h;
+        }
+
+        long getBytes() {
+            // the node, its arrays and its entries in the pools
+            return 160 + 8L * ratios.length + 4L * children.length
+                    + 4L * leafNames.length + 16L * leafNumerators.length + leafFlags.length;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Node)) {
+                return false;
+            }
+            Node that = (Node) o;
+            if (hash != that.hash || kind != that.kind || nameId != that.nameId || failed != that.failed
+                    || present != that.present || children.length != that.children.length) {
+                return false;
+            }
+            for (int i = 0; i < children.length; i++) {
+                if (children[i] != that.children[i]) {
+                    return false;
+                }
+            }
+            return Arrays.equals(ratios, that.ratios)
+                    && Arrays.equals(leafNames, that.leafNames)
+                    && Arrays.equals(leafNumerators, that.leafNumerators)
+                    && Arrays.equals(leafDenominators, that.leafDenominators)
+                    && Arrays.equals(leafFlags, that.leafFlags);
+        }
+    }
+
+    /**
+     * The children of a node of a view, not created yet.
+     */
+    private final class Children implements AggregatedReport.PendingChildren {
+        private final Node node;
+
+        Children(Node node) {
+            this.node = node;
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        public void readInto(AggregatedReport<?,?,?> p) {
+            AggregatedReport parent = p;
+            for (Node c : node.children) {
+                AggregatedReport child;
+                switch (c.kind) {
+                    case KIND_ENVIRONMENT:  child = new EnvironmentReport(); break;
+                    case KIND_UNIT:         child = new UnitReport(); break;
+                    default: throw new IllegalStateException("Root below another node");
+                }
+                read(c, child);
+                parent.add(child);
+                child.setParent(parent);
+            }
+            int leaves = node.leafNames.length;
+            for (int j = 0; j < leaves; j++) {
+                AggregatedReport child = new SubprogramReport();
+                if (node.leafNames[j] >= 0) {
+                    child.setName(names.nameOf(node.leafNames[j]));
+                }
+                int f = node.leafFlags[j];
+                if ((f & LEAF_FAILED) != 0) {
+                    child.setFailed();
+                }
+                for (int m = 0; m < METRICS; m++) {
+                    if ((f & (1 << m)) != 0) {
+                        child.getRatio(m).setValue(node.leafNumerators[m * leaves + j], node.leafDenominators[m * leaves + j]);
+                    }
+                }
+                parent.add(child);
+                child.setParent(parent);
+            }
+        }
+    }
+}
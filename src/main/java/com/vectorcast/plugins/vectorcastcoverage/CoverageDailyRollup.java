@@ -0,0 +1,158 @@
+package com.vectorcast.plugins.vectorcastcoverage;
+
+import hudson.model.Job;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Per-job file with the coverage of the last build of each calendar day,
+ * so that the dashboard trend portlet reads one record per job and day
+ * instead of every build in its range.
+ *
+ * <p>
+ * The records have the format of the {@link CoverageHistoryIndex}, one per
+ * day on which a build published coverage, oldest first, and a rollup of
+ * float records is converted to 64-bit counts like the index. Days are taken in
+ * the time zone of the server, like the portlet does. The file is derived
+ * from the history index: a new build replaces or follows the record of its
+ * day, and a deleted build makes its day be derived again. Like the index,
+ * it only has builds that published coverage, so a day whose last build
+ * did not is represented by the last one that did.
+ */
+public final class CoverageDailyRollup {
+
+    /**
+     * Name of the rollup file in the job's folder.
+     */
+    static final String FILE_NAME = "vectorcastcoverage-daily.idx";
+
+    private static final Logger logger = Logger.getLogger(CoverageDailyRollup.class.getName());
+
+    private CoverageDailyRollup() {
+    }
+
+    /**
+     * Reads the daily records of a job.
+     * @param job the job
+     * @return the record of the last build of each day, oldest first, or
+     *      null if the job has no rollup or it cannot be read
+     */
+    public static List<CoverageHistoryIndex.Entry> read(Job<?,?> job) {
+        File file = new File(job.getRootDir(), FILE_NAME);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            return CoverageHistoryIndex.read(file);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to read " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Gets the day a build was started on.
+     * @param entry the record of the build
+     * @return the date in the time zone of the server
+     */
+    public static LocalDate dayOf(CoverageHistoryIndex.Entry entry) {
+        return Instant.ofEpochMilli(entry.getTimestamp()).atZone(ZoneId.systemDefault()).toLocalDate();
+    }
+
+    /**
+     * Records a build that was added to the history index of its job.
+     * Creates the rollup from the history index if it does not exist yet.
+     * @param dir folder of the job
+     * @param entry the record of the build
+     * @throws IOException if the rollup could not be written
+     */
+    static void add(File dir, CoverageHistoryIndex.Entry entry) throws IOException {
+        File file = new File(dir, FILE_NAME);
+        // derived from the history index, so updated under its lock
+        synchronized (CoverageHistoryIndex.lockOf(new File(dir, CoverageHistoryIndex.FILE_NAME))) {
+            if (!file.isFile()) {
+                rebuild(dir);
+                return;
+            }
+            List<CoverageHistoryIndex.Entry> days = CoverageHistoryIndex.read(file);
+            if (merge(days, entry)) {
+                CoverageHistoryIndex.write(file, days);
+            }
+        }
+    }
+
+    /**
+     * Derives the rollup again from the history index, after a build was
+     * deleted.
+     * @param dir folder of the job
+     * @param number number of the deleted build
+     * @throws IOException if the rollup could not be written
+     */
+    static void remove(File dir, int number) throws IOException {
+        File file = new File(dir, FILE_NAME);
+        synchronized (CoverageHistoryIndex.lockOf(new File(dir, CoverageHistoryIndex.FILE_NAME))) {
+            if (!file.isFile()) {
+                return;
+            }
+            for (CoverageHistoryIndex.Entry e : CoverageHistoryIndex.read(file)) {
+                if (e.getNumber() == number) {
+                    rebuild(dir);
+                    return;
+                }
+            }
+        }
+    }
+
+    private static void rebuild(File dir) throws IOException {
+        File index = new File(dir, CoverageHistoryIndex.FILE_NAME);
+        if (!index.isFile()) {
+            return;
+        }
+        CoverageHistoryIndex.write(new File(dir, FILE_NAME), rollup(CoverageHistoryIndex.read(index)));
+    }
+
+    /**
+     * Keeps the last build of each day.
+     * @param history records in build number order
+     * @return one record per day, oldest first
+     */
+    static List<CoverageHistoryIndex.Entry> rollup(List<CoverageHistoryIndex.Entry> history) {
+        List<CoverageHistoryIndex.Entry> days = new ArrayList<CoverageHistoryIndex.Entry>();
+        for (CoverageHistoryIndex.Entry e : history) {
+            merge(days, e);
+        }
+        return days;
+    }
+
+    /**
+     * Puts a build into the record of its day, if it is later than the
+     * build recorded for the day.
+     * @param days one record per day, oldest first
+     * @return true if the records changed
+     */
+    private static boolean merge(List<CoverageHistoryIndex.Entry> days, CoverageHistoryIndex.Entry entry) {
+        LocalDate day = dayOf(entry);
+        int i = days.size();
+        // usually the last day, unless the clock was set back
+        while (i > 0 && dayOf(days.get(i - 1)).isAfter(day)) {
+            i--;
+        }
+        if (i > 0 && dayOf(days.get(i - 1)).equals(day)) {
+            if (days.get(i - 1).getNumber() >= entry.getNumber()) {
+                return false;
+            }
+            days.set(i - 1, entry);
+        } else {
+            days.add(i, entry);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,696 @@
+package com.vectorcast.plugins.vectorcastcoverage;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import hudson.Extension;
+import hudson.model.Job;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Per-job file with the build-wide coverage of every build that published
+ * VectorCAST coverage, so that trend graphs and the previous build lookup
+ * do not have to load each {@link Run} to read seven ratios.
+ *
+ * <p>
+ * The file starts with a magic number and the format version, followed by
+ * one fixed-width record per build: build number, timestamp, result, a bit
+ * mask of the metrics present and numerator and denominator of all seven
+ * metrics as 64-bit counts. The publisher appends a record for every build,
+ * and the result byte is updated in place when the build completes or is
+ * deleted. A file of version 1, which stored the counts as floats, is
+ * converted the first time it is read.
+ *
+ * <p>
+ * The file is created the first time a build of the job publishes coverage,
+ * from the builds already recorded. That walk loads every build of the job,
+ * so it runs in the background and not in the publisher; until it is done
+ * {@link #read(Job)} returns null and callers walk the builds as before.
+ *
+ * <p>
+ * Writes to a file are serialized by a lock of their own, so jobs do not
+ * wait for each other. The build numbers in a file are kept in memory for
+ * the recently written files, so that recording a build does not read the
+ * whole file to find out whether it is already there.
+ */
+public final class CoverageHistoryIndex {
+
+    /**
+     * Name of the index file in the job's folder.
+     */
+    static final String FILE_NAME = "vectorcastcoverage-history.idx";
+
+    private static final int MAGIC = 0x56434849; // "VCHI"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 8;
+
+    private static final int METRICS = 7;
+
+    /**
+     * number, timestamp, result, present mask, numerator and denominator of each metric
+     */
+    static final int RECORD_SIZE = 4 + 8 + 1 + 1 + METRICS * 16;
+
+    /**
+     * Version 1 stored the counts as floats.
+     */
+    private static final int FLOAT_VERSION = 1;
+    private static final int FLOAT_RECORD_SIZE = 4 + 8 + 1 + 1 + METRICS * 8;
+
+    private static final int RESULT_OFFSET = 12;
+
+    /**
+     * Result of a build that was still running when the record was written.
+     */
+    static final byte RESULT_UNKNOWN = -1;
+
+    /**
+     * Result of a build that has been deleted since.
+     */
+    static final byte RESULT_DELETED = -2;
+
+    private static final Result[] RESULTS = {
+        Result.SUCCESS, Result.UNSTABLE, Result.FAILURE, Result.NOT_BUILT, Result.ABORTED
+    };
+
+    private static final Logger logger = Logger.getLogger(CoverageHistoryIndex.class.getName());
+
+    /**
+     * Creates the indexes of jobs from their builds, one job at a time.
+     */
+    private static final ExecutorService BACKFILL = Executors.newSingleThreadExecutor(
+            new NamingThreadFactory(new DaemonThreadFactory(), "VectorCAST coverage history index"));
+
+    /**
+     * The index files written recently, by path.
+     */
+    private static final Cache<String, IndexFile> RECENT = Caffeine.newBuilder()
+            .maximumSize(Math.max(0, Integer.getInteger(CoverageHistoryIndex.class.getName() + ".CACHED_FILES", 1000)))
+            .build();
+
+    /**
+     * The index files in use, by path, so that a file has one lock even
+     * while it is evicted from {@link #RECENT}.
+     */
+    private static final Cache<String, IndexFile> LIVE = Caffeine.newBuilder().weakValues().build();
+
+    /**
+     * Builds that published while the index of their job is being created,
+     * by index file. They are recorded when it is written. Guarded by
+     * itself.
+     */
+    private static final Map<File, List<Run<?,?>>> PENDING = new HashMap<File, List<Run<?,?>>>();
+
+    private static final Comparator<Entry> BY_NUMBER = new Comparator<Entry>() {
+        public int compare(Entry a, Entry b) {
+            return a.number < b.number ? -1 : (a.number == b.number ? 0 : 1);
+        }
+    };
+
+    private CoverageHistoryIndex() {
+    }
+
+    /**
+     * Reads the index of a job.
+     * @param job the job
+     * @return the records of the builds that still exist, in build number
+     *      order, or null if the job has no index or it cannot be read
+     */
+    public static List<Entry> read(Job<?,?> job) {
+        File file = new File(job.getRootDir(), FILE_NAME);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            return read(file);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to read " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Gets the trend up to and including a build: its own record followed
+     * by those of the earlier builds that did not fail, newest first, as
+     * {@link VectorCASTBuildAction#getPreviousResult()} would walk them.
+     * @param run the build
+     * @param max maximum number of records
+     * @return the records, or null if the index does not have the build
+     */
+    static List<Entry> getTrend(Run<?,?> run, int max) {
+        List<Entry> entries = read(run.getParent());
+        if (entries == null) {
+            return null;
+        }
+        int number = run.getNumber();
+        List<Entry> trend = new ArrayList<Entry>();
+        for (int i = entries.size() - 1; i >= 0 && trend.size() < max; i--) {
+            Entry e = entries.get(i);
+            if (trend.isEmpty()) {
+                if (e.number == number) {
+                    trend.add(e);
+                } else if (e.number < number) {
+                    return null;
+                }
+            } else if (e.result != Result.FAILURE.ordinal) {
+                trend.add(e);
+            }
+        }
+        return trend.isEmpty() ? null : trend;
+    }
+
+    /**
+     * Records the coverage of a build, and updates the
+     * {@link CoverageDailyRollup} of the job. If the index does not exist
+     * yet, it is created in the background from the builds of the job,
+     * this one included.
+     * @param run the build, with the action attached
+     * @param action coverage of the build
+     * @throws IOException if the index could not be written
+     */
+    static void append(Run<?,?> run, VectorCASTBuildAction action) throws IOException {
+        final Job<?,?> job = run.getParent();
+        File dir = job.getRootDir();
+        final File file = new File(dir, FILE_NAME);
+        synchronized (lockOf(file)) {
+            if (!file.isFile()) {
+                synchronized (PENDING) {
+                    List<Run<?,?>> pending = PENDING.get(file);
+                    if (pending == null) {
+                        pending = new ArrayList<Run<?,?>>();
+                        PENDING.put(file, pending);
+                        BACKFILL.submit(new Runnable() {
+                            public void run() {
+                                backfill(job, file);
+                            }
+                        });
+                    }
+                    pending.add(run);
+                }
+                return;
+            }
+            Entry entry = new Entry(run, action);
+            append(file, entry);
+            CoverageDailyRollup.add(dir, entry);
+        }
+    }
+
+    /**
+     * Creates the index of a job from its builds, and the rollup from the
+     * index.
+     */
+    private static void backfill(Job<?,?> job, File file) {
+        List<Entry> entries;
+        try {
+            entries = collect(job);
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Failed to create " + file, e);
+            synchronized (PENDING) {
+                // the next build tries again
+                PENDING.remove(file);
+            }
+            return;
+        }
+        synchronized (lockOf(file)) {
+            List<Run<?,?>> pending;
+            synchronized (PENDING) {
+                pending = PENDING.remove(file);
+            }
+            // builds that published during the walk may have been missed,
+            // and the result of those that completed since is stale
+            for (Run<?,?> run : pending) {
+                VectorCASTBuildAction a = run.getAction(VectorCASTBuildAction.class);
+                if (a == null) {
+                    continue;
+                }
+                for (int i = entries.size() - 1; i >= 0; i--) {
+                    if (entries.get(i).number == run.getNumber()) {
+                        entries.remove(i);
+                    }
+                }
+                entries.add(new Entry(run, a));
+            }
+            Collections.sort(entries, BY_NUMBER);
+            try {
+                write(file, entries);
+                if (!entries.isEmpty()) {
+                    CoverageDailyRollup.add(file.getParentFile(), entries.get(entries.size() - 1));
+                }
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to create " + file, e);
+            }
+        }
+    }
+
+    /**
+     * Writes a complete index, replacing the file atomically.
+     */
+    static void write(File file, List<Entry> entries) throws IOException {
+        IndexFile f = indexFile(file);
+        synchronized (f) {
+            write(f, entries);
+        }
+    }
+
+    private static void write(IndexFile f, List<Entry> entries) throws IOException {
+        File file = f.file;
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            ByteBuffer buf = ByteBuffer.allocate(RECORD_SIZE);
+            for (Entry e : entries) {
+                buf.clear();
+                e.writeTo(buf);
+                out.write(buf.array());
+            }
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        f.numbers = null;
+    }
+
+    /**
+     * Adds a record at the end of an index, unless the build already has one.
+     */
+    static void append(File file, Entry entry) throws IOException {
+        IndexFile f = indexFile(file);
+        synchronized (f) {
+            if (f.find(entry.number) >= 0) {
+                return;
+            }
+            FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+            try {
+                ByteBuffer buf = ByteBuffer.allocate(RECORD_SIZE);
+                entry.writeTo(buf);
+                buf.flip();
+                // whole records only, in case an earlier append was cut short
+                long pos = HEADER_SIZE + (ch.size() - HEADER_SIZE) / RECORD_SIZE * RECORD_SIZE;
+                while (buf.hasRemaining()) {
+                    pos += ch.write(buf, pos);
+                }
+                f.appended(entry.number, pos);
+            } finally {
+                ch.close();
+            }
+        }
+    }
+
+    /**
+     * Changes the result recorded for a build.
+     * @return false if the index has no record for the build
+     */
+    static boolean setResult(File file, int number, byte result) throws IOException {
+        IndexFile f = indexFile(file);
+        synchronized (f) {
+            long pos = f.find(number);
+            if (pos < 0) {
+                return false;
+            }
+            FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+            try {
+                ch.write(ByteBuffer.wrap(new byte[] {result}), pos + RESULT_OFFSET);
+            } finally {
+                ch.close();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Gets the lock that serializes the writes to a file of this format.
+     * {@link CoverageDailyRollup} holds the lock of the history index while
+     * it updates the rollup of the job.
+     * @param file the file
+     * @return the lock, the same for as long as anyone holds it
+     */
+    static Object lockOf(File file) {
+        return indexFile(file);
+    }
+
+    private static IndexFile indexFile(File file) {
+        String key = file.getPath();
+        IndexFile f;
+        synchronized (LIVE) {
+            f = LIVE.getIfPresent(key);
+            if (f == null) {
+                f = new IndexFile(file);
+                LIVE.put(key, f);
+            }
+        }
+        RECENT.put(key, f);
+        return f;
+    }
+
+    /**
+     * Reads all records that are not marked deleted, in build number order.
+     */
+    static List<Entry> read(File file) throws IOException {
+        ByteBuffer buf = load(file);
+        int count = (buf.limit() - HEADER_SIZE) / RECORD_SIZE;
+        List<Entry> entries = new ArrayList<Entry>(count);
+        boolean sorted = true;
+        for (int i = 0; i < count; i++) {
+            Entry e = new Entry(buf, HEADER_SIZE + i * RECORD_SIZE, VERSION);
+            if (e.result == RESULT_DELETED) {
+                continue;
+            }
+            // concurrent builds may finish out of order
+            if (!entries.isEmpty() && entries.get(entries.size() - 1).number > e.number) {
+                sorted = false;
+            }
+            entries.add(e);
+        }
+        if (!sorted) {
+            Collections.sort(entries, BY_NUMBER);
+        }
+        return entries;
+    }
+
+    private static ByteBuffer load(File file) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        if (buf.limit() < HEADER_SIZE || buf.getInt(0) != MAGIC) {
+            throw new IOException("Not a coverage history index: " + file);
+        }
+        int version = buf.getInt(4);
+        if (version == FLOAT_VERSION) {
+            return upgrade(file);
+        }
+        if (version != VERSION) {
+            throw new IOException("Unsupported coverage history index version " + version + ": " + file);
+        }
+        return buf;
+    }
+
+    /**
+     * Converts a file of the float version to the current one, keeping the
+     * records of deleted builds.
+     * @return the contents of the converted file
+     */
+    private static ByteBuffer upgrade(File file) throws IOException {
+        IndexFile f = indexFile(file);
+        synchronized (f) {
+            // read again under the lock, another thread may have converted it
+            ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            if (buf.limit() >= HEADER_SIZE && buf.getInt(4) == FLOAT_VERSION) {
+                int count = (buf.limit() - HEADER_SIZE) / FLOAT_RECORD_SIZE;
+                List<Entry> entries = new ArrayList<Entry>(count);
+                for (int i = 0; i < count; i++) {
+                    entries.add(new Entry(buf, HEADER_SIZE + i * FLOAT_RECORD_SIZE, FLOAT_VERSION));
+                }
+                write(f, entries);
+                logger.info("Converted " + file + " to 64-bit counts");
+                buf = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            }
+            return buf;
+        }
+    }
+
+    /**
+     * The build numbers recorded in an index file, in file order. They are
+     * read once and then kept up to date by the writes of this class; if
+     * the length of the file is not the one they were read or written at,
+     * they are read again. An instance is also the lock of its file.
+     */
+    private static final class IndexFile {
+        final File file;
+
+        /**
+         * Number of each record, null until read.
+         */
+        int[] numbers;
+        int count;
+
+        /**
+         * Length of the file with {@link #count} records.
+         */
+        long length;
+
+        IndexFile(File file) {
+            this.file = file;
+        }
+
+        /**
+         * Position of the record of a build, searching from the end, or -1.
+         */
+        long find(int number) throws IOException {
+            if (numbers == null || file.length() != length) {
+                ByteBuffer buf = load(file);
+                count = (buf.limit() - HEADER_SIZE) / RECORD_SIZE;
+                numbers = new int[Math.max(16, count + count / 2)];
+                for (int i = 0; i < count; i++) {
+                    numbers[i] = buf.getInt(HEADER_SIZE + i * RECORD_SIZE);
+                }
+                length = buf.limit();
+            }
+            for (int i = count - 1; i >= 0; i--) {
+                if (numbers[i] == number) {
+                    return HEADER_SIZE + (long) i * RECORD_SIZE;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Records a build written at the end of the file.
+         * @param end length of the file with its record
+         */
+        void appended(int number, long end) {
+            if (numbers == null) {
+                return;
+            }
+            if (count == numbers.length) {
+                numbers = Arrays.copyOf(numbers, count + count / 2);
+            }
+            numbers[count++] = number;
+            length = end;
+        }
+    }
+
+    /**
+     * Records of all builds of a job that have coverage, oldest first.
+     */
+    private static List<Entry> collect(Job<?,?> job) {
+        List<Entry> entries = new ArrayList<Entry>();
+        for (Run<?,?> b = job.getLastBuild(); b != null; b = b.getPreviousBuild()) {
+            VectorCASTBuildAction a = b.getAction(VectorCASTBuildAction.class);
+            if (a != null) {
+                entries.add(new Entry(b, a));
+            }
+        }
+        Collections.reverse(entries);
+        return entries;
+    }
+
+    static byte encode(Result result) {
+        return result == null ? RESULT_UNKNOWN : (byte) result.ordinal;
+    }
+
+    /**
+     * The record of one build.
+     */
+    public static final class Entry {
+        private final int number;
+        private final long timestamp;
+        private final byte result;
+        private final int present;
+        private final long[] values = new long[METRICS * 2];
+
+        /**
+         * Only known for records taken from a loaded build, it is not stored.
+         */
+        private String displayName;
+
+        Entry(Run<?,?> run, CoverageObject<?> coverage) {
+            this.number = run.getNumber();
+            this.displayName = run.getDisplayName();
+            this.timestamp = run.getTimeInMillis();
+            this.result = encode(run.getResult());
+            int mask = 0;
+            for (int m = 0; m < METRICS; m++) {
+                Ratio r = coverage.getRatio(m);
+                if (r != null && r.isInitialized()) {
+                    mask |= 1 << m;
+                    values[2 * m] = r.getNumeratorCount();
+                    values[2 * m + 1] = r.getDenominatorCount();
+                }
+            }
+            this.present = mask;
+        }
+
+        Entry(int number, long timestamp, byte result, Ratio... ratios) {
+            this.number = number;
+            this.timestamp = timestamp;
+            this.result = result;
+            int mask = 0;
+            for (int m = 0; m < ratios.length && m < METRICS; m++) {
+                if (ratios[m] != null) {
+                    mask |= 1 << m;
+                    values[2 * m] = ratios[m].getNumeratorCount();
+                    values[2 * m + 1] = ratios[m].getDenominatorCount();
+                }
+            }
+            this.present = mask;
+        }
+
+        private Entry(ByteBuffer buf, int pos, int version) {
+            this.number = buf.getInt(pos);
+            this.timestamp = buf.getLong(pos + 4);
+            this.result = buf.get(pos + RESULT_OFFSET);
+            this.present = buf.get(pos + 13) & 0xff;
+            for (int i = 0; i < values.length; i++) {
+                values[i] = version == FLOAT_VERSION
+                        ? Math.round((double) buf.getFloat(pos + 14 + 4 * i))
+                        : buf.getLong(pos + 14 + 8 * i);
+            }
+        }
+
+        private void writeTo(ByteBuffer buf) {
+            buf.putInt(number);
+            buf.putLong(timestamp);
+            buf.put(result);
+            buf.put((byte) present);
+            for (long v : values) {
+                buf.putLong(v);
+            }
+        }
+
+        public int getNumber() {
+            return number;
+        }
+
+        /**
+         * Label of the build in graphs.
+         */
+        public String getDisplayName() {
+            return displayName != null ? displayName : "#" + number;
+        }
+
+        /**
+         * Start time of the build, as {@link Run#getTimeInMillis()}.
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * Gets the result of the build.
+         * @return null if the build was still running when it was recorded
+         *      and its completion has not been recorded
+         */
+        public Result getResult() {
+            for (Result r : RESULTS) {
+                if (r.ordinal == result) {
+                    return r;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Gets the ratio of a metric.
+         * @param metric index as returned by {@link CoverageObject#metricIndex(String)}
+         * @return the ratio, or null if the build did not report the metric
+         */
+        Ratio getRatio(int metric) {
+            if ((present & (1 << metric)) == 0) {
+                return null;
+            }
+            return new Ratio(values[2 * metric], values[2 * metric + 1]);
+        }
+
+        public Ratio getStatementCoverage() {
+            return getRatio(0);
+        }
+
+        public Ratio getBranchCoverage() {
+            return getRatio(1);
+        }
+
+        public Ratio getBasisPathCoverage() {
+            return getRatio(2);
+        }
+
+        public Ratio getMCDCCoverage() {
+            return getRatio(3);
+        }
+
+        public Ratio getFunctionCoverage() {
+            return getRatio(4);
+        }
+
+        public Ratio getFunctionCallCoverage() {
+            return getRatio(5);
+        }
+
+        public Ratio getComplexity() {
+            return getRatio(6);
+        }
+    }
+
+    /**
+     * Keeps the recorded results, and the graphs drawn from them, in line
+     * with the builds.
+     */
+    @Extension
+    public static final class RunListenerImpl extends RunListener<Run<?,?>> {
+
+        @Override
+        public void onCompleted(Run<?,?> run, TaskListener listener) {
+            update(run, encode(run.getResult()));
+        }
+
+        @Override
+        public void onDeleted(Run<?,?> run) {
+            update(run, RESULT_DELETED);
+        }
+
+        private static void update(Run<?,?> run, byte result) {
+            if (run.getAction(VectorCASTBuildAction.class) == null) {
+                return;
+            }
+            TrendGraphCache.invalidate(run.getParent().getFullName());
+            File file = new File(run.getParent().getRootDir(), FILE_NAME);
+            if (!file.isFile()) {
+                return;
+            }
+            try {
+                if (setResult(file, run.getNumber(), result) && result == RESULT_DELETED) {
+                    CoverageDailyRollup.remove(file.getParentFile(), run.getNumber());
+                    CoverageSeriesStore.removed(run);
+                }
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to update " + file, e);
+            }
+        }
+    }
+}
@@ -7,7 +7,6 @@ import hudson.util.ChartUtil;
 import hudson.util.ColorPalette;
 import hudson.util.DataSetBuilder;
 import hudson.util.ShiftedCategoryAxis;
-import hudson.util.ChartUtil.NumberOnlyBuildLabel;
 import hudson.util.Graph;
 
 import org.jfree.chart.ChartFactory;
@@ -29,10 +28,19 @@ import org.kohsuke.stapler.export.ExportedBean;
 
 import java.awt.BasicStroke;
 import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
+import javax.imageio.ImageIO;
+import java.util.List;
 import org.jfree.chart.renderer.category.BarRenderer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -155,6 +163,57 @@ public abstract class CoverageObject<SELF extends CoverageObject<SELF>> {
         return buf.toString();
     }
 
+    /**
+     * Maps the type attribute of a coverage element to a metric index.
+     * @param type type attribute, such as "statement, %"
+     * @return index in the order statement, branch, basis path, MC/DC,
+     *      function, function call, complexity; -1 for unknown types
+     */
+    static int metricIndex(String type) {
+        if (type == null)
+            return -1;
+        switch (type) {
+            case "statement, %":    return 0;
+            case "branch, %":       return 1;
+            case "basispath, %":    return 2;
+            case "mcdc, %":         return 3;
+            case "function, %":     return 4;
+            case "functioncall, %": return 5;
+            case "complexity, %":   return 6;
+            default:                return -1;
+        }
+    }
+
+    /**
+     * Gets the ratio of the given metric.
+     * @param metric index as returned by {@link #metricIndex(String)}
+     * @return the ratio
+     */
+    Ratio getRatio(int metric) {
+        switch (metric) {
+            case 0:  return Statement;
+            case 1:  return Branch;
+            case 2:  return BasisPath;
+            case 3:  return MCDC;
+            case 4:  return Function;
+            case 5:  return FunctionCall;
+            case 6:  return Complexity;
+            default: throw new IllegalArgumentException("Invalid metric: " + metric);
+        }
+    }
+
+    /**
+     * Adds the ratios of another object to the ones of this object.
+     */
+    void mergeRatios(CoverageObject<?> other) {
+        for (int m = 0; m < 7; m++) {
+            Ratio r = other.getRatio(m);
+            if (r.isInitialized()) {
+                getRatio(m).add(r);
+            }
+        }
+    }
+
     public boolean hasFunctionCoverage() {
         return Function.isInitialized();
     }
@@ -271,9 +330,9 @@ public abstract class CoverageObject<SELF extends CoverageObject<SELF>> {
             buf.append("<td align=\"center\" class='").append(className).append("'");
             buf.append(" data='").append(dataFormat.format(ratio.getPercentageFloat()));
             buf.append("'>\n");
-            if (ratio.getNumerator() != 0.0 && ratio.getDenominator() == 0.0) {
-                buf.append("<span class='text'>").append(ratio.getNumerator()).append("</span>");
-            } else if (ratio.getNumerator() == 0.0 && ratio.getDenominator() == 0.0) {
+            if (ratio.getNumeratorCount() != 0 && ratio.getDenominatorCount() == 0) {
+                buf.append("<span class='text'>").append(ratio.getNumeratorCount()).append("</span>");
+            } else if (ratio.getNumeratorCount() == 0 && ratio.getDenominatorCount() == 0) {
                 buf.append("<span class='text'>-</span>");
             } else {
                 printRatioTable(ratio, buf);
@@ -287,8 +346,8 @@ public abstract class CoverageObject<SELF extends CoverageObject<SELF>> {
 
     protected static void printRatioTable(Ratio ratio, StringBuilder buf) {
         String percent = percentFormat.format(ratio.getPercentageFloat());
-        String numerator = intFormat.format(ratio.getNumerator());
-        String denominator = intFormat.format(ratio.getDenominator());
+        String numerator = intFormat.format(ratio.getNumeratorCount());
+        String denominator = intFormat.format(ratio.getDenominatorCount());
         buf.append("<table class='percentgraph' cellpadding='0px' cellspacing='0px'><tr class='percentgraph'>")
                 .append("<td width='64px' class='data'>").append(percent).append("%</td>")
                 .append("<td class='percentgraph'>")
@@ -297,8 +356,34 @@ public abstract class CoverageObject<SELF extends CoverageObject<SELF>> {
                 .append("</span></div></div></td></tr></table>");
     }
 
+    /**
+     * Largest area of a trend graph in pixels, the same limit as {@link Graph}.
+     */
+    private static final int MAX_AREA = Integer.getInteger(Graph.class.getName() + ".maxArea", 10000000);
+
+    /**
+     * Sizes of the trend graphs on the plugin's pages, which are cached.
+     */
+    private static final List<String> CACHED_SIZES = Arrays.asList("500x200", "640x480");
+
+    /**
+     * Limits the size of a requested graph the way {@link Graph} does: at
+     * most 2560x1440, and the default size instead of an empty size or one
+     * larger than {@link #MAX_AREA}.
+     */
+    static Dimension safeDimension(int width, int height, int defaultWidth, int defaultHeight) {
+        width = Math.min(width, 2560);
+        height = Math.min(height, 1440);
+        if (width <= 0 || height <= 0 || width > MAX_AREA / height) {
+            return new Dimension(defaultWidth, defaultHeight);
+        }
+        return new Dimension(width, height);
+    }
+
     /**
      * Generates the graph that shows the coverage trend up to this report.
+     * The optional <code>width</code> and <code>height</code> parameters set
+     * its size; a parameter that is not a number is answered with 400.
      * @param req web request
      * @param rsp web response
      * @throws IOException if unable to read/parse
@@ -312,56 +397,196 @@ public abstract class CoverageObject<SELF extends CoverageObject<SELF>> {
         
         Run<?,?> build = getBuild();
         Calendar t = build.getTimestamp();
-        
-        final Integer maxHistory = getMaxHistory();
 
         String w = Util.fixEmptyAndTrim(req.getParameter("width"));
         String h = Util.fixEmptyAndTrim(req.getParameter("height"));
-        int width = (w != null) ? Integer.parseInt(w) : 500;
-        int height = (h != null) ? Integer.parseInt(h) : 200;          
-        
-        new GraphImpl(this, t, width, height) {
-
-            @Override
-            protected DataSetBuilder<String, NumberOnlyBuildLabel> createDataSet(CoverageObject<SELF> obj) {
-                logger.log(Level.INFO,"In CoverageObject::doGraph::GraphImpl::createDataSet");
-                
-                DataSetBuilder<String, NumberOnlyBuildLabel> dsb = new DataSetBuilder<String, NumberOnlyBuildLabel>();
-
-                Integer historyCount = 0;
-                
-                for (CoverageObject<SELF> a = obj; a != null; a = a.getPreviousResult()) {
-                    
-                    if (historyCount++ >= maxHistory) {
-                        break;
-                    }
-                    logger.log(Level.INFO,"CoverageObject::GraphImpl::createDataSet - (H | M) = " + Integer.toString(historyCount) + " | " + Integer.toString(maxHistory));
-                    
-                    NumberOnlyBuildLabel label = new NumberOnlyBuildLabel(a.getBuild());
-                    if (a.Statement != null && a.Statement.isInitialized()) {
-                        dsb.add(a.Statement.getPercentageFloat(), Messages.CoverageObject_Legend_Statement(), label);
-                    }
-                    if (a.Branch != null && a.Branch.isInitialized()) {
-                        dsb.add(a.Branch.getPercentageFloat(), Messages.CoverageObject_Legend_Branch(), label);
-                    }
-                    if (a.BasisPath != null && a.BasisPath.isInitialized()) {
-                        dsb.add(a.BasisPath.getPercentageFloat(), Messages.CoverageObject_Legend_BasisPath(), label);
-                    }
-                    if (a.MCDC != null && a.MCDC.isInitialized()) {
-                        dsb.add(a.MCDC.getPercentageFloat(), Messages.CoverageObject_Legend_MCDC(), label);
-                    }
-                    if (a.Function != null && a.Function.isInitialized()) {
-                        dsb.add(a.Function.getPercentageFloat(), Messages.CoverageObject_Legend_Function(), label);
-                    }
-                    if (a.FunctionCall != null && a.FunctionCall.isInitialized()) {
-                        dsb.add(a.FunctionCall.getPercentageFloat(), Messages.CoverageObject_Legend_FunctionCall(), label);
+        Dimension size;
+        try {
+            size = safeDimension((w != null) ? Integer.parseInt(w) : 500, (h != null) ? Integer.parseInt(h) : 200, 500, 200);
+        } catch (NumberFormatException e) {
+            rsp.sendError(StaplerResponse.SC_BAD_REQUEST, "Not a number: " + e.getMessage());
+            return;
+        }
+        final int width = size.width;
+        final int height = size.height;
+
+        // unchanged graphs of the sizes the pages use are served from the
+        // cache, or not at all; other sizes are rendered each time
+        String variant = width + "x" + height;
+        String key = CACHED_SIZES.contains(variant) ? TrendGraphCache.keyOf(this, variant) : null;
+        TrendGraphCache.Rendered image = (key != null) ? TrendGraphCache.get(key) : null;
+        if (image == null) {
+            final Integer maxHistory = getMaxHistory();
+
+            GraphImpl graph = new GraphImpl(this, t, width, height, maxHistory) {
+
+                @Override
+                protected DataSetBuilder<String, BuildLabel> createDataSet(List<CoverageHistoryIndex.Entry> trend) {
+                    logger.log(Level.INFO,"In CoverageObject::doGraph::GraphImpl::createDataSet");
+
+                    DataSetBuilder<String, BuildLabel> dsb = new DataSetBuilder<String, BuildLabel>();
+
+                    for (CoverageHistoryIndex.Entry a : trend) {
+                        BuildLabel label = new BuildLabel(a);
+                        Ratio r;
+                        if ((r = a.getStatementCoverage()) != null) {
+                            dsb.add(r.getPercentageFloat(), Messages.CoverageObject_Legend_Statement(), label);
+                        }
+                        if ((r = a.getBranchCoverage()) != null) {
+                            dsb.add(r.getPercentageFloat(), Messages.CoverageObject_Legend_Branch(), label);
+                        }
+                        if ((r = a.getBasisPathCoverage()) != null) {
+                            dsb.add(r.getPercentageFloat(), Messages.CoverageObject_Legend_BasisPath(), label);
+                        }
+                        if ((r = a.getMCDCCoverage()) != null) {
+                            dsb.add(r.getPercentageFloat(), Messages.CoverageObject_Legend_MCDC(), label);
+                        }
+                        if ((r = a.getFunctionCoverage()) != null) {
+                            dsb.add(r.getPercentageFloat(), Messages.CoverageObject_Legend_Function(), label);
+                        }
+                        if ((r = a.getFunctionCallCoverage()) != null) {
+                            dsb.add(r.getPercentageFloat(), Messages.CoverageObject_Legend_FunctionCall(), label);
+                        }
                     }
+
+                    logger.log(Level.INFO,"History Count = " + Integer.toString(trend.size()));
+                    return dsb;
+                }
+            };
+            byte[] png = graph.renderPng(width, height);
+            image = (key != null) ? TrendGraphCache.put(key, png, "image/png") : new TrendGraphCache.Rendered(png, "image/png");
+        }
+        image.send(req, rsp);
+    }
+
+    /**
+     * Serves the coverage trend up to this report as JSON, so that charts
+     * can be drawn in the browser. The series are columns, oldest build
+     * first, with null where a build has no value for a metric:
+     * <pre>
+     * {"builds":[..],"timestamps":[..],"statement":[..],"branch":[..],"basisPath":[..],
+     *  "mcdc":[..],"function":[..],"functionCall":[..],"complexity":[..]}
+     * </pre>
+     * Coverage values are percentages, complexity is the numerator.
+     * Optional parameters: <code>from</code> and <code>to</code> limit the
+     * build numbers, and <code>points</code> the number of builds returned,
+     * which is never more than {@link TrendSampler#MAX_POINTS}. A parameter
+     * that is not a number is answered with 400.
+     * @param req web request
+     * @param rsp web response
+     * @throws IOException if unable to read the history
+     */
+    public void doTrend(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        String f = Util.fixEmptyAndTrim(req.getParameter("from"));
+        String t = Util.fixEmptyAndTrim(req.getParameter("to"));
+        String p = Util.fixEmptyAndTrim(req.getParameter("points"));
+        int from, to, points;
+        try {
+            from = (f != null) ? Integer.parseInt(f) : 0;
+            to = (t != null) ? Integer.parseInt(t) : Integer.MAX_VALUE;
+            points = (p != null) ? Math.min(Integer.parseInt(p), TrendSampler.MAX_POINTS) : TrendSampler.MAX_POINTS;
+        } catch (NumberFormatException e) {
+            rsp.sendError(StaplerResponse.SC_BAD_REQUEST, "Not a number: " + e.getMessage());
+            return;
+        }
+
+        String key = TrendGraphCache.keyOf(this, "json:" + from + ":" + to + ":" + points);
+        TrendGraphCache.Rendered json = TrendGraphCache.get(key);
+        if (json == null) {
+            List<CoverageHistoryIndex.Entry> trend = new ArrayList<CoverageHistoryIndex.Entry>();
+            for (CoverageHistoryIndex.Entry e : getTrend(getMaxHistory())) {
+                if (e.getNumber() >= from && e.getNumber() <= to) {
+                    trend.add(e);
                 }
+            }
+            // oldest first
+            Collections.reverse(trend);
+            json = TrendGraphCache.put(key, toJson(TrendSampler.sample(trend, points)).getBytes(StandardCharsets.UTF_8), "application/json;charset=UTF-8");
+        }
+        json.send(req, rsp);
+    }
 
-                logger.log(Level.INFO,"History Count = " + Integer.toString(historyCount));
-                return dsb;
+    static String toJson(List<CoverageHistoryIndex.Entry> trend) {
+        StringBuilder buf = new StringBuilder("{\"builds\":[");
+        for (int i = 0; i < trend.size(); i++) {
+            buf.append(i > 0 ? "," : "").append(trend.get(i).getNumber());
+        }
+        buf.append("],\"timestamps\":[");
+        for (int i = 0; i < trend.size(); i++) {
+            buf.append(i > 0 ? "," : "").append(trend.get(i).getTimestamp());
+        }
+        String[] names = {"statement", "branch", "basisPath", "mcdc", "function", "functionCall", "complexity"};
+        for (int m = 0; m < names.length; m++) {
+            buf.append("],\"").append(names[m]).append("\":[");
+            for (int i = 0; i < trend.size(); i++) {
+                Ratio r = trend.get(i).getRatio(m);
+                buf.append(i > 0 ? "," : "");
+                if (r == null) {
+                    buf.append("null");
+                } else {
+                    buf.append(m == 6 ? r.getNumeratorCount() : r.getPercentageFloat());
+                }
             }
-        }.doPng(req, rsp);
+        }
+        return buf.append("]}").toString();
+    }
+
+    /**
+     * Gets the trend of this object from the job's {@link CoverageHistoryIndex}.
+     * @param maxHistory maximum number of builds
+     * @return this build and the earlier ones that did not fail, newest
+     *      first, or null to walk {@link #getPreviousResult()} instead
+     */
+    List<CoverageHistoryIndex.Entry> getIndexedTrend(int maxHistory) {
+        return null;
+    }
+
+    /**
+     * Gets the trend of this object, from the index if possible.
+     */
+    private List<CoverageHistoryIndex.Entry> getTrend(int maxHistory) {
+        List<CoverageHistoryIndex.Entry> trend = getIndexedTrend(maxHistory);
+        if (trend != null) {
+            return trend;
+        }
+
+        trend = new ArrayList<CoverageHistoryIndex.Entry>();
+        for (CoverageObject<SELF> a = this; a != null && trend.size() < maxHistory; a = a.getPreviousResult()) {
+            trend.add(new CoverageHistoryIndex.Entry(a.getBuild(), a));
+        }
+        return trend;
+    }
+
+    /**
+     * Graph column of one build.
+     */
+    private static final class BuildLabel implements Comparable<BuildLabel> {
+        private final int number;
+        private final String name;
+
+        BuildLabel(CoverageHistoryIndex.Entry e) {
+            this.number = e.getNumber();
+            this.name = e.getDisplayName();
+        }
+
+        public int compareTo(BuildLabel that) {
+            return this.number < that.number ? -1 : (this.number == that.number ? 0 : 1);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof BuildLabel && ((BuildLabel) o).number == number;
+        }
+
+        @Override
+        public int hashCode() {
+            return number;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
     }
 
     public Api getApi() {
@@ -371,16 +596,34 @@ public abstract class CoverageObject<SELF extends CoverageObject<SELF>> {
     private abstract class GraphImpl extends Graph {
 
         private CoverageObject<SELF> obj;
+        private int maxHistory;
+        private int width;
 
-        public GraphImpl(CoverageObject<SELF> obj, Calendar timestamp, int defaultW, int defaultH) {
+        public GraphImpl(CoverageObject<SELF> obj, Calendar timestamp, int defaultW, int defaultH, int maxHistory) {
             super(timestamp, defaultW, defaultH);
             this.obj = obj;
+            this.maxHistory = maxHistory;
+            this.width = defaultW;
         }
 
-        protected abstract DataSetBuilder<String, NumberOnlyBuildLabel> createDataSet(CoverageObject<SELF> obj);
+        protected abstract DataSetBuilder<String, BuildLabel> createDataSet(List<CoverageHistoryIndex.Entry> trend);
+
+        /**
+         * Renders the graph as a PNG image.
+         */
+        byte[] renderPng(int width, int height) throws IOException {
+            BufferedImage image = createGraph().createBufferedImage(width, height);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ImageIO.write(image, "PNG", out);
+            return out.toByteArray();
+        }
 
         protected JFreeChart createGraph() {
-            final CategoryDataset dataset = createDataSet(obj).build();
+            // long histories are reduced to at most one build per two pixels
+            List<CoverageHistoryIndex.Entry> trend = new ArrayList<CoverageHistoryIndex.Entry>(obj.getTrend(maxHistory));
+            Collections.reverse(trend);
+            trend = TrendSampler.sample(trend, Math.min(TrendSampler.MAX_POINTS, width / 2));
+            final CategoryDataset dataset = createDataSet(trend).build();
             
             logger.log(Level.INFO,"dataset (C | R) = " + Integer.toString(dataset.getColumnCount()) + " | " + Integer.toString(dataset.getRowCount()) );
 
@@ -428,7 +671,7 @@ public abstract class CoverageObject<SELF extends CoverageObject<SELF>> {
             // crop extra space around the graph
             plot.setInsets(new RectangleInsets(5.0, 0, 0, 5.0));
 
-            plot.setDataset(1, createComplexityDataSet(obj).build());
+            plot.setDataset(1, createComplexityDataSet(trend).build());
             plot.mapDatasetToRangeAxis(1, 1);
 
             final NumberAxis axis2 = new NumberAxis("Complexity");
@@ -444,20 +687,12 @@ public abstract class CoverageObject<SELF extends CoverageObject<SELF>> {
         }
 
 
-        protected DataSetBuilder<String, NumberOnlyBuildLabel> createComplexityDataSet(CoverageObject<SELF> obj) {
-            DataSetBuilder<String, NumberOnlyBuildLabel> dsb = new DataSetBuilder<String, NumberOnlyBuildLabel>();
+        protected DataSetBuilder<String, BuildLabel> createComplexityDataSet(List<CoverageHistoryIndex.Entry> trend) {
+            DataSetBuilder<String, BuildLabel> dsb = new DataSetBuilder<String, BuildLabel>();
             
-            Integer maxHistory = getMaxHistory();
-            Integer historyCount = 0;
-
-            for (CoverageObject<SELF> a = obj; a != null; a = a.getPreviousResult()) {
-                NumberOnlyBuildLabel label = new NumberOnlyBuildLabel(a.getBuild());
-
-                if (historyCount++ >= maxHistory) {
-                    break;
-                }
-                logger.log(Level.INFO,"CoverageObject::createComplexityDataSet - (H | M) = " + Integer.toString(historyCount) + " | " + Integer.toString(maxHistory));
-                dsb.add(a.Complexity.getNumerator(), "Complexity", label);
+            for (CoverageHistoryIndex.Entry a : trend) {
+                Ratio complexity = a.getComplexity();
+                dsb.add(complexity != null ? complexity.getNumeratorCount() : 0, "Complexity", new BuildLabel(a));
             }
             return dsb;
         }
@@ -3,12 +3,17 @@ package com.vectorcast.plugins.vectorcastcoverage;
 import hudson.model.Run;
 import hudson.util.IOException2;
 import org.apache.commons.digester3.Digester;
+import org.apache.commons.digester3.Rule;
+import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.List;
 
 /**
  * Root object of the coverage report.
@@ -17,38 +22,103 @@ import java.io.InputStream;
  */
 public final class CoverageReport extends AggregatedReport<CoverageReport/*dummy*/,CoverageReport,EnvironmentReport> {
     
-    private final VectorCASTBuildAction action;
+    private VectorCASTBuildAction action;
 
-    private CoverageReport(VectorCASTBuildAction action) {
+    private final TopLevelRatios topLevel = new TopLevelRatios();
+
+    /**
+     * Metrics whose value was set by a combined-coverage element, as bits
+     * by {@link CoverageObject#metricIndex(String)}. Only used while the
+     * partial trees of a parse are merged.
+     */
+    private transient int combined;
+
+    /**
+     * Number of nodes in the tree, including those a snapshot has not
+     * decoded yet, or 0 if not counted yet.
+     */
+    private transient int nodeCount;
+
+    /**
+     * Run of the file being parsed by the digester rules.
+     */
+    private transient TopLevelRatios.FileRun currentRun;
+
+    CoverageReport(VectorCASTBuildAction action) {
         this.action = action;
         setName("VectorCAST");
     }
 
+    /**
+     * Parses report files into one tree. The files are parsed concurrently
+     * by {@link ReportParseTask}, and nodes with the same name in several
+     * files are summed up.
+     * @param action owner
+     * @param xmlReports report files, not closed
+     * @throws IOException "Failed to parse XML:&lt;index&gt;" if a file is not a valid report
+     */
     public CoverageReport(VectorCASTBuildAction action, InputStream... xmlReports) throws IOException {
         this(action);
-        int idx = 0;
-        for (InputStream is: xmlReports) {
-          try {
-            createDigester(!Boolean.getBoolean(this.getClass().getName() + ".UNSAFE")).parse(is);
-            idx += 1;
-          } catch (SAXException e) {
-              throw new IOException2("Failed to parse XML:" + idx,e);
-          }
-          
+        boolean secure = !Boolean.getBoolean(this.getClass().getName() + ".UNSAFE");
+        TopLevelRatios.FileRun[] runs = new TopLevelRatios.FileRun[xmlReports.length];
+        if (useDigester()) {
+            int idx = 0;
+            for (InputStream is: xmlReports) {
+              currentRun = runs[idx] = new TopLevelRatios.FileRun();
+              try {
+                createDigester(secure).parse(is);
+                idx += 1;
+              } catch (SAXException e) {
+                  throw new IOException2("Failed to parse XML:" + idx,e);
+              } finally {
+                  currentRun = null;
+              }
+            }
+        } else {
+            merge(ReportParseTask.parse(xmlReports, runs, secure));
+        }
+        for (TopLevelRatios.FileRun run : runs) {
+            topLevel.add(run);
         }
         setParent(null);
     }
 
     public CoverageReport(VectorCASTBuildAction action, File xmlReport) throws IOException {
         this(action);
+        boolean secure = !Boolean.getBoolean(this.getClass().getName() + ".UNSAFE");
+        TopLevelRatios.FileRun run = new TopLevelRatios.FileRun();
         try {
-            createDigester(!Boolean.getBoolean(this.getClass().getName() + ".UNSAFE")).parse(xmlReport);
+            if (useDigester()) {
+                currentRun = run;
+                createDigester(secure).parse(xmlReport);
+            } else {
+                InputStream is = new FileInputStream(xmlReport);
+                try {
+                    new CoverageReportBuilder(this, secure).parse(is, run);
+                } finally {
+                    is.close();
+                }
+            }
         } catch (SAXException e) {
             throw new IOException2("Failed to parse "+xmlReport,e);
+        } catch (XMLStreamException e) {
+            throw new IOException2("Failed to parse "+xmlReport,e);
+        } finally {
+            currentRun = null;
         }
+        topLevel.add(run);
         setParent(null);
     }
 
+    /**
+     * Reports are read with {@link CoverageReportBuilder} unless the
+     * <code>CoverageReport.DIGESTER</code> system property selects the
+     * older commons-digester based parser, which is kept for comparison.
+     */
+    private boolean useDigester() {
+        return Boolean.getBoolean(this.getClass().getName() + ".DIGESTER");
+    }
+
     @Override
     public CoverageReport getPreviousResult() {
         VectorCASTBuildAction prev = action.getPreviousResult();
@@ -63,6 +133,82 @@ public final class CoverageReport extends AggregatedReport<CoverageReport/*dummy
         return action.owner;
     }
 
+    /**
+     * @return the action owning this tree, null for a tree that has none
+     */
+    VectorCASTBuildAction getAction() {
+        return action;
+    }
+
+    @Override
+    List<CoverageHistoryIndex.Entry> getIndexedTrend(int maxHistory) {
+        // the root holds the same build-wide ratios as the action
+        return CoverageHistoryIndex.getTrend(action.owner, maxHistory);
+    }
+
+    /**
+     * Sets the back pointer to the owning action, for trees that were
+     * built before the action existed.
+     */
+    void setAction(VectorCASTBuildAction action) {
+        this.action = action;
+    }
+
+    /**
+     * Gets the build-wide ratios collected while this tree was parsed.
+     * @return ratios indexed statement, branch, basis path, MC/DC, function,
+     *      function call, complexity; null for metrics not present
+     */
+    Ratio[] getTopLevelRatios() {
+        return topLevel.getRatios();
+    }
+
+    /**
+     * Gets the number of nodes in the tree, this one included. Used to
+     * estimate its memory footprint.
+     */
+    int getNodeCount() {
+        if (nodeCount == 0) {
+            nodeCount = countNodes(this);
+        }
+        return nodeCount;
+    }
+
+    void setNodeCount(int nodeCount) {
+        this.nodeCount = nodeCount;
+    }
+
+    private static int countNodes(AggregatedReport<?,?,?> node) {
+        int n = 1;
+        for (AbstractReport<?,?> child : node.getChildren().values()) {
+            n += countNodes((AggregatedReport<?,?,?>) child);
+        }
+        return n;
+    }
+
+    /**
+     * Sets a value from a combined-coverage element, which replaces what
+     * the files before it contributed.
+     */
+    void setCombined(int metric, String value) {
+        getRatio(metric).setValue(value);
+        combined |= 1 << metric;
+    }
+
+    @Override
+    void mergeRatios(CoverageObject<?> other) {
+        int otherCombined = other instanceof CoverageReport ? ((CoverageReport) other).combined : 0;
+        for (int m = 0; m < 7; m++) {
+            Ratio r = other.getRatio(m);
+            if ((otherCombined & (1 << m)) != 0) {
+                getRatio(m).setValue(r.getNumeratorCount(), r.getDenominatorCount());
+                combined |= 1 << m;
+            } else if (r.isInitialized()) {
+                getRatio(m).add(r);
+            }
+        }
+    }
+
     /**
      * Creates a configured {@link Digester} instance for parsing report XML.
      */
@@ -83,6 +229,11 @@ public final class CoverageReport extends AggregatedReport<CoverageReport/*dummy
 
         digester.push(this);
 
+        // Build-wide values, collected during the same pass
+        digester.addRule(         "*/version", new VersionRule());
+        digester.addRule(         "report/combined-coverage", new TopLevelRule(true));
+        digester.addRule(         "*/coverage", new TopLevelRule(false));
+
         digester.addObjectCreate( "*/environment", EnvironmentReport.class);
         digester.addSetNext(      "*/environment", "add");
         digester.addSetProperties("*/environment");
@@ -104,4 +255,31 @@ public final class CoverageReport extends AggregatedReport<CoverageReport/*dummy
 
         return digester;
     }
+
+    /**
+     * Records the report format version for {@link TopLevelRatios.FileRun}.
+     */
+    private final class VersionRule extends Rule {
+        @Override
+        public void begin(String namespace, String name, Attributes attributes) throws Exception {
+            currentRun.setVersion(attributes.getValue("value"));
+        }
+    }
+
+    /**
+     * Feeds coverage elements to {@link TopLevelRatios.FileRun}. Registered ahead of
+     * the object creation rule, so the top of the stack is the owning report.
+     */
+    private final class TopLevelRule extends Rule {
+        private final boolean combined;
+
+        TopLevelRule(boolean combined) {
+            this.combined = combined;
+        }
+
+        @Override
+        public void begin(String namespace, String name, Attributes attributes) throws Exception {
+            currentRun.offer(getDigester().peek(), attributes.getValue("type"), attributes.getValue("value"), combined);
+        }
+    }
 }
@@ -0,0 +1,145 @@
+package com.vectorcast.plugins.vectorcastcoverage;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Pull-based builder that reads VectorCAST coverage XML straight into a
+ * {@link CoverageReport} tree.
+ *
+ * <p>
+ * It recognizes the same elements as the digester rules of
+ * {@link CoverageReport}: environment, unit and subprogram nodes anywhere in
+ * the document, the coverage elements below them, and the combined-coverage
+ * elements directly below the report element. Values are written into the
+ * {@link Ratio}s of the current node as they are read, without an
+ * intermediate bean per element.
+ */
+final class CoverageReportBuilder {
+
+    private final CoverageReport root;
+    private final boolean secure;
+    private final XMLInputFactory factory;
+
+    /**
+     * @param root tree to populate
+     * @param secure if true, DTDs and external entities are rejected
+     */
+    CoverageReportBuilder(CoverageReport root, boolean secure) {
+        this.root = root;
+        this.secure = secure;
+        this.factory = XMLInputFactory.newInstance();
+        if (secure) {
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+            factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        }
+    }
+
+    /**
+     * Parses one report file into the tree. The stream is not closed.
+     * @param in report stream
+     * @param run collector for the build-wide ratios of this file
+     * @throws XMLStreamException if the file is not a valid report
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    void parse(InputStream in, TopLevelRatios.FileRun run) throws XMLStreamException {
+        XMLStreamReader reader = factory.createXMLStreamReader(in);
+        try {
+            AbstractReport<?,?>[] nodes = new AbstractReport<?,?>[8];
+            int top = 0;
+            nodes[0] = root;
+            int depth = 0;
+            boolean inReport = false;
+
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                case XMLStreamConstants.DTD:
+                    if (secure) {
+                        throw new XMLStreamException("DOCTYPE is disallowed", reader.getLocation());
+                    }
+                    break;
+
+                case XMLStreamConstants.START_ELEMENT:
+                    depth++;
+                    String name = reader.getLocalName();
+                    if (depth == 1) {
+                        inReport = name.equals("report");
+                    }
+
+                    AbstractReport<?,?> child = null;
+                    if (name.equals("environment")) {
+                        child = new EnvironmentReport();
+                    } else if (name.equals("unit")) {
+                        child = new UnitReport();
+                    } else if (name.equals("subprogram")) {
+                        child = new SubprogramReport();
+                    } else if (name.equals("coverage")) {
+                        addCoverage(reader, nodes[top], run, false);
+                    } else if (name.equals("combined-coverage")) {
+                        if (inReport && depth == 2) {
+                            addCoverage(reader, nodes[top], run, true);
+                        }
+                    } else if (name.equals("version")) {
+                        run.setVersion(reader.getAttributeValue(null, "value"));
+                    }
+
+                    if (child != null) {
+                        child.setName(reader.getAttributeValue(null, "name"));
+                        // a node listed twice is summed up, not replaced
+                        AbstractReport<?,?> existing = ((AggregatedReport<?,?,?>) nodes[top]).getChildren().get(child.getName());
+                        if (existing != null && existing.getClass() == child.getClass()) {
+                            child = existing;
+                        } else {
+                            ((AggregatedReport) nodes[top]).add(child);
+                        }
+                        if (++top == nodes.length) {
+                            nodes = Arrays.copyOf(nodes, top * 2);
+                        }
+                        nodes[top] = child;
+                    }
+                    break;
+
+                case XMLStreamConstants.END_ELEMENT:
+                    depth--;
+                    String end = reader.getLocalName();
+                    if (end.equals("environment") || end.equals("unit") || end.equals("subprogram")) {
+                        nodes[top--] = null;
+                    }
+                    break;
+
+                default:
+                    break;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void addCoverage(XMLStreamReader reader, AbstractReport<?,?> node, TopLevelRatios.FileRun run, boolean combined) throws XMLStreamException {
+        String type = reader.getAttributeValue(null, "type");
+        String value = reader.getAttributeValue(null, "value");
+        int metric = CoverageObject.metricIndex(type);
+        if (metric < 0) {
+            throw new XMLStreamException("Invalid type: " + type, reader.getLocation());
+        }
+        try {
+            run.offer(node, type, value, combined);
+            if (combined) {
+                // only found directly below <report>, so the node is the root
+                root.setCombined(metric, value);
+            } else {
+                node.getRatio(metric).addValue(value);
+            }
+        } catch (IOException e) {
+            throw new XMLStreamException(e.getMessage(), reader.getLocation(), e);
+        } catch (RuntimeException e) {
+            throw new XMLStreamException("Invalid value: " + value, reader.getLocation(), e);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.vectorcast.plugins.vectorcastcoverage;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Policy;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.RemovalListener;
+import com.github.benmanes.caffeine.cache.Weigher;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Plugin-wide cache of the {@link CoverageReport} trees of recently viewed
+ * builds, keyed by the build's report folder.
+ *
+ * <p>
+ * Trees are weighed by their estimated heap size, so the cache holds a
+ * predictable amount of memory however large the individual reports are.
+ * Eviction is Caffeine's size-based policy, which keeps entries that are
+ * both recent and frequently used. The budget is set in the global
+ * configuration of {@link VectorCASTPublisher}.
+ *
+ * <p>
+ * The global configuration can keep the trees as {@link CoverageColumns}
+ * instead, several times smaller for large reports; the
+ * <code>CoverageReportCache.COLUMNAR</code> system property sets the default.
+ * Each lookup then returns a new view of the columns. The columns of the
+ * builds of a job share their names through the job's
+ * {@link NameDictionary}, and the environments and units that did not
+ * change from the build cached before. A shared node is weighed with one
+ * of the cached columns that hold it: when those leave the cache, the
+ * others that hold its nodes are weighed again.
+ */
+final class CoverageReportCache {
+
+    /**
+     * Rough heap footprint of one node: the node, its seven {@link Ratio}s,
+     * its name and its entry in the parent's map.
+     */
+    static final int NODE_BYTES = 512;
+
+    static final int DEFAULT_SIZE_MB = 256;
+
+    /**
+     * Default of {@link #isColumnar()}, until the global configuration is
+     * saved.
+     */
+    static final boolean COLUMNAR = Boolean.getBoolean(CoverageReportCache.class.getName() + ".COLUMNAR");
+
+    private static volatile boolean columnar = COLUMNAR;
+
+    /**
+     * Values are {@link CoverageReport}s, or {@link CoverageColumns} if
+     * {@link #isColumnar()}.
+     */
+    private static final Cache<String, Object> CACHE = Caffeine.newBuilder()
+            .maximumWeight(toWeight(DEFAULT_SIZE_MB))
+            .weigher(new Weigher<String, Object>() {
+                public int weigh(String key, Object value) {
+                    long bytes = value instanceof CoverageColumns
+                            ? ((CoverageColumns) value).getBytes()
+                            : (long) ((CoverageReport) value).getNodeCount() * NODE_BYTES;
+                    // in KB, so that large trees do not overflow
+                    return (int) Math.max(1, Math.min(Integer.MAX_VALUE, bytes / 1024));
+                }
+            })
+            .removalListener(new RemovalListener<String, Object>() {
+                public void onRemoval(String key, Object value, RemovalCause cause) {
+                    if (!(value instanceof CoverageColumns)) {
+                        return;
+                    }
+                    if (cause == RemovalCause.REPLACED && CACHE.asMap().get(key) == value) {
+                        // weighed again, see reweigh()
+                        return;
+                    }
+                    reweigh(((CoverageColumns) value).release());
+                }
+            })
+            .recordStats()
+            .build();
+
+    private CoverageReportCache() {
+    }
+
+    static CoverageReport get(File reportFolder) {
+        Object value = CACHE.getIfPresent(reportFolder.getPath());
+        if (value instanceof CoverageColumns) {
+            return ((CoverageColumns) value).view(null);
+        }
+        return (CoverageReport) value;
+    }
+
+    static void put(File reportFolder, CoverageReport r) {
+        CACHE.put(reportFolder.getPath(), columnar ? new CoverageColumns(r, NameDictionary.of(r)) : r);
+    }
+
+    /**
+     * @return true if the trees are kept as {@link CoverageColumns}
+     */
+    static boolean isColumnar() {
+        return columnar;
+    }
+
+    /**
+     * Changes the form the trees are kept in. The cached trees are dropped.
+     */
+    static void setColumnar(boolean value) {
+        if (columnar != value) {
+            columnar = value;
+            CACHE.invalidateAll();
+        }
+    }
+
+    /**
+     * Puts columns that are charged for more nodes than when they were
+     * weighed back into the cache, which weighs them again.
+     */
+    private static void reweigh(List<CoverageColumns> grown) {
+        if (grown.isEmpty()) {
+            return;
+        }
+        Set<Object> values = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        values.addAll(grown);
+        for (Map.Entry<String, Object> e : CACHE.asMap().entrySet()) {
+            if (values.contains(e.getValue())) {
+                CACHE.asMap().replace(e.getKey(), e.getValue(), e.getValue());
+            }
+        }
+    }
+
+    static void invalidate(File reportFolder) {
+        CACHE.invalidate(reportFolder.getPath());
+    }
+
+    /**
+     * Changes the memory budget. Entries over the new budget are evicted.
+     * @param megabytes budget in MB
+     */
+    static void setSize(int megabytes) {
+        Optional<Policy.Eviction<String, Object>> eviction = CACHE.policy().eviction();
+        if (eviction.isPresent()) {
+            eviction.get().setMaximum(toWeight(megabytes));
+        }
+    }
+
+    /**
+     * Summary of the cache usage, for the global configuration page.
+     */
+    static String getStatistics() {
+        CacheStats stats = CACHE.stats();
+        long used = 0;
+        Optional<Policy.Eviction<String, Object>> eviction = CACHE.policy().eviction();
+        if (eviction.isPresent() && eviction.get().weightedSize().isPresent()) {
+            used = eviction.get().weightedSize().getAsLong() / 1024;
+        }
+        return Messages.CoverageReportCache_Statistics(CACHE.estimatedSize(), used,
+                stats.hitCount(), stats.missCount(), stats.evictionCount(),
+                Math.round(stats.hitRate() * 100));
+    }
+
+    private static long toWeight(int megabytes) {
+        return Math.max(0, megabytes) * 1024L;
+    }
+}
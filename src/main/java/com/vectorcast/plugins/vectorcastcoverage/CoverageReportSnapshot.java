@@ -0,0 +1,368 @@
+package com.vectorcast.plugins.vectorcastcoverage;
+
+import hudson.util.IOException2;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Compact binary copy of a fully built {@link CoverageReport} tree.
+ *
+ * <p>
+ * The publisher stores one next to the coverage XML of a build, so that the
+ * tree can be restored without parsing the XML again. The file starts with a
+ * magic number and the format version, and ends with the number of nodes
+ * and the offset of the root record. Records are written children first; each holds a flag byte (node
+ * kind, failed, has name), the UTF-8 name, a bit mask of the metrics present
+ * followed by numerator and denominator of each of them as 64-bit counts
+ * (32-bit floats up to version 3, which is still read), and the offsets of
+ * its children.
+ *
+ * <p>
+ * The file is read into one heap buffer, and only the root is decoded up
+ * front. The children of a node are decoded into ordinary report objects
+ * the first time they are asked for, so browsing one unit of a large build
+ * only creates the nodes on the way to that unit; the buffer is a fraction
+ * of the size of the decoded tree. The file is not memory mapped: a mapping
+ * is only released by the garbage collector, and until then Windows does
+ * not let the build be deleted. The file is closed when this returns.
+ *
+ * @see VectorCASTBuildAction#getResult()
+ */
+final class CoverageReportSnapshot {
+
+    /**
+     * Name of the snapshot file in the build's vectorcastcoverage folder.
+     */
+    static final String FILE_NAME = "coverage-report.bin";
+
+    private static final int MAGIC = 0x56435253; // "VCRS"
+    private static final int VERSION = 4;
+
+    /**
+     * Last version that stored the ratios as floats.
+     */
+    private static final int FLOAT_VERSION = 3;
+    private static final int HEADER_SIZE = 8;
+
+    private static final int KIND_MASK = 0x03;
+    private static final int KIND_ROOT = 0;
+    private static final int KIND_ENVIRONMENT = 1;
+    private static final int KIND_UNIT = 2;
+    private static final int KIND_SUBPROGRAM = 3;
+    private static final int FLAG_FAILED = 0x04;
+    private static final int FLAG_NAME = 0x08;
+
+    private static final int METRICS = 7;
+
+    private CoverageReportSnapshot() {
+    }
+
+    /**
+     * Writes the snapshot of a report. The file is replaced atomically, so
+     * readers never see a partially written snapshot.
+     * @param report tree to store
+     * @param file destination
+     * @throws IOException if the file could not be written
+     */
+    static void write(CoverageReport report, File file) throws IOException {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            write(report, out);
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Writes the snapshot of a report to a stream, which is not closed.
+     * @param report tree to store
+     * @param os destination
+     * @throws IOException if the stream could not be written
+     */
+    static void write(CoverageReport report, OutputStream os) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        int root = writeNode(out, report);
+        out.writeInt(report.getNodeCount());
+        out.writeInt(root);
+        out.flush();
+    }
+
+    /**
+     * Restores a report tree from its snapshot, including the failed flags.
+     * Only the root is decoded here; see {@link Children}.
+     * @param action owner of the restored tree
+     * @param file snapshot file
+     * @return the report
+     * @throws IOException if the file is missing, corrupt or of an unknown version
+     */
+    static CoverageReport read(VectorCASTBuildAction action, File file) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        try {
+            return read(action, buf);
+        } catch (IOException e) {
+            throw new IOException2("Failed to read " + file, e);
+        }
+    }
+
+    /**
+     * Restores a report tree from a snapshot held in a buffer.
+     * @param action owner of the restored tree
+     * @param buf snapshot, from position 0 to the limit
+     * @return the report
+     * @throws IOException if the snapshot is corrupt or of an unknown version
+     */
+    static CoverageReport read(VectorCASTBuildAction action, ByteBuffer buf) throws IOException {
+        if (buf.limit() < HEADER_SIZE + 8 || buf.getInt(0) != MAGIC) {
+            throw new IOException("Not a coverage snapshot");
+        }
+        int version = buf.getInt(4);
+        if (version != VERSION && version != FLOAT_VERSION) {
+            throw new IOException("Unsupported coverage snapshot version " + version);
+        }
+        int count = buf.getInt(buf.limit() - 8);
+        int root = buf.getInt(buf.limit() - 4);
+        if (root < HEADER_SIZE || root >= buf.limit() - 8 || (buf.get(root) & KIND_MASK) != KIND_ROOT) {
+            throw new IOException("Corrupt coverage snapshot");
+        }
+
+        CoverageReport report = new CoverageReport(action);
+        try {
+            readNode(buf, root, report, version == FLOAT_VERSION);
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException2("Corrupt coverage snapshot", e);
+        }
+        report.setParent(null);
+        report.setNodeCount(count);
+        return report;
+    }
+
+    /**
+     * Checks every record of a snapshot that was not written by this
+     * process, such as one sent by an agent, so that a corrupt one is
+     * rejected up front instead of when a page decodes the broken record.
+     * Names, metrics and child tables must lie within the buffer, children
+     * must come before their parent and be of the kind below it, and the
+     * number of records must match the node count.
+     * @param buf snapshot, from position 0 to the limit
+     * @throws IOException if the snapshot is corrupt or of an unknown version
+     */
+    static void verify(ByteBuffer buf) throws IOException {
+        if (buf.limit() < HEADER_SIZE + 8 || buf.getInt(0) != MAGIC) {
+            throw new IOException("Not a coverage snapshot");
+        }
+        int version = buf.getInt(4);
+        if (version != VERSION && version != FLOAT_VERSION) {
+            throw new IOException("Unsupported coverage snapshot version " + version);
+        }
+        int ratioSize = version == FLOAT_VERSION ? 8 : 16;
+        int end = buf.limit() - 8;
+        int count = buf.getInt(end);
+        int root = buf.getInt(end + 4);
+        // a record takes at least a flag byte, the metric mask and a child count
+        if (count < 1 || count > (end - HEADER_SIZE) / 6) {
+            throw new IOException("Corrupt coverage snapshot: " + count + " nodes");
+        }
+        if (root < HEADER_SIZE || root >= end || (buf.get(root) & KIND_MASK) != KIND_ROOT) {
+            throw new IOException("Corrupt coverage snapshot: bad root");
+        }
+
+        int seen = 0;
+        int[] stack = new int[16];
+        int top = 0;
+        stack[top++] = root;
+        while (top > 0) {
+            int offset = stack[--top];
+            if (++seen > count) {
+                throw new IOException("Corrupt coverage snapshot: more than " + count + " nodes");
+            }
+            int pos = offset;
+            int flags = buf.get(pos++);
+            int kind = flags & KIND_MASK;
+            if ((flags & FLAG_NAME) != 0) {
+                if (pos + 2 > end) {
+                    throw new IOException("Corrupt coverage snapshot at " + offset);
+                }
+                pos += 2 + (buf.getShort(pos) & 0xFFFF);
+            }
+            if (pos >= end) {
+                throw new IOException("Corrupt coverage snapshot at " + offset);
+            }
+            pos += 1 + Integer.bitCount(buf.get(pos) & ((1 << METRICS) - 1)) * ratioSize;
+            if (pos + 4 > end) {
+                throw new IOException("Corrupt coverage snapshot at " + offset);
+            }
+            int children = buf.getInt(pos);
+            pos += 4;
+            if (children < 0 || children > (end - pos) / 4 || (kind == KIND_SUBPROGRAM && children > 0)) {
+                throw new IOException("Corrupt coverage snapshot at " + offset + ": " + children + " children");
+            }
+            for (int i = 0; i < children; i++) {
+                int child = buf.getInt(pos + 4 * i);
+                if (child < HEADER_SIZE || child >= offset || (buf.get(child) & KIND_MASK) != kind + 1) {
+                    throw new IOException("Corrupt coverage snapshot at " + offset + ": bad child " + child);
+                }
+                if (top == stack.length) {
+                    stack = Arrays.copyOf(stack, top * 2);
+                }
+                stack[top++] = child;
+            }
+        }
+        if (seen != count) {
+            throw new IOException("Corrupt coverage snapshot: " + seen + " nodes instead of " + count);
+        }
+    }
+
+    /**
+     * Writes the subtree of a node, children first.
+     * @return offset of the record of the node
+     */
+    private static int writeNode(DataOutputStream out, AbstractReport<?,?> node) throws IOException {
+        Map<String, ? extends AbstractReport<?,?>> children = ((AggregatedReport<?,?,?>) node).getChildren();
+        int[] offsets = new int[children.size()];
+        int i = 0;
+        for (AbstractReport<?,?> child : children.values()) {
+            offsets[i++] = writeNode(out, child);
+        }
+
+        // DataOutputStream.size() sticks at Integer.MAX_VALUE
+        int offset = out.size();
+        if (offset == Integer.MAX_VALUE) {
+            throw new IOException("Coverage snapshot too large");
+        }
+
+        int flags = kindOf(node);
+        if (node.isFailed())
+            flags |= FLAG_FAILED;
+        if (node.getName() != null)
+            flags |= FLAG_NAME;
+        out.writeByte(flags);
+        if (node.getName() != null) {
+            byte[] name = node.getName().getBytes(StandardCharsets.UTF_8);
+            if (name.length > 0xFFFF) {
+                throw new IOException("Name too long: " + node.getName().substring(0, 80) + "...");
+            }
+            out.writeShort(name.length);
+            out.write(name);
+        }
+
+        int present = 0;
+        for (int m = 0; m < METRICS; m++) {
+            if (node.getRatio(m).isInitialized())
+                present |= 1 << m;
+        }
+        out.writeByte(present);
+        for (int m = 0; m < METRICS; m++) {
+            if ((present & (1 << m)) != 0) {
+                Ratio r = node.getRatio(m);
+                out.writeLong(r.getNumeratorCount());
+                out.writeLong(r.getDenominatorCount());
+            }
+        }
+
+        out.writeInt(offsets.length);
+        for (int o : offsets) {
+            out.writeInt(o);
+        }
+        return offset;
+    }
+
+    /**
+     * Decodes the record at the given offset into the node. Its children
+     * are left to {@link Children}.
+     */
+    private static void readNode(ByteBuffer buf, int pos, AbstractReport<?,?> node, boolean floats) {
+        int flags = buf.get(pos++);
+        if ((flags & FLAG_NAME) != 0) {
+            int len = buf.getShort(pos) & 0xFFFF;
+            pos += 2;
+            byte[] name = new byte[len];
+            for (int i = 0; i < len; i++) {
+                name[i] = buf.get(pos + i);
+            }
+            pos += len;
+            node.setName(new String(name, StandardCharsets.UTF_8));
+        }
+        if ((flags & FLAG_FAILED) != 0)
+            node.setFailed();
+
+        int present = buf.get(pos++);
+        for (int m = 0; m < METRICS; m++) {
+            if ((present & (1 << m)) != 0) {
+                if (floats) {
+                    node.getRatio(m).setValue(Math.round((double) buf.getFloat(pos)), Math.round((double) buf.getFloat(pos + 4)));
+                    pos += 8;
+                } else {
+                    node.getRatio(m).setValue(buf.getLong(pos), buf.getLong(pos + 8));
+                    pos += 16;
+                }
+            }
+        }
+
+        int count = buf.getInt(pos);
+        if (count > 0) {
+            ((AggregatedReport<?,?,?>) node).setPendingChildren(new Children(buf, pos + 4, count, floats));
+        }
+    }
+
+    private static int kindOf(AbstractReport<?,?> node) {
+        if (node instanceof EnvironmentReport)
+            return KIND_ENVIRONMENT;
+        if (node instanceof UnitReport)
+            return KIND_UNIT;
+        if (node instanceof SubprogramReport)
+            return KIND_SUBPROGRAM;
+        return KIND_ROOT;
+    }
+
+    /**
+     * The not yet decoded children of a node restored from a snapshot.
+     * Holds on to the buffer until {@link AggregatedReport#getChildren()}
+     * needs them.
+     */
+    static final class Children implements AggregatedReport.PendingChildren {
+        private final ByteBuffer buf;
+        private final int table;
+        private final int count;
+        private final boolean floats;
+
+        private Children(ByteBuffer buf, int table, int count, boolean floats) {
+            this.buf = buf;
+            this.table = table;
+            this.count = count;
+            this.floats = floats;
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        public void readInto(AggregatedReport<?,?,?> p) {
+            AggregatedReport parent = p;
+            for (int i = 0; i < count; i++) {
+                int pos = buf.getInt(table + 4 * i);
+                AbstractReport child;
+                switch (buf.get(pos) & KIND_MASK) {
+                    case KIND_ENVIRONMENT:  child = new EnvironmentReport(); break;
+                    case KIND_UNIT:         child = new UnitReport(); break;
+                    case KIND_SUBPROGRAM:   child = new SubprogramReport(); break;
+                    default: throw new IllegalStateException("Corrupt coverage snapshot");
+                }
+                readNode(buf, pos, child, floats);
+                parent.add(child);
+                child.setParent(parent);
+            }
+        }
+    }
+}
@@ -0,0 +1,1436 @@
+package com.vectorcast.plugins.vectorcastcoverage;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Weigher;
+
+import hudson.model.Job;
+import hudson.model.Result;
+import hudson.model.Run;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Per-job store of the coverage of every environment, unit and subprogram
+ * of every build, so that the trend graph of one node does not have to load
+ * the {@link CoverageReport} of each earlier build.
+ *
+ * <p>
+ * The node file gives the nodes ids in the order they first appear. After
+ * a header, it holds one record per node: the id of its parent, -1 below
+ * the root, and its name as a length and UTF-8 bytes.
+ *
+ * <p>
+ * The series file starts with a magic number and the format version,
+ * followed by one segment per build, appended by the publisher. A segment
+ * holds the rows of the nodes that changed since the segment before it:
+ * build number, row count and length, the rows in id order, and an index
+ * of the ids with the offsets of their rows. A row has the node id, a bit
+ * mask of the metrics present, or a bit for a node the build no longer
+ * has, and numerator and denominator of each metric present as 64-bit
+ * counts. Unchanged builds take a few bytes. The value of a node in a build
+ * is its row in the latest segment up to the build's, one binary search
+ * per segment read.
+ *
+ * <p>
+ * The state file holds all rows of the latest segment, so that an append
+ * compares the new tree with it instead of reading the series. The new
+ * segment and the new state are both written as they are computed. A state
+ * file that does not match the series file, after a crash, is rebuilt from
+ * the series. A series file of version 1 or 2, which had a full row of
+ * every node per build, is converted the first time it is read.
+ *
+ * <p>
+ * Builds that were published before the store existed are not in it; the
+ * trend of a node continues into them by walking the builds as before.
+ * Results and deletions come from the {@link CoverageHistoryIndex}. When
+ * deleted builds are half of the segments, the series file is rewritten
+ * without them, the rows of each carried into the next segment that is
+ * kept; the last segment is always kept. The node file keeps its ids.
+ *
+ * <p>
+ * The node ids read from the files of recently used jobs are kept in
+ * memory up to 64 MB; the size can be set with the
+ * <code>CoverageSeriesStore.SIZE_MB</code> system property.
+ */
+final class CoverageSeriesStore {
+
+    static final String NODES_FILE = "vectorcastcoverage-series-nodes.bin";
+    static final String SERIES_FILE = "vectorcastcoverage-series.bin";
+    static final String STATE_FILE = "vectorcastcoverage-series-state.bin";
+
+    /**
+     * The node file of versions 1 and 2, a list of paths written with
+     * {@link DataOutputStream#writeUTF(String)}.
+     */
+    static final String PATHS_FILE = "vectorcastcoverage-nodes.bin";
+
+    private static final int MAGIC = 0x56435353; // "VCSS"
+    private static final int NODES_MAGIC = 0x5643534e; // "VCSN"
+    private static final int STATE_MAGIC = 0x56435354; // "VCST"
+    private static final int VERSION = 3;
+    private static final int HEADER_SIZE = 8;
+
+    /**
+     * Header of the state file: magic, version and the length of the
+     * series file it matches.
+     */
+    private static final int STATE_HEADER_SIZE = 16;
+
+    /**
+     * Build number, row count and length of a segment.
+     */
+    private static final int SEGMENT_HEADER_SIZE = 16;
+
+    /**
+     * Node id and the offset of its row in the segment.
+     */
+    private static final int INDEX_ENTRY_SIZE = 12;
+
+    private static final int METRICS = 7;
+    private static final int MAX_ROW_SIZE = 5 + METRICS * 16;
+
+    /**
+     * Mask bit of a node the build no longer has.
+     */
+    private static final int REMOVED = 0x80;
+
+    /**
+     * Versions 1 and 2 stored a full row per node and build, with the
+     * counts as floats or longs.
+     */
+    private static final int FLOAT_VERSION = 1;
+    private static final int DENSE_VERSION = 2;
+
+    private static final char SEPARATOR = '\u0000';
+
+    private static final long SIZE_MB = Math.max(0, Integer.getInteger(CoverageSeriesStore.class.getName() + ".SIZE_MB", 64));
+
+    /**
+     * What has been read of the files of recently used jobs, by job folder,
+     * weighed in KB.
+     */
+    private static final Cache<String, Catalog> CATALOGS = Caffeine.newBuilder()
+            .maximumWeight(SIZE_MB * 1024)
+            .weigher(new Weigher<String, Catalog>() {
+                public int weigh(String key, Catalog c) {
+                    return (int) Math.max(1, Math.min(Integer.MAX_VALUE, c.getBytes() / 1024));
+                }
+            })
+            .build();
+
+    /**
+     * The catalogs in use, by job folder, so that a job has one catalog,
+     * and so one lock, even while it is evicted from {@link #CATALOGS}.
+     */
+    private static final Cache<String, Catalog> LIVE = Caffeine.newBuilder().weakValues().build();
+
+    private static final Logger logger = Logger.getLogger(CoverageSeriesStore.class.getName());
+
+    private CoverageSeriesStore() {
+    }
+
+    /**
+     * Records the coverage of all nodes of a build.
+     * @param run the build
+     * @param report its report tree
+     * @throws IOException if the store could not be written
+     */
+    static void append(Run<?,?> run, CoverageReport report) throws IOException {
+        append(run.getParent().getRootDir(), run.getNumber(), report);
+    }
+
+    /**
+     * Records the coverage of all nodes of a build, unless it is already
+     * recorded.
+     */
+    static void append(File dir, int number, CoverageReport report) throws IOException {
+        Catalog c = catalog(dir);
+        synchronized (c) {
+            c.refresh();
+            if (c.indexOf(number) >= 0) {
+                return;
+            }
+
+            TreeRows rows = new TreeRows();
+            NodeWriter nodes = new NodeWriter(c);
+            try {
+                nodes.collect(report, -1, rows);
+            } finally {
+                nodes.close();
+            }
+            rows.sort();
+
+            long end;
+            FileChannel state = c.openState();
+            try {
+                FileChannel ch = FileChannel.open(c.seriesFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+                try {
+                    long pos = c.seriesLength;
+                    if (pos == 0) {
+                        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                        header.putInt(MAGIC).putInt(VERSION).flip();
+                        while (header.hasRemaining()) {
+                            pos += ch.write(header, pos);
+                        }
+                    }
+                    // drop a segment that an earlier append left incomplete
+                    ch.truncate(pos);
+                    SegmentWriter w = new SegmentWriter(ch, pos);
+                    diff(stateRows(state), rows, w);
+                    end = w.finish(number);
+                } finally {
+                    ch.close();
+                }
+            } finally {
+                state.close();
+            }
+
+            rows.rewind();
+            File tmp = new File(dir, STATE_FILE + ".tmp");
+            writeState(tmp, number, end, EMPTY, rows, false);
+            Files.move(tmp.toPath(), c.stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            c.refresh();
+        }
+    }
+
+    /**
+     * Gets the trend of a node up to and including its build: the build
+     * itself followed by the earlier builds that did not fail and have the
+     * node, newest first, as {@link AbstractReport#getPreviousResult()}
+     * would walk them.
+     * @param node the node
+     * @param max maximum number of builds
+     * @return the trend, or null if the store does not have the node in
+     *      its build
+     */
+    static List<CoverageHistoryIndex.Entry> getTrend(AbstractReport<?,?> node, int max) {
+        Run<?,?> run = node.getBuild();
+        if (run == null) {
+            return null;
+        }
+        Job<?,?> job = run.getParent();
+        List<CoverageHistoryIndex.Entry> history = CoverageHistoryIndex.read(job);
+        if (history == null) {
+            return null;
+        }
+        Map<Integer, CoverageHistoryIndex.Entry> builds = new HashMap<Integer, CoverageHistoryIndex.Entry>();
+        for (CoverageHistoryIndex.Entry h : history) {
+            builds.put(h.getNumber(), h);
+        }
+
+        List<String> path = pathOf(node);
+        List<CoverageHistoryIndex.Entry> trend = new ArrayList<CoverageHistoryIndex.Entry>();
+        int oldest = Integer.MAX_VALUE;
+        try {
+            Catalog c = catalog(job.getRootDir());
+            synchronized (c) {
+                c.refresh();
+                Integer id = c.idOf(path);
+                if (id == null || c.size == 0) {
+                    return null;
+                }
+                final int[] numbers = c.numbers;
+                List<Integer> order = new ArrayList<Integer>(c.size);
+                for (int s = 0; s < c.size; s++) {
+                    order.add(s);
+                    oldest = Math.min(oldest, numbers[s]);
+                }
+                // newest build first
+                Collections.sort(order, new Comparator<Integer>() {
+                    public int compare(Integer a, Integer b) {
+                        return numbers[b] < numbers[a] ? -1 : (numbers[b] == numbers[a] ? 0 : 1);
+                    }
+                });
+                FileChannel ch = FileChannel.open(c.seriesFile.toPath(), StandardOpenOption.READ);
+                try {
+                    Lookup l = c.lookup(ch, id);
+                    for (int s : order) {
+                        if (trend.size() >= max) {
+                            break;
+                        }
+                        int n = numbers[s];
+                        if (n > run.getNumber()) {
+                            continue;
+                        }
+                        CoverageHistoryIndex.Entry h = builds.get(n);
+                        if (trend.isEmpty()) {
+                            if (n != run.getNumber()) {
+                                return null;
+                            }
+                        } else if (h == null || h.getResult() == Result.FAILURE) {
+                            continue;
+                        }
+                        Ratio[] ratios = l.ratiosAt(s);
+                        if (ratios == null) {
+                            if (trend.isEmpty()) {
+                                return null;
+                            }
+                            continue;
+                        }
+                        trend.add(h != null
+                                ? new CoverageHistoryIndex.Entry(n, h.getTimestamp(), CoverageHistoryIndex.encode(h.getResult()), ratios)
+                                : new CoverageHistoryIndex.Entry(n, run.getTimeInMillis(), CoverageHistoryIndex.encode(run.getResult()), ratios));
+                    }
+                } finally {
+                    ch.close();
+                }
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to read the coverage series of " + job.getFullName(), e);
+            return null;
+        }
+
+        // continue into the builds published before the store existed
+        for (int i = history.size() - 1; i >= 0 && trend.size() < max; i--) {
+            CoverageHistoryIndex.Entry h = history.get(i);
+            if (h.getNumber() >= oldest || h.getResult() == Result.FAILURE) {
+                continue;
+            }
+            Run<?,?> b = job.getBuildByNumber(h.getNumber());
+            VectorCASTBuildAction a = b != null ? b.getAction(VectorCASTBuildAction.class) : null;
+            CoverageReport r = a != null ? a.getResult() : null;
+            CoverageObject<?> prev = r != null ? find(r, path) : null;
+            if (prev == null) {
+                continue;
+            }
+            for (CoverageObject<?> o = prev; o != null && trend.size() < max; o = o.getPreviousResult()) {
+                trend.add(new CoverageHistoryIndex.Entry(o.getBuild(), o));
+            }
+            break;
+        }
+        return trend;
+    }
+
+    /**
+     * Gets the recorded ratios of a node in one build.
+     * @return the ratios, null for metrics that were not present, or null
+     *      if the build or the node is not recorded
+     */
+    static Ratio[] read(File dir, int number, List<String> path) throws IOException {
+        Catalog c = catalog(dir);
+        synchronized (c) {
+            c.refresh();
+            Integer id = c.idOf(path);
+            int s = c.indexOf(number);
+            if (id == null || s < 0) {
+                return null;
+            }
+            FileChannel ch = FileChannel.open(c.seriesFile.toPath(), StandardOpenOption.READ);
+            try {
+                return c.lookup(ch, id).ratiosAt(s);
+            } finally {
+                ch.close();
+            }
+        }
+    }
+
+    /**
+     * Gets the names of a node and its parents below the root, top down.
+     */
+    static List<String> pathOf(AbstractReport<?,?> node) {
+        List<String> path = new ArrayList<String>();
+        for (AbstractReport<?,?> n = node; n != null && n.getParent() != null; n = n.getParent()) {
+            path.add(0, n.getName());
+        }
+        return path;
+    }
+
+    private static CoverageObject<?> find(CoverageReport r, List<String> path) {
+        AbstractReport<?,?> node = r;
+        for (String name : path) {
+            if (!(node instanceof AggregatedReport)) {
+                return null;
+            }
+            node = ((AggregatedReport<?,?,?>) node).getChildren().get(name);
+            if (node == null) {
+                return null;
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Drops the segments of deleted builds from the series file of a job
+     * once they are half of it.
+     * @param run the deleted build
+     */
+    static void removed(Run<?,?> run) {
+        Job<?,?> job = run.getParent();
+        List<CoverageHistoryIndex.Entry> history = CoverageHistoryIndex.read(job);
+        if (history == null) {
+            return;
+        }
+        Set<Integer> live = new HashSet<Integer>();
+        for (CoverageHistoryIndex.Entry h : history) {
+            live.add(h.getNumber());
+        }
+        live.remove(run.getNumber());
+        try {
+            prune(job.getRootDir(), live);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to prune the coverage series of " + job.getFullName(), e);
+        }
+    }
+
+    /**
+     * Rewrites the series file without the segments of builds that are not
+     * live, if they are at least half of the segments. The rows of a
+     * dropped segment are carried into the next segment that is kept, and
+     * the last segment is always kept, so the other builds keep their
+     * values.
+     * @param dir folder of the job
+     * @param live numbers of the builds to keep
+     * @return true if the file was rewritten
+     */
+    static boolean prune(File dir, Set<Integer> live) throws IOException {
+        Catalog c = catalog(dir);
+        synchronized (c) {
+            c.refresh();
+            int stale = 0;
+            for (int s = 0; s < c.size - 1; s++) {
+                if (!live.contains(c.numbers[s])) {
+                    stale++;
+                }
+            }
+            if (stale == 0 || stale * 2 < c.size) {
+                return false;
+            }
+            boolean stateMatches = c.stateLength() == c.seriesLength;
+
+            File tmp = new File(dir, SERIES_FILE + ".tmp");
+            File[] carries = {new File(dir, SERIES_FILE + ".carry0"), new File(dir, SERIES_FILE + ".carry1")};
+            long pos;
+            FileChannel in = FileChannel.open(c.seriesFile.toPath(), StandardOpenOption.READ);
+            try {
+                FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE,
+                        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+                try {
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                    header.putInt(MAGIC).putInt(VERSION).flip();
+                    pos = 0;
+                    while (header.hasRemaining()) {
+                        pos += out.write(header, pos);
+                    }
+                    // the rows of dropped segments, not written yet: one
+                    // segment of the series file, or a carry file
+                    int carried = -1;
+                    int carry = -1;
+                    for (int s = 0; s < c.size; s++) {
+                        boolean keep = s == c.size - 1 || live.contains(c.numbers[s]);
+                        if (!keep && carried < 0 && carry < 0) {
+                            carried = s;
+                        } else if (!keep) {
+                            int next = carry == 0 ? 1 : 0;
+                            FileChannel cc = carry >= 0 ? FileChannel.open(carries[carry].toPath(), StandardOpenOption.READ) : null;
+                            try {
+                                writeState(carries[next], c.numbers[s], 0,
+                                        cc != null ? stateRows(cc) : c.segmentRows(in, carried), c.segmentRows(in, s), true);
+                            } finally {
+                                if (cc != null) {
+                                    cc.close();
+                                }
+                            }
+                            carried = -1;
+                            carry = next;
+                        } else if (carried < 0 && carry < 0) {
+                            long offset = c.offsets[s];
+                            long end = offset + c.lengths[s];
+                            out.position(pos);
+                            while (offset < end) {
+                                long n = in.transferTo(offset, end - offset, out);
+                                if (n <= 0) {
+                                    throw new EOFException(c.seriesFile.toString());
+                                }
+                                offset += n;
+                                pos += n;
+                            }
+                        } else {
+                            FileChannel cc = carry >= 0 ? FileChannel.open(carries[carry].toPath(), StandardOpenOption.READ) : null;
+                            try {
+                                SegmentWriter w = new SegmentWriter(out, pos);
+                                overlay(cc != null ? stateRows(cc) : c.segmentRows(in, carried), c.segmentRows(in, s), true, w);
+                                pos = w.finish(c.numbers[s]);
+                            } finally {
+                                if (cc != null) {
+                                    cc.close();
+                                }
+                            }
+                            carried = -1;
+                            carry = -1;
+                        }
+                    }
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+                carries[0].delete();
+                carries[1].delete();
+            }
+            Files.move(tmp.toPath(), c.seriesFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (stateMatches) {
+                // the latest rows are the same, only the length moved
+                FileChannel state = FileChannel.open(c.stateFile.toPath(), StandardOpenOption.WRITE);
+                try {
+                    ByteBuffer length = ByteBuffer.allocate(8);
+                    length.putLong(pos).flip();
+                    long at = 8;
+                    while (length.hasRemaining()) {
+                        at += state.write(length, at);
+                    }
+                } finally {
+                    state.close();
+                }
+            }
+            c.reset();
+            c.refresh();
+            return true;
+        }
+    }
+
+    private static Catalog catalog(File dir) {
+        String key = dir.getPath();
+        Catalog c;
+        synchronized (LIVE) {
+            c = LIVE.getIfPresent(key);
+            if (c == null) {
+                c = new Catalog(dir);
+                LIVE.put(key, c);
+            }
+        }
+        // weighed again with what was read since
+        CATALOGS.put(key, c);
+        return c;
+    }
+
+    /**
+     * Writes the rows of a build that differ from those of the build
+     * before, and a removed row for each node the build does not have.
+     * @param prev all rows of the build before
+     * @param cur all rows of the build
+     */
+    private static void diff(Rows prev, Rows cur, SegmentWriter out) throws IOException {
+        boolean hasPrev = prev.next();
+        boolean hasCur = cur.next();
+        while (hasPrev || hasCur) {
+            if (hasCur && (!hasPrev || cur.row.id < prev.row.id)) {
+                out.write(cur.row);
+                hasCur = cur.next();
+            } else if (!hasCur || prev.row.id < cur.row.id) {
+                prev.row.mask = REMOVED;
+                out.write(prev.row);
+                hasPrev = prev.next();
+            } else {
+                if (!cur.row.sameAs(prev.row)) {
+                    out.write(cur.row);
+                }
+                hasPrev = prev.next();
+                hasCur = cur.next();
+            }
+        }
+    }
+
+    /**
+     * Writes the rows of two segments, those of the newer one replacing
+     * those of the older one.
+     * @param keepRemoved true to write removed rows, to get the changes of
+     *      both segments, false to leave them out, to get all rows
+     */
+    private static void overlay(Rows older, Rows newer, boolean keepRemoved, SegmentWriter out) throws IOException {
+        boolean hasOlder = older.next();
+        boolean hasNewer = newer.next();
+        while (hasOlder || hasNewer) {
+            Row r;
+            if (hasNewer && (!hasOlder || newer.row.id <= older.row.id)) {
+                r = newer.row;
+                if (hasOlder && older.row.id == newer.row.id) {
+                    hasOlder = older.next();
+                }
+                if (keepRemoved || (r.mask & REMOVED) == 0) {
+                    out.write(r);
+                }
+                hasNewer = newer.next();
+            } else {
+                r = older.row;
+                if (keepRemoved || (r.mask & REMOVED) == 0) {
+                    out.write(r);
+                }
+                hasOlder = older.next();
+            }
+        }
+    }
+
+    /**
+     * Writes a state file: its header and the overlay of two segments.
+     * @param seriesLength length of the series file the state matches
+     */
+    private static void writeState(File file, int number, long seriesLength, Rows older, Rows newer, boolean keepRemoved) throws IOException {
+        FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(STATE_HEADER_SIZE);
+            header.putInt(STATE_MAGIC).putInt(VERSION).putLong(seriesLength).flip();
+            long pos = 0;
+            while (header.hasRemaining()) {
+                pos += ch.write(header, pos);
+            }
+            SegmentWriter w = new SegmentWriter(ch, STATE_HEADER_SIZE);
+            overlay(older, newer, keepRemoved, w);
+            w.finish(number);
+        } finally {
+            ch.close();
+        }
+    }
+
+    /**
+     * Gets the rows of a state file.
+     */
+    private static Rows stateRows(FileChannel ch) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+        readFully(ch, header, STATE_HEADER_SIZE);
+        return segmentRows(ch, STATE_HEADER_SIZE, header.getInt(4), header.getLong(8));
+    }
+
+    private static Rows segmentRows(FileChannel ch, long offset, final int count, long length) {
+        final DataInputStream in = input(ch, offset + SEGMENT_HEADER_SIZE, offset + length - (long) INDEX_ENTRY_SIZE * count);
+        return new Rows() {
+            private int left = count;
+
+            boolean next() throws IOException {
+                if (left == 0) {
+                    return false;
+                }
+                left--;
+                row.read(in);
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Gets the rows of a segment of version 1 or 2, a full row for each
+     * node: the ids, then the rows with the counts of all metrics.
+     */
+    private static Rows denseRows(FileChannel ch, long offset, final int count, final boolean floats) {
+        final DataInputStream ids = input(ch, offset + 8, offset + 8 + 4L * count);
+        final DataInputStream values = input(ch, offset + 8 + 4L * count, Long.MAX_VALUE);
+        return new Rows() {
+            private int left = count;
+
+            boolean next() throws IOException {
+                if (left == 0) {
+                    return false;
+                }
+                left--;
+                row.id = ids.readInt();
+                row.mask = values.readUnsignedByte() & ~REMOVED;
+                for (int m = 0; m < METRICS; m++) {
+                    for (int i = 0; i < 2; i++) {
+                        long v = floats ? Math.round((double) values.readFloat()) : values.readLong();
+                        row.counts[2 * m + i] = (row.mask & (1 << m)) != 0 ? v : 0;
+                    }
+                }
+                return true;
+            }
+        };
+    }
+
+    private static final Rows EMPTY = new Rows() {
+        boolean next() {
+            return false;
+        }
+    };
+
+    private static DataInputStream input(FileChannel ch, long pos, long end) {
+        return new DataInputStream(new BufferedInputStream(new ChannelInput(ch, pos, end), 65536));
+    }
+
+    private static void readFully(FileChannel ch, ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = ch.read(buf, pos);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            pos += n;
+        }
+    }
+
+    /**
+     * A row: node id, metrics present or {@link #REMOVED}, and the counts
+     * of the metrics present.
+     */
+    private static final class Row {
+        int id;
+        int mask;
+        final long[] counts = new long[2 * METRICS];
+
+        boolean sameAs(Row o) {
+            if (mask != o.mask) {
+                return false;
+            }
+            for (int m = 0; m < METRICS; m++) {
+                if ((mask & (1 << m)) != 0
+                        && (counts[2 * m] != o.counts[2 * m] || counts[2 * m + 1] != o.counts[2 * m + 1])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        int size() {
+            return 5 + 16 * Integer.bitCount(mask & ~REMOVED);
+        }
+
+        void read(DataInput in) throws IOException {
+            id = in.readInt();
+            mask = in.readUnsignedByte();
+            for (int m = 0; m < METRICS; m++) {
+                boolean present = (mask & REMOVED) == 0 && (mask & (1 << m)) != 0;
+                counts[2 * m] = present ? in.readLong() : 0;
+                counts[2 * m + 1] = present ? in.readLong() : 0;
+            }
+        }
+
+        void write(DataOutput out) throws IOException {
+            out.writeInt(id);
+            out.writeByte(mask);
+            if ((mask & REMOVED) != 0) {
+                return;
+            }
+            for (int m = 0; m < METRICS; m++) {
+                if ((mask & (1 << m)) != 0) {
+                    out.writeLong(counts[2 * m]);
+                    out.writeLong(counts[2 * m + 1]);
+                }
+            }
+        }
+
+        Ratio[] toRatios() {
+            Ratio[] ratios = new Ratio[METRICS];
+            for (int m = 0; m < METRICS; m++) {
+                if ((mask & (1 << m)) != 0) {
+                    ratios[m] = new Ratio(counts[2 * m], counts[2 * m + 1]);
+                }
+            }
+            return ratios;
+        }
+    }
+
+    /**
+     * Rows in id order, read one at a time into {@link #row}.
+     */
+    private abstract static class Rows {
+        final Row row = new Row();
+
+        /**
+         * Reads the next row.
+         * @return false if there is none
+         */
+        abstract boolean next() throws IOException;
+    }
+
+    /**
+     * The rows of the nodes of a tree, sorted by id.
+     */
+    private static final class TreeRows extends Rows {
+        private AbstractReport<?,?>[] nodes = new AbstractReport<?,?>[1024];
+        /**
+         * Id in the high half, position in {@link #nodes} in the low half.
+         */
+        private long[] keys = new long[1024];
+        private int size;
+        private int next;
+
+        void add(int id, AbstractReport<?,?> node) {
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size * 2);
+                keys = Arrays.copyOf(keys, size * 2);
+            }
+            nodes[size] = node;
+            keys[size] = ((long) id << 32) | size;
+            size++;
+        }
+
+        void sort() {
+            Arrays.sort(keys, 0, size);
+        }
+
+        void rewind() {
+            next = 0;
+        }
+
+        boolean next() {
+            if (next == size) {
+                return false;
+            }
+            long key = keys[next++];
+            AbstractReport<?,?> node = nodes[(int) key];
+            row.id = (int) (key >>> 32);
+            row.mask = 0;
+            for (int m = 0; m < METRICS; m++) {
+                Ratio r = node.getRatio(m);
+                if (r.isInitialized()) {
+                    row.mask |= 1 << m;
+                    row.counts[2 * m] = r.getNumeratorCount();
+                    row.counts[2 * m + 1] = r.getDenominatorCount();
+                } else {
+                    row.counts[2 * m] = 0;
+                    row.counts[2 * m + 1] = 0;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Gives the nodes of a tree their ids, appending the new ones to the
+     * node file.
+     */
+    private static final class NodeWriter {
+        private final Catalog c;
+        private int next;
+        private DataOutputStream out;
+
+        NodeWriter(Catalog c) {
+            this.c = c;
+            this.next = c.nodes;
+        }
+
+        void collect(AggregatedReport<?,?,?> parent, int parentId, TreeRows rows) throws IOException {
+            for (AbstractReport<?,?> child : parent.getChildren().values()) {
+                // the children of a new node are new too
+                Integer id = parentId < c.nodes ? c.ids.get(key(parentId, child.getName())) : null;
+                if (id == null) {
+                    id = next++;
+                    add(parentId, child.getName());
+                }
+                rows.add(id, child);
+                if (child instanceof AggregatedReport && !(child instanceof SubprogramReport)) {
+                    collect((AggregatedReport<?,?,?>) child, id, rows);
+                }
+            }
+        }
+
+        private void add(int parent, String name) throws IOException {
+            if (out == null) {
+                // drop a record that an earlier append left incomplete
+                FileChannel ch = FileChannel.open(c.nodesFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+                try {
+                    ch.truncate(c.nodesLength);
+                } finally {
+                    ch.close();
+                }
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(c.nodesFile, true)));
+                if (c.nodesLength == 0) {
+                    out.writeInt(NODES_MAGIC);
+                    out.writeInt(VERSION);
+                }
+            }
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(parent);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        void close() throws IOException {
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Writes a segment where it starts: the rows as they come, then the
+     * index and the header once the rows are known.
+     */
+    private static final class SegmentWriter {
+        private final FileChannel ch;
+        private final long start;
+        private final DataOutputStream out;
+        private long length = SEGMENT_HEADER_SIZE;
+        private int count;
+        private int[] ids = new int[1024];
+        private long[] offsets = new long[1024];
+
+        SegmentWriter(FileChannel ch, long start) {
+            this.ch = ch;
+            this.start = start;
+            this.out = new DataOutputStream(new BufferedOutputStream(new ChannelOutput(ch, start + SEGMENT_HEADER_SIZE), 65536));
+        }
+
+        void write(Row r) throws IOException {
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, count * 2);
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            ids[count] = r.id;
+            offsets[count] = length;
+            count++;
+            r.write(out);
+            length += r.size();
+        }
+
+        /**
+         * @return the position after the segment
+         */
+        long finish(int number) throws IOException {
+            for (int i = 0; i < count; i++) {
+                out.writeInt(ids[i]);
+                out.writeLong(offsets[i]);
+            }
+            out.flush();
+            length += (long) INDEX_ENTRY_SIZE * count;
+            ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+            header.putInt(number).putInt(count).putLong(length).flip();
+            long pos = start;
+            while (header.hasRemaining()) {
+                pos += ch.write(header, pos);
+            }
+            return start + length;
+        }
+    }
+
+    /**
+     * Reads a file from a position up to an end.
+     */
+    private static final class ChannelInput extends InputStream {
+        private final FileChannel ch;
+        private final long end;
+        private long pos;
+
+        ChannelInput(FileChannel ch, long pos, long end) {
+            this.ch = ch;
+            this.pos = pos;
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (pos >= end) {
+                return -1;
+            }
+            int n = ch.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - pos)), pos);
+            if (n > 0) {
+                pos += n;
+            }
+            return n;
+        }
+    }
+
+    /**
+     * Writes a file from a position.
+     */
+    private static final class ChannelOutput extends OutputStream {
+        private final FileChannel ch;
+        private long pos;
+
+        ChannelOutput(FileChannel ch, long pos) {
+            this.ch = ch;
+            this.pos = pos;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+            while (buf.hasRemaining()) {
+                pos += ch.write(buf, pos);
+            }
+        }
+    }
+
+    private static String key(int parent, String name) {
+        return Integer.toString(parent) + SEPARATOR + name;
+    }
+
+    /**
+     * Finds the row of a node as of each segment, reading each segment at
+     * most once.
+     */
+    private static final class Lookup {
+        private final Catalog c;
+        private final FileChannel ch;
+        private final int id;
+        /**
+         * The segment with the row as of each segment, -1 for none, -2 if
+         * not known yet.
+         */
+        private final int[] source;
+        private final Row[] rows;
+
+        Lookup(Catalog c, FileChannel ch, int id) {
+            this.c = c;
+            this.ch = ch;
+            this.id = id;
+            this.source = new int[c.size];
+            this.rows = new Row[c.size];
+            Arrays.fill(source, -2);
+        }
+
+        /**
+         * @return the ratios of the node as of a segment, or null if the
+         *      build does not have it
+         */
+        Ratio[] ratiosAt(int segment) throws IOException {
+            int s = segment;
+            int found = -1;
+            while (s >= 0) {
+                if (source[s] != -2) {
+                    found = source[s];
+                    break;
+                }
+                Row r = new Row();
+                if (c.find(ch, s, id, r)) {
+                    rows[s] = r;
+                    found = s;
+                    break;
+                }
+                s--;
+            }
+            for (int i = Math.max(s, 0); i <= segment; i++) {
+                source[i] = found;
+            }
+            return found < 0 || (rows[found].mask & REMOVED) != 0 ? null : rows[found].toRatios();
+        }
+    }
+
+    /**
+     * The node ids and the segment positions read so far from the files of
+     * one job. Both files are only appended to, so a refresh reads what was
+     * added since the last one.
+     */
+    private static final class Catalog {
+        final File dir;
+        final File nodesFile;
+        final File seriesFile;
+        final File stateFile;
+
+        /**
+         * Node ids by parent id and name.
+         */
+        final Map<String, Integer> ids = new HashMap<String, Integer>();
+        int nodes;
+        long nameChars;
+        long nodesLength;
+
+        /**
+         * Segments in file order.
+         */
+        int size;
+        int[] numbers = new int[16];
+        long[] offsets = new long[16];
+        int[] counts = new int[16];
+        long[] lengths = new long[16];
+        long seriesLength;
+
+        Catalog(File dir) {
+            this.dir = dir;
+            this.nodesFile = new File(dir, NODES_FILE);
+            this.seriesFile = new File(dir, SERIES_FILE);
+            this.stateFile = new File(dir, STATE_FILE);
+        }
+
+        /**
+         * @return estimated heap size in bytes: the map entry, id and key
+         *      of each node, and the segments
+         */
+        long getBytes() {
+            return 120L * nodes + 2 * nameChars + 28L * numbers.length;
+        }
+
+        void refresh() throws IOException {
+            if (seriesLength == 0) {
+                int version = versionOf(seriesFile);
+                if (version == FLOAT_VERSION || version == DENSE_VERSION) {
+                    convert(version);
+                } else if (version != 0 && version != VERSION) {
+                    throw new IOException("Unsupported coverage series version " + version + ": " + seriesFile);
+                }
+            }
+            readNodes();
+            readSegments();
+        }
+
+        private static int versionOf(File f) throws IOException {
+            if (f.length() < HEADER_SIZE) {
+                return 0;
+            }
+            FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+            try {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                readFully(ch, header, 0);
+                if (header.getInt(0) != MAGIC) {
+                    throw new IOException("Not a coverage series file: " + f);
+                }
+                return header.getInt(4);
+            } finally {
+                ch.close();
+            }
+        }
+
+        private void readNodes() throws IOException {
+            long length = nodesFile.length();
+            if (length <= nodesLength) {
+                return;
+            }
+            FileChannel ch = FileChannel.open(nodesFile.toPath(), StandardOpenOption.READ);
+            try {
+                DataInputStream in = input(ch, nodesLength, length);
+                if (nodesLength == 0) {
+                    if (length < HEADER_SIZE) {
+                        return;
+                    }
+                    if (in.readInt() != NODES_MAGIC || in.readInt() != VERSION) {
+                        throw new IOException("Not a coverage series node file: " + nodesFile);
+                    }
+                    nodesLength = HEADER_SIZE;
+                }
+                while (length - nodesLength >= 8) {
+                    int parent = in.readInt();
+                    int n = in.readInt();
+                    if (n < 0 || n > length - nodesLength - 8) {
+                        // the rest is being written
+                        break;
+                    }
+                    byte[] bytes = new byte[n];
+                    in.readFully(bytes);
+                    add(parent, new String(bytes, StandardCharsets.UTF_8));
+                    nodesLength += 8 + n;
+                }
+            } finally {
+                ch.close();
+            }
+        }
+
+        private void add(int parent, String name) {
+            ids.put(key(parent, name), nodes++);
+            nameChars += name.length();
+        }
+
+        private void readSegments() throws IOException {
+            long length = seriesFile.length();
+            if (length <= seriesLength || length < HEADER_SIZE) {
+                return;
+            }
+            if (seriesLength == 0) {
+                seriesLength = HEADER_SIZE;
+            }
+            FileChannel ch = FileChannel.open(seriesFile.toPath(), StandardOpenOption.READ);
+            try {
+                ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+                while (seriesLength + SEGMENT_HEADER_SIZE <= length) {
+                    header.clear();
+                    readFully(ch, header, seriesLength);
+                    int number = header.getInt(0);
+                    int count = header.getInt(4);
+                    long segment = header.getLong(8);
+                    if (count < 0 || segment < SEGMENT_HEADER_SIZE + (long) INDEX_ENTRY_SIZE * count
+                            || segment > length - seriesLength) {
+                        break;
+                    }
+                    insert(number, seriesLength, count, segment);
+                    seriesLength += segment;
+                }
+            } finally {
+                ch.close();
+            }
+        }
+
+        /**
+         * Converts a series file of version 1 or 2 and its node file, or
+         * drops them if that fails.
+         */
+        private void convert(int version) {
+            File paths = new File(dir, PATHS_FILE);
+            try {
+                convertNodes(paths);
+                convertSeries(version);
+                logger.info("Converted " + seriesFile + " to rows of changed nodes");
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to convert " + seriesFile + ", the trends of its builds are read from the builds", e);
+                seriesFile.delete();
+                stateFile.delete();
+                nodesFile.delete();
+            }
+            paths.delete();
+        }
+
+        /**
+         * Writes the node file from a list of paths, keeping the ids.
+         */
+        private void convertNodes(File paths) throws IOException {
+            Map<String, Integer> pathIds = new HashMap<String, Integer>();
+            File tmp = new File(dir, NODES_FILE + ".tmp");
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(paths)));
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+                try {
+                    out.writeInt(NODES_MAGIC);
+                    out.writeInt(VERSION);
+                    while (true) {
+                        String path;
+                        try {
+                            path = in.readUTF();
+                        } catch (EOFException e) {
+                            // the end, or cut short by a crash
+                            break;
+                        }
+                        int cut = path.lastIndexOf(SEPARATOR);
+                        Integer parent = cut < 0 ? Integer.valueOf(-1) : pathIds.get(path.substring(0, cut));
+                        if (parent == null) {
+                            throw new IOException("No parent of node " + path.replace(SEPARATOR, '/') + " in " + paths);
+                        }
+                        byte[] bytes = path.substring(cut + 1).getBytes(StandardCharsets.UTF_8);
+                        out.writeInt(parent);
+                        out.writeInt(bytes.length);
+                        out.write(bytes);
+                        pathIds.put(path, pathIds.size());
+                    }
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+            Files.move(tmp.toPath(), nodesFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        /**
+         * Writes each full segment of a series file of version 1 or 2 as
+         * the changes since the one before, dropping a segment an append
+         * left incomplete.
+         */
+        private void convertSeries(int version) throws IOException {
+            boolean floats = version == FLOAT_VERSION;
+            int rowSize = floats ? 1 + METRICS * 8 : 1 + METRICS * 16;
+            File tmp = new File(dir, SERIES_FILE + ".tmp");
+            File state = new File(dir, STATE_FILE + ".tmp");
+            FileChannel in = FileChannel.open(seriesFile.toPath(), StandardOpenOption.READ);
+            try {
+                long length = in.size();
+                long last = -1;
+                int lastNumber = 0;
+                int lastCount = 0;
+                long pos = 0;
+                FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE,
+                        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+                try {
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                    header.putInt(MAGIC).putInt(VERSION).flip();
+                    while (header.hasRemaining()) {
+                        pos += out.write(header, pos);
+                    }
+                    long offset = HEADER_SIZE;
+                    while (offset + 8 <= length) {
+                        header.clear();
+                        readFully(in, header, offset);
+                        int number = header.getInt(0);
+                        int count = header.getInt(4);
+                        long end = offset + 8 + (long) count * (4 + rowSize);
+                        if (count < 0 || end > length) {
+                            break;
+                        }
+                        SegmentWriter w = new SegmentWriter(out, pos);
+                        diff(last < 0 ? EMPTY : denseRows(in, last, lastCount, floats), denseRows(in, offset, count, floats), w);
+                        pos = w.finish(number);
+                        last = offset;
+                        lastNumber = number;
+                        lastCount = count;
+                        offset = end;
+                    }
+                } finally {
+                    out.close();
+                }
+                writeState(state, lastNumber, pos, EMPTY, last < 0 ? EMPTY : denseRows(in, last, lastCount, floats), false);
+            } finally {
+                in.close();
+            }
+            Files.move(state.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.move(tmp.toPath(), seriesFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        /**
+         * @return the length of the series file the state file matches, or
+         *      -1 if it is missing or incomplete
+         */
+        long stateLength() throws IOException {
+            long length = stateFile.length();
+            if (length < STATE_HEADER_SIZE + SEGMENT_HEADER_SIZE) {
+                return -1;
+            }
+            FileChannel ch = FileChannel.open(stateFile.toPath(), StandardOpenOption.READ);
+            try {
+                ByteBuffer header = ByteBuffer.allocate(STATE_HEADER_SIZE + SEGMENT_HEADER_SIZE);
+                readFully(ch, header, 0);
+                if (header.getInt(0) != STATE_MAGIC || header.getInt(4) != VERSION
+                        || STATE_HEADER_SIZE + header.getLong(24) != length) {
+                    return -1;
+                }
+                return header.getLong(8);
+            } finally {
+                ch.close();
+            }
+        }
+
+        /**
+         * Opens the state file, first rebuilding it from the series file
+         * if it does not match it.
+         */
+        FileChannel openState() throws IOException {
+            if (stateLength() != seriesLength) {
+                logger.info("Rebuilding " + stateFile + " from " + seriesFile);
+                File[] tmp = {new File(dir, STATE_FILE + ".tmp0"), new File(dir, STATE_FILE + ".tmp1")};
+                writeState(tmp[0], 0, seriesLength, EMPTY, EMPTY, false);
+                int prev = 0;
+                if (size > 0) {
+                    FileChannel in = FileChannel.open(seriesFile.toPath(), StandardOpenOption.READ);
+                    try {
+                        for (int s = 0; s < size; s++) {
+                            int next = 1 - prev;
+                            FileChannel p = FileChannel.open(tmp[prev].toPath(), StandardOpenOption.READ);
+                            try {
+                                writeState(tmp[next], numbers[s], seriesLength, stateRows(p), segmentRows(in, s), false);
+                            } finally {
+                                p.close();
+                            }
+                            prev = next;
+                        }
+                    } finally {
+                        in.close();
+                    }
+                }
+                Files.move(tmp[prev].toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                tmp[1 - prev].delete();
+            }
+            return FileChannel.open(stateFile.toPath(), StandardOpenOption.READ);
+        }
+
+        /**
+         * Forgets the segments read so far, after the series file was
+         * rewritten.
+         */
+        void reset() {
+            size = 0;
+            seriesLength = 0;
+        }
+
+        private void insert(int number, long offset, int count, long length) {
+            if (size == numbers.length) {
+                numbers = Arrays.copyOf(numbers, size * 2);
+                offsets = Arrays.copyOf(offsets, size * 2);
+                counts = Arrays.copyOf(counts, size * 2);
+                lengths = Arrays.copyOf(lengths, size * 2);
+            }
+            numbers[size] = number;
+            offsets[size] = offset;
+            counts[size] = count;
+            lengths[size] = length;
+            size++;
+        }
+
+        /**
+         * @return the segment of a build, or -1
+         */
+        int indexOf(int number) {
+            // usually one of the latest
+            for (int s = size - 1; s >= 0; s--) {
+                if (numbers[s] == number) {
+                    return s;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @return the id of the node at a path, or null if there is none
+         */
+        Integer idOf(List<String> path) {
+            Integer id = null;
+            for (String name : path) {
+                id = ids.get(key(id != null ? id : -1, name));
+                if (id == null) {
+                    return null;
+                }
+            }
+            return id;
+        }
+
+        Rows segmentRows(FileChannel ch, int segment) {
+            return CoverageSeriesStore.segmentRows(ch, offsets[segment], counts[segment], lengths[segment]);
+        }
+
+        Lookup lookup(FileChannel ch, int id) {
+            return new Lookup(this, ch, id);
+        }
+
+        /**
+         * Reads the row of a node in one segment.
+         * @return false if the node has no row in it
+         */
+        boolean find(FileChannel ch, int segment, int id, Row row) throws IOException {
+            long index = offsets[segment] + lengths[segment] - (long) INDEX_ENTRY_SIZE * counts[segment];
+            ByteBuffer buf = ByteBuffer.allocate(MAX_ROW_SIZE);
+
+            int lo = 0, hi = counts[segment] - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                buf.clear().limit(INDEX_ENTRY_SIZE);
+                readFully(ch, buf, index + (long) INDEX_ENTRY_SIZE * mid);
+                int v = buf.getInt(0);
+                if (v < id) {
+                    lo = mid + 1;
+                } else if (v > id) {
+                    hi = mid - 1;
+                } else {
+                    long at = offsets[segment] + buf.getLong(4);
+                    buf.clear().limit((int) Math.min(MAX_ROW_SIZE, index - at));
+                    readFully(ch, buf, at);
+                    row.read(new DataInputStream(new ByteArrayInputStream(buf.array(), 0, buf.limit())));
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
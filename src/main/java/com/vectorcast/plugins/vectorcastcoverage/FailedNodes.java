@@ -0,0 +1,88 @@
+package com.vectorcast.plugins.vectorcastcoverage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The nodes of a {@link CoverageReport} tree that a {@link Rule} marked as
+ * failed, as their positions in a pre-order walk of the tree.
+ *
+ * <p>
+ * The rule is enforced once when the build publishes its coverage, and
+ * {@link VectorCASTBuildAction} keeps these positions. A tree parsed again
+ * from the same XML files usually has the same shape, children being sorted
+ * by name, so the positions mark the same nodes without running the rule
+ * again. The action also keeps the node count of the tree, and enforces the
+ * rule again on a tree of another size, such as one from a parser that
+ * replaces duplicate nodes instead of merging them.
+ */
+final class FailedNodes {
+
+    private FailedNodes() {
+    }
+
+    /**
+     * Gets the positions of the failed nodes.
+     * @param report the tree, after the rule was enforced
+     * @return the positions in ascending order
+     */
+    static int[] collect(CoverageReport report) {
+        List<Integer> found = new ArrayList<Integer>();
+        collect(report, 0, found);
+        int[] ids = new int[found.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = found.get(i);
+        }
+        return ids;
+    }
+
+    /**
+     * @return the position after the subtree
+     */
+    private static int collect(AbstractReport<?,?> node, int id, List<Integer> found) {
+        if (node.isFailed()) {
+            found.add(id);
+        }
+        id++;
+        for (AbstractReport<?,?> child : childrenOf(node)) {
+            id = collect(child, id, found);
+        }
+        return id;
+    }
+
+    /**
+     * Marks the nodes at the given positions as failed, and through them
+     * their parents.
+     * @param report the tree
+     * @param ids positions in ascending order, as returned by {@link #collect(CoverageReport)}
+     */
+    static void apply(CoverageReport report, int[] ids) {
+        if (ids.length > 0) {
+            apply(report, new int[] {0}, ids, new int[] {0});
+        }
+    }
+
+    private static void apply(AbstractReport<?,?> node, int[] id, int[] ids, int[] next) {
+        if (ids[next[0]] == id[0]) {
+            node.setFailed();
+            next[0]++;
+        }
+        id[0]++;
+        for (AbstractReport<?,?> child : childrenOf(node)) {
+            if (next[0] == ids.length) {
+                return;
+            }
+            apply(child, id, ids, next);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Iterable<AbstractReport<?,?>> childrenOf(AbstractReport<?,?> node) {
+        if (!(node instanceof AggregatedReport)) {
+            return new ArrayList<AbstractReport<?,?>>();
+        }
+        Map<String, ?> children = ((AggregatedReport<?,?,?>) node).getChildren();
+        return (Iterable<AbstractReport<?,?>>) children.values();
+    }
+}
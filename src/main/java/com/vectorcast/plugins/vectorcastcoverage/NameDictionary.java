@@ -0,0 +1,218 @@
+package com.vectorcast.plugins.vectorcastcoverage;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import hudson.model.Job;
+import hudson.model.Run;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Per-job dictionary of the environment, unit and subprogram names of all
+ * builds, giving each distinct name an int id.
+ *
+ * <p>
+ * The names are mostly the same from one build to the next, so the trees
+ * of several builds of a job share one copy of each name: the
+ * {@link CoverageColumns} of a build store only the ids of its names.
+ *
+ * <p>
+ * The dictionary is kept next to the {@link CoverageHistoryIndex} in the
+ * job's folder. The file is a list of names, each written with
+ * {@link DataOutputStream#writeUTF(String)}, and the id of a name is its
+ * position; it is only appended to, so ids never change. There is one
+ * instance per job folder for as long as anything uses it, so ids handed
+ * out but not saved yet cannot be given to another name.
+ *
+ * <p>
+ * The file is never pruned: names of nodes that were renamed or removed,
+ * and of deleted builds, stay in it. The ids are only held by the
+ * {@link CoverageColumns} in memory, never on disk, so the file can be
+ * deleted while Jenkins is stopped and the ids are given out again as
+ * trees are cached. Only the columnar form uses the ids; the object tree
+ * of {@link CoverageReport} keeps its String names, which the views and
+ * URLs use.
+ */
+final class NameDictionary {
+
+    static final String FILE_NAME = "vectorcastcoverage-names.bin";
+
+    /**
+     * The dictionaries in use, by job folder.
+     */
+    private static final Cache<String, NameDictionary> DICTIONARIES = Caffeine.newBuilder().weakValues().build();
+
+    private static final Logger logger = Logger.getLogger(NameDictionary.class.getName());
+
+    /**
+     * The file, or null for a dictionary that is not stored.
+     */
+    private final File file;
+
+    private final Map<String, Integer> ids = new HashMap<String, Integer>();
+
+    private String[] names = new String[16];
+
+    private int size;
+
+    /**
+     * Number of names in the file, and its length up to the last of them.
+     */
+    private int saved;
+    private long savedLength;
+
+    /**
+     * Creates a dictionary that is not stored.
+     */
+    NameDictionary() {
+        this.file = null;
+    }
+
+    NameDictionary(File file) throws IOException {
+        this.file = file;
+        if (!file.isFile()) {
+            return;
+        }
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        long length = 0;
+        try {
+            while (length < bytes.length) {
+                add(in.readUTF());
+                length = bytes.length - in.available();
+            }
+        } catch (EOFException e) {
+            // cut short by a crash, the next save drops it
+        }
+        saved = size;
+        savedLength = length;
+    }
+
+    /**
+     * Gets the dictionary of a job.
+     * @param dir the job's folder
+     * @return the dictionary, which is not stored if its file cannot be read
+     */
+    static NameDictionary of(File dir) {
+        synchronized (DICTIONARIES) {
+            String key = dir.getPath();
+            NameDictionary d = DICTIONARIES.getIfPresent(key);
+            if (d == null) {
+                File f = new File(dir, FILE_NAME);
+                try {
+                    d = new NameDictionary(f);
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Failed to read " + f + ", names are not shared", e);
+                    d = new NameDictionary();
+                }
+                DICTIONARIES.put(key, d);
+            }
+            return d;
+        }
+    }
+
+    /**
+     * Gets the dictionary of the job of a report tree.
+     * @return the dictionary, or a new one that is not stored if the tree
+     *      has no build
+     */
+    static NameDictionary of(CoverageReport report) {
+        Run<?,?> run = report.getAction() != null ? report.getBuild() : null;
+        if (run == null) {
+            return new NameDictionary();
+        }
+        Job<?,?> job = run.getParent();
+        return job != null ? of(job.getRootDir()) : new NameDictionary();
+    }
+
+    /**
+     * Gets the id of a name, adding it if it is new.
+     */
+    synchronized int idOf(String name) {
+        Integer id = ids.get(name);
+        return id != null ? id : add(name);
+    }
+
+    synchronized String nameOf(int id) {
+        if (id < 0 || id >= size) {
+            throw new IllegalArgumentException("Unknown name id " + id);
+        }
+        return names[id];
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return true if the names are stored in the job's folder
+     */
+    boolean isStored() {
+        return file != null;
+    }
+
+    /**
+     * Appends the names added since the last save to the file.
+     * @throws IOException if the file could not be written
+     */
+    synchronized void save() throws IOException {
+        if (file == null || saved == size) {
+            return;
+        }
+        // drop a record that an earlier save left incomplete
+        if (file.isFile()) {
+            FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+            try {
+                ch.truncate(savedLength);
+            } finally {
+                ch.close();
+            }
+        }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        try {
+            for (int i = saved; i < size; i++) {
+                out.writeUTF(names[i]);
+            }
+        } finally {
+            out.close();
+        }
+        saved = size;
+        savedLength = file.length();
+    }
+
+    /**
+     * Saves the dictionary, logging a failure: the ids stay valid in
+     * memory, and the names are saved with the next ones.
+     */
+    void trySave() {
+        try {
+            save();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to save " + file, e);
+        }
+    }
+
+    private int add(String name) {
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+        }
+        names[size] = name;
+        ids.put(name, size);
+        return size++;
+    }
+}
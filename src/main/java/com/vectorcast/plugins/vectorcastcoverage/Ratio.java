@@ -2,12 +2,20 @@ package com.vectorcast.plugins.vectorcastcoverage;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.kohsuke.stapler.export.Exported;
 import org.kohsuke.stapler.export.ExportedBean;
 
 /**
- * Represents x/y where x={@link #numerator} and y={@link #denominator}.
+ * Represents x/y where x={@link #getNumeratorCount()} and y={@link #getDenominatorCount()}.
+ *
+ * <p>
+ * Both are exact 64-bit counts, so that sums over many files and
+ * environments do not depend on the order they are added in. Reports that
+ * still carry a fraction, like "1,3", are accepted and rounded to the
+ * nearest count, with a warning in the log.
  * 
  * @author Kohsuke Kawaguchi
  */
@@ -15,39 +23,84 @@ import org.kohsuke.stapler.export.ExportedBean;
 final public class Ratio implements Serializable {
   
 
-    private float numerator = 0;
-    private float denominator = 0;
+    private long num = 0;
+    private long den = 0;
     boolean initialized = false;
 
-    public Ratio(float...f) {
-    	if (f.length >=2 ) {
+    /**
+     * Values of ratios stored before the counts were 64-bit, only set while
+     * an old build.xml is read.
+     */
+    private Float numerator;
+    private Float denominator;
+
+    public Ratio(long...v) {
+    	if (v.length >=2 ) {
+    		initialized = true;
+            this.num = v[0];
+            this.den = v[1];
+    	}
+    }
+
+    /**
+     * @deprecated use {@link #Ratio(long...)}, a float is only exact up to
+     *      2<sup>24</sup>, and a fraction is rounded to the nearest count
+     */
+    @Deprecated
+    public Ratio(float...v) {
+    	if (v.length >=2 ) {
     		initialized = true;
-            this.numerator = f[0];
-            this.denominator = f[1];
+            this.num = Math.round((double) v[0]);
+            this.den = Math.round((double) v[1]);
     	}
     }
+
+    /**
+     * Converts the values of a ratio stored before the counts were 64-bit.
+     */
+    private Object readResolve() {
+        if (numerator != null) {
+            num = Math.round((double) numerator);
+            numerator = null;
+        }
+        if (denominator != null) {
+            den = Math.round((double) denominator);
+            denominator = null;
+        }
+        return this;
+    }
     
+    public long getNumeratorCount() {
+        return num;
+    }
+
+    public long getDenominatorCount() {
+        return den;
+    }
+
+    /**
+     * @deprecated use {@link #getNumeratorCount()}, a float is only exact
+     *      up to 2<sup>24</sup>
+     */
+    @Deprecated
     public float getNumerator() {
-        return numerator;
+        return num;
     }
 
+    /**
+     * @deprecated use {@link #getDenominatorCount()}, a float is only exact
+     *      up to 2<sup>24</sup>
+     */
+    @Deprecated
     public float getDenominator() {
-        return denominator;
+        return den;
     }
 
     /**
      * Gets "x/y" representation.
      */
     public String toString() {
-        return print(numerator)+"/"+print(denominator);
-    }
-
-    private String print(float f) {
-        int i = (int) f;
-        if(i==f)
-            return String.valueOf(i);
-        else
-            return String.valueOf(f);
+        return num+"/"+den;
     }
 
     /**
@@ -65,7 +118,7 @@ final public class Ratio implements Serializable {
      */
     @Exported
     public float getPercentageFloat() {
-        return denominator<=0? 0: 100*numerator/denominator;
+        return den<=0? 0: (float) (100.0*num/den);
     }
 
     public boolean equals(Object o) {
@@ -74,66 +127,171 @@ final public class Ratio implements Serializable {
 
         Ratio ratio = (Ratio) o;
 
-        return Float.compare(ratio.denominator, denominator)==0
-            && Float.compare(ratio.numerator, numerator)==0;
+        return ratio.den == den && ratio.num == num;
 
     }
 
     public int hashCode() {
-        int result;
-        result = numerator != +0.0f ? Float.floatToIntBits(numerator) : 0;
-        result = 31 * result + denominator != +0.0f ? Float.floatToIntBits(denominator) : 0;
-        return result;
+        return 31 * (int) (num ^ (num >>> 32)) + (int) (den ^ (den >>> 32));
     }
     
     public void addValue(String v) {
-        float[] f = parse(v);
-        numerator += f[0];
-        denominator += f[1];
-		initialized = true;
+        scan(v, true);
     }
     
     public void setValue(String v) {
-        float[] f = parse(v);
-        numerator = f[0];
-        denominator = f[1];
-		initialized = true;
+        scan(v, false);
     }
     
+    /**
+     * Assigns numerator and denominator as they were previously stored.
+     */
+    void setValue(long numerator, long denominator) {
+        this.num = numerator;
+        this.den = denominator;
+        this.initialized = true;
+    }
+
+    /**
+     * Adds numerator and denominator of another ratio to this one.
+     */
+    void add(Ratio r) {
+        this.num += r.num;
+        this.den += r.den;
+        this.initialized = true;
+    }
+
     public boolean isInitialized() {
     	return initialized;
     }
 
     /**
-     * Parses the value attribute format of VectorCAST "52% (52/100)".
+     * Parses the value attribute format of VectorCAST "52% (52/100)" and
+     * adds the result to, or assigns it to, this ratio.
+     *
+     * <p>
+     * This runs for every coverage element of every report, so the
+     * numerator and denominator are read straight from the characters of
+     * the value, without substrings or a result array.
      */
-    static float[] parse(String v) {
-        // if only I could use java.util.Scanner...
-        
-        // only leave "a/b" in "N% (a/b)"
-        int idx = v.indexOf('(');
-        v = v.substring(idx+1,v.length()-1);
-        idx = v.indexOf('/');
-        
-        return new float[]{ parseFloat(v.substring(0,idx)), parseFloat(v.substring(idx+1)) };
+    private void scan(String v, boolean add) {
+        // only look at "a/b" in "N% (a/b)"
+        int start = v.indexOf('(') + 1;
+        int end = v.length() - 1;
+        int slash = v.indexOf('/', start);
+        if (slash < 0 || slash >= end) {
+            throw new NumberFormatException("Invalid ratio: " + v);
+        }
+        long n = parseCount(v, start, slash);
+        long d = parseCount(v, slash + 1, end);
+        if (add) {
+            num += n;
+            den += d;
+        } else {
+            num = n;
+            den = d;
+        }
+        initialized = true;
     }
 
     static Ratio parseValue(String v) throws IOException {
-        return new Ratio(parse(v));
+        Ratio r = new Ratio();
+        r.setValue(v);
+        return r;
+    }
+
+    private static final long[] POWERS_OF_TEN = {
+        1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L,
+        10000000000L, 100000000000L, 1000000000000L, 10000000000000L, 100000000000000L,
+        1000000000000000L, 10000000000000000L, 100000000000000000L, 1000000000000000000L
+    };
+
+    /**
+     * Parses the count in v[begin, end), ignoring surrounding whitespace
+     * and accepting comma or dot as a decimal point. Plain decimal numbers
+     * are scanned in place; anything else goes through
+     * {@link Double#parseDouble(String)}. A fraction is rounded half up to
+     * the nearest count.
+     * @throws NumberFormatException if the value is not a number
+     */
+    static long parseCount(String v, int begin, int end) {
+        int i = begin;
+        while (i < end && v.charAt(i) <= ' ') {
+            i++;
+        }
+        int last = end;
+        while (last > i && v.charAt(last - 1) <= ' ') {
+            last--;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = 0;
+        boolean separator = false;
+        for (int j = i; j < last; j++) {
+            char c = v.charAt(j);
+            if (c >= '0' && c <= '9') {
+                if (++digits > 18) {
+                    return parseCount(v.substring(i, last));
+                }
+                mantissa = mantissa * 10 + (c - '0');
+                if (separator) {
+                    fractionDigits++;
+                }
+            } else if ((c == '.' || c == ',') && !separator) {
+                separator = true;
+            } else {
+                return parseCount(v.substring(i, last));
+            }
+        }
+        if (digits == 0) {
+            return parseCount(v.substring(i, last));
+        }
+        long scale = POWERS_OF_TEN[fractionDigits];
+        long count = mantissa / scale;
+        long rest = mantissa % scale;
+        if (rest != 0) {
+            warnFraction(v.substring(i, last));
+            if (rest >= scale - rest) {
+                count++;
+            }
+        }
+        return count;
     }
 
      /**
-      * Parses the float value stored in a string. Uses simple heuristics to
+      * Parses the count stored in a string. Uses simple heuristics to
       * handle comma or dot as a decimal point.
       */
-     private static float parseFloat(String v) {
+     private static long parseCount(String v) {
          int idx = v.indexOf(',');
          if (idx >= 0) {
              v = v.substring(0, idx) + "." + v.substring(idx+1);
          }
-         return Float.parseFloat(v);
+         double d = Double.parseDouble(v);
+         if (Double.isInfinite(d) || Double.isNaN(d)) {
+             throw new NumberFormatException("Not a count: " + v);
+         }
+         if (d != Math.rint(d)) {
+             warnFraction(v);
+         }
+         return Math.round(d);
      }
 
+    private static volatile boolean warned;
+
+    /**
+     * Reports a count with a fraction, once at WARNING and afterwards at FINE
+     * so that a large report does not flood the log.
+     */
+    private static void warnFraction(String v) {
+        Level level = warned ? Level.FINE : Level.WARNING;
+        warned = true;
+        LOGGER.log(level, "Rounded a coverage count with a fraction to the nearest count: {0}", v);
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(Ratio.class.getName());
+
     private static final long serialVersionUID = 1L;
 
 }
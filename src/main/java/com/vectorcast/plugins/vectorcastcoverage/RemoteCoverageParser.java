@@ -0,0 +1,110 @@
+package com.vectorcast.plugins.vectorcastcoverage;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+
+/**
+ * Locates and parses the coverage reports of a workspace on the node that
+ * holds it, so that only the compact result crosses the remoting channel.
+ *
+ * <p>
+ * The tree comes back as a {@link CoverageReportSnapshot}. A report that
+ * cannot be parsed is not thrown, but returned as {@link Result#getError()}
+ * together with the list of files, so the publisher can log both.
+ *
+ * @see VectorCASTPublisher#getParseOnAgent()
+ */
+final class RemoteCoverageParser extends MasterToSlaveFileCallable<RemoteCoverageParser.Result> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String includes;
+
+    /**
+     * @param includes report pattern, as for {@link VectorCASTPublisher#locateCoverageReports(FilePath, String)}
+     */
+    RemoteCoverageParser(String includes) {
+        this.includes = includes;
+    }
+
+    public Result invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+        FilePath[] reports = VectorCASTPublisher.locateCoverageReports(new FilePath(workspace), includes);
+        Result result = new Result();
+        result.paths = new String[reports.length];
+        for (int i = 0; i < reports.length; i++) {
+            result.paths[i] = reports[i].getRemote();
+        }
+        if (reports.length == 0) {
+            return result;
+        }
+
+        InputStream[] streams = new InputStream[reports.length];
+        try {
+            for (int i = 0; i < reports.length; i++) {
+                streams[i] = reports[i].read();
+            }
+            CoverageReport r = new CoverageReport(null, streams);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            CoverageReportSnapshot.write(r, out);
+            result.snapshot = out.toByteArray();
+            result.ratios = r.getTopLevelRatios();
+        } catch (IOException e) {
+            result.error = e.getMessage() + (e.getCause() != null ? " (" + e.getCause().getMessage() + ")" : "");
+        } finally {
+            for (InputStream in : streams) {
+                if (in != null) {
+                    in.close();
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * What the agent sends back.
+     */
+    static final class Result implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private String[] paths;
+        private byte[] snapshot;
+        private Ratio[] ratios;
+        private String error;
+
+        /**
+         * Remote paths of the reports found, in the order they were parsed.
+         */
+        String[] getPaths() {
+            return paths;
+        }
+
+        /**
+         * The parsed tree as a {@link CoverageReportSnapshot}, or null if
+         * no report was found or one failed to parse.
+         */
+        byte[] getSnapshot() {
+            return snapshot;
+        }
+
+        /**
+         * Build-wide ratios, as {@link CoverageReport#getTopLevelRatios()}.
+         */
+        Ratio[] getRatios() {
+            return ratios;
+        }
+
+        /**
+         * Parse failure message, or null.
+         */
+        String getError() {
+            return error;
+        }
+    }
+}
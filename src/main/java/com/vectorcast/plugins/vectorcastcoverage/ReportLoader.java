@@ -0,0 +1,126 @@
+package com.vectorcast.plugins.vectorcastcoverage;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Coordinates the loading of {@link CoverageReport} trees that are not in
+ * the {@link CoverageReportCache}.
+ *
+ * <p>
+ * Concurrent requests for the same build wait for one shared load instead
+ * of each parsing the files. Loads run on a small fixed pool, so that only a
+ * few builds are parsed at the same time on the controller and further
+ * requests queue up behind them. When every request waiting for a load has
+ * given up, for example because its thread was interrupted, a load that has
+ * not started yet is dropped. A load that is already running completes, and
+ * its result goes to the cache.
+ *
+ * <p>
+ * The pool size defaults to 2 and can be set with the
+ * <code>ReportLoader.MAX_CONCURRENT</code> system property.
+ */
+final class ReportLoader {
+
+    private static final int MAX_CONCURRENT = Math.max(1, Integer.getInteger(ReportLoader.class.getName() + ".MAX_CONCURRENT", 2));
+
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(MAX_CONCURRENT,
+            new NamingThreadFactory(new DaemonThreadFactory(), "VectorCAST coverage report loader"));
+
+    private static final ConcurrentMap<String, Flight> IN_FLIGHT = new ConcurrentHashMap<String, Flight>();
+
+    private ReportLoader() {
+    }
+
+    /**
+     * Gets the tree of a build, joining a load of the same build that is
+     * already in progress or starting a new one.
+     *
+     * @param reportFolder report folder of the build, identifying the load
+     * @param loader loads the tree; may return null if it cannot be loaded
+     * @return the tree, or null
+     * @throws InterruptedException if the calling thread was interrupted while waiting
+     * @throws ExecutionException if the loader threw an exception
+     */
+    static CoverageReport load(File reportFolder, Callable<CoverageReport> loader) throws InterruptedException, ExecutionException {
+        String key = reportFolder.getPath();
+        while (true) {
+            Flight flight = IN_FLIGHT.get(key);
+            if (flight == null) {
+                Flight created = new Flight(key, loader);
+                flight = IN_FLIGHT.putIfAbsent(key, created);
+                if (flight == null) {
+                    flight = created;
+                    EXECUTOR.execute(flight.task);
+                }
+            }
+            if (!flight.join()) {
+                // abandoned by its last waiter just now, start over
+                continue;
+            }
+            try {
+                return flight.task.get();
+            } finally {
+                flight.leave();
+            }
+        }
+    }
+
+    /**
+     * Number of loads that are queued or running.
+     */
+    static int getInFlightCount() {
+        return IN_FLIGHT.size();
+    }
+
+    /**
+     * One load and the requests waiting for it.
+     */
+    private static final class Flight {
+        private final String key;
+        private final FutureTask<CoverageReport> task;
+        private volatile boolean started;
+        private int waiters;
+        private boolean abandoned;
+
+        Flight(String key, final Callable<CoverageReport> loader) {
+            this.key = key;
+            this.task = new FutureTask<CoverageReport>(new Callable<CoverageReport>() {
+                public CoverageReport call() throws Exception {
+                    started = true;
+                    try {
+                        return loader.call();
+                    } finally {
+                        IN_FLIGHT.remove(Flight.this.key, Flight.this);
+                    }
+                }
+            });
+        }
+
+        synchronized boolean join() {
+            if (abandoned) {
+                return false;
+            }
+            waiters++;
+            return true;
+        }
+
+        synchronized void leave() {
+            // a running load is left to finish, its result still fills the cache
+            if (--waiters == 0 && !started && !task.isDone()) {
+                abandoned = true;
+                task.cancel(false);
+                IN_FLIGHT.remove(key, this);
+            }
+        }
+    }
+}
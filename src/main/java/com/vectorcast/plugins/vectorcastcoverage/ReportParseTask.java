@@ -0,0 +1,99 @@
+package com.vectorcast.plugins.vectorcastcoverage;
+
+import hudson.util.IOException2;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Parses a range of report files into a partial {@link CoverageReport} tree,
+ * splitting the range in halves that run on a shared, bounded
+ * {@link ForkJoinPool}.
+ *
+ * <p>
+ * The halves are merged left into right order with
+ * {@link AggregatedReport#merge(AggregatedReport)}, which sums the ratios of
+ * nodes with the same name. Plain coverage values only add up, and a
+ * combined-coverage value resets the root whichever way the halves are
+ * split, so the result is the same as parsing the files one after the other.
+ *
+ * <p>
+ * The pool size defaults to the number of processors, at most 4, and can be
+ * set with the <code>CoverageReport.PARSE_THREADS</code> system property.
+ */
+final class ReportParseTask extends RecursiveTask<CoverageReport> {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int PARALLELISM = Math.max(1, Integer.getInteger(CoverageReport.class.getName() + ".PARSE_THREADS",
+            Math.min(4, Runtime.getRuntime().availableProcessors())));
+
+    private static final class PoolHolder {
+        static final ForkJoinPool POOL = new ForkJoinPool(PARALLELISM);
+    }
+
+    private final InputStream[] streams;
+    private final TopLevelRatios.FileRun[] runs;
+    private final XMLStreamException[] errors;
+    private final boolean secure;
+    private final int from;
+    private final int to;
+
+    private ReportParseTask(InputStream[] streams, TopLevelRatios.FileRun[] runs, XMLStreamException[] errors,
+                            boolean secure, int from, int to) {
+        this.streams = streams;
+        this.runs = runs;
+        this.errors = errors;
+        this.secure = secure;
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * Parses all streams into one tree. The streams are not closed.
+     *
+     * @param streams report files, in order
+     * @param runs receives the leading coverage run of each file, by index
+     * @param secure if true, DTDs and external entities are rejected
+     * @return the merged tree, without back pointers
+     * @throws IOException "Failed to parse XML:<i>" for the first file that
+     *      could not be parsed
+     */
+    static CoverageReport parse(InputStream[] streams, TopLevelRatios.FileRun[] runs, boolean secure) throws IOException {
+        XMLStreamException[] errors = new XMLStreamException[streams.length];
+        ReportParseTask task = new ReportParseTask(streams, runs, errors, secure, 0, streams.length);
+        CoverageReport r = streams.length > 1 ? PoolHolder.POOL.invoke(task) : task.compute();
+        for (int i = 0; i < errors.length; i++) {
+            if (errors[i] != null) {
+                throw new IOException2("Failed to parse XML:" + i, errors[i]);
+            }
+        }
+        return r;
+    }
+
+    @Override
+    protected CoverageReport compute() {
+        if (to - from <= 1) {
+            CoverageReport partial = new CoverageReport((VectorCASTBuildAction) null);
+            if (from < to) {
+                runs[from] = new TopLevelRatios.FileRun();
+                try {
+                    new CoverageReportBuilder(partial, secure).parse(streams[from], runs[from]);
+                } catch (XMLStreamException e) {
+                    errors[from] = e;
+                }
+            }
+            return partial;
+        }
+
+        int mid = (from + to) >>> 1;
+        ReportParseTask right = new ReportParseTask(streams, runs, errors, secure, mid, to);
+        right.fork();
+        CoverageReport left = new ReportParseTask(streams, runs, errors, secure, from, mid).compute();
+        left.merge(right.join());
+        return left;
+    }
+}
@@ -0,0 +1,111 @@
+package com.vectorcast.plugins.vectorcastcoverage;
+
+import java.io.IOException;
+
+/**
+ * Collects the build-wide {@link Ratio}s while the {@link CoverageReport}
+ * tree is being parsed, so that {@link VectorCASTBuildAction} does not need
+ * a second pass over the same report files.
+ *
+ * <p>
+ * Only the first run of consecutive coverage elements of each file
+ * contributes. A &lt;combined-coverage&gt; value replaces whatever was
+ * collected so far, and once one has been seen, plain &lt;coverage&gt;
+ * values of later files are ignored.
+ *
+ * <p>
+ * Files may be parsed concurrently, so each one records its run in a
+ * {@link FileRun}, and the runs are added here in file order.
+ */
+final class TopLevelRatios {
+
+    private final Ratio[] ratios = new Ratio[7];
+
+    /**
+     * True once a &lt;combined-coverage&gt; element has been seen in any file.
+     */
+    private boolean combinedSeen = false;
+
+    /**
+     * Adds the run of the next file.
+     */
+    void add(FileRun run) throws IOException {
+        for (int i = 0; i < run.length; i++) {
+            int index = CoverageObject.metricIndex(run.types[i]);
+            if (index < 0) {
+                return;
+            }
+            boolean combined = run.combined[i];
+            if (combined) {
+                combinedSeen = true;
+            }
+
+            String value = run.values[i];
+            if (ratios[index] == null) {
+                ratios[index] = Ratio.parseValue(value);
+            } else if (combined) {
+                ratios[index].setValue(value);
+            } else if (!combinedSeen) {
+                ratios[index].addValue(value);
+            }
+        }
+    }
+
+    /**
+     * Gets the collected ratios in the order statement, branch, basis path,
+     * MC/DC, function, function call, complexity. Entries are null for
+     * metrics that did not appear in any file.
+     */
+    Ratio[] getRatios() {
+        return ratios;
+    }
+
+    /**
+     * The leading run of coverage elements of one report file.
+     */
+    static final class FileRun {
+        private String version;
+        private Object owner;
+        private int length;
+        private boolean closed;
+        private final String[] types = new String[7];
+        private final String[] values = new String[7];
+        private final boolean[] combined = new boolean[7];
+
+        void setVersion(String version) {
+            this.version = version;
+        }
+
+        /**
+         * Offers one coverage element of the file.
+         *
+         * @param owner the report node the element belongs to
+         * @param type value of the type attribute
+         * @param value value of the value attribute
+         * @param combined true for &lt;combined-coverage&gt;
+         * @throws IOException if the file does not declare a supported version
+         */
+        void offer(Object owner, String type, String value, boolean combined) throws IOException {
+            if (closed) {
+                return;
+            }
+            if (this.owner == null) {
+                if (!"3".equals(version)) {
+                    throw new IOException("Unsupported version: '" + (version == null ? "undefined" : version) + "', expecting 3");
+                }
+                this.owner = owner;
+            } else if (this.owner != owner || length >= types.length) {
+                closed = true;
+                return;
+            }
+            types[length] = type;
+            values[length] = value;
+            this.combined[length] = combined;
+            length++;
+
+            if (CoverageObject.metricIndex(type) < 0) {
+                closed = true;
+            }
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.vectorcast.plugins.vectorcastcoverage;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Weigher;
+
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.listeners.ItemListener;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.zip.CRC32;
+
+/**
+ * Plugin-wide cache of rendered trend graphs and trend data, so that pages
+ * and dashboards that keep showing the same trend do not render it again
+ * each time.
+ *
+ * <p>
+ * Entries are keyed by job, number of the job's last build, the build and
+ * node they belong to, and a variant such as the image size. A new build
+ * changes the key; completed and deleted builds, configuration changes and
+ * deleted or moved jobs drop the entries of the job. Each entry carries an
+ * ETag derived from its content, and a request whose
+ * <code>If-None-Match</code> header matches it gets a 304 response without
+ * the content.
+ *
+ * <p>
+ * The cache holds 32 MB by default; the size can be set with the
+ * <code>TrendGraphCache.SIZE_MB</code> system property.
+ */
+final class TrendGraphCache {
+
+    private static final long SIZE_MB = Math.max(0, Integer.getInteger(TrendGraphCache.class.getName() + ".SIZE_MB", 32));
+
+    private static final char SEPARATOR = '\u0000';
+
+    private static final Cache<String, Rendered> CACHE = Caffeine.newBuilder()
+            .maximumWeight(SIZE_MB * 1024 * 1024)
+            .weigher(new Weigher<String, Rendered>() {
+                public int weigh(String key, Rendered r) {
+                    return r.content.length;
+                }
+            })
+            .build();
+
+    private TrendGraphCache() {
+    }
+
+    /**
+     * Gets the cache key of a trend of a coverage object.
+     * @param o build action, report or node
+     * @param variant what is rendered, such as the image size
+     * @return the key
+     */
+    static String keyOf(CoverageObject<?> o, String variant) {
+        Run<?,?> build = o.getBuild();
+        Job<?,?> job = build.getParent();
+        Run<?,?> last = job.getLastBuild();
+        StringBuilder key = new StringBuilder(job.getFullName()).append(SEPARATOR)
+                .append(last != null ? last.getNumber() : 0).append(SEPARATOR)
+                .append(build.getNumber()).append(SEPARATOR)
+                .append(o.getClass().getSimpleName());
+        if (o instanceof AbstractReport) {
+            for (String name : CoverageSeriesStore.pathOf((AbstractReport<?,?>) o)) {
+                key.append(SEPARATOR).append(name);
+            }
+        }
+        return key.append(SEPARATOR).append(variant).toString();
+    }
+
+    static Rendered get(String key) {
+        return CACHE.getIfPresent(key);
+    }
+
+    /**
+     * Caches a rendered graph or data set.
+     * @return the cached entry
+     */
+    static Rendered put(String key, byte[] content, String contentType) {
+        Rendered r = new Rendered(content, contentType);
+        CACHE.put(key, r);
+        return r;
+    }
+
+    /**
+     * Drops all entries of a job.
+     * @param fullName full name of the job
+     */
+    static void invalidate(String fullName) {
+        String prefix = fullName + SEPARATOR;
+        for (Iterator<String> it = CACHE.asMap().keySet().iterator(); it.hasNext();) {
+            if (it.next().startsWith(prefix)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Rendered content, its type and its ETag.
+     */
+    static final class Rendered {
+        private final byte[] content;
+        private final String contentType;
+        private final String etag;
+
+        Rendered(byte[] content, String contentType) {
+            this.content = content;
+            this.contentType = contentType;
+            CRC32 crc = new CRC32();
+            crc.update(content);
+            this.etag = "\"" + Integer.toHexString(content.length) + "-" + Long.toHexString(crc.getValue()) + "\"";
+        }
+
+        String getETag() {
+            return etag;
+        }
+
+        /**
+         * Sends the content, or a 304 response if the client already has it.
+         */
+        void send(StaplerRequest req, StaplerResponse rsp) throws IOException {
+            rsp.setHeader("ETag", etag);
+            if (matches(req.getHeader("If-None-Match"))) {
+                rsp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+            rsp.setContentType(contentType);
+            rsp.setContentLength(content.length);
+            ServletOutputStream os = rsp.getOutputStream();
+            try {
+                os.write(content);
+            } finally {
+                os.close();
+            }
+        }
+
+        boolean matches(String ifNoneMatch) {
+            if (ifNoneMatch == null) {
+                return false;
+            }
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals("*") || tag.equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Drops the entries of jobs that are reconfigured, deleted or moved.
+     */
+    @Extension
+    public static final class ItemListenerImpl extends ItemListener {
+
+        @Override
+        public void onUpdated(Item item) {
+            if (item instanceof Job) {
+                invalidate(item.getFullName());
+            }
+        }
+
+        @Override
+        public void onDeleted(Item item) {
+            if (item instanceof Job) {
+                invalidate(item.getFullName());
+            }
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            if (item instanceof Job) {
+                invalidate(oldFullName);
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.vectorcast.plugins.vectorcastcoverage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reduces a coverage trend to a bounded number of builds for charting.
+ *
+ * <p>
+ * Builds are picked with the largest-triangle-three-buckets algorithm: the
+ * first and last builds are kept, the others are split into equal buckets,
+ * and from each bucket the build is kept that forms the largest triangle
+ * with the build kept before it and the average of the next bucket. All
+ * metrics of a build count towards the area, so a drop in any of them
+ * survives the reduction. Missing metrics count as 0, which keeps the
+ * builds where a metric appears or disappears.
+ *
+ * <p>
+ * The number of builds drawn is at most 200 by default; it can be set with
+ * the <code>TrendSampler.MAX_POINTS</code> system property.
+ */
+final class TrendSampler {
+
+    static final int MAX_POINTS = Math.max(2, Integer.getInteger(TrendSampler.class.getName() + ".MAX_POINTS", 200));
+
+    private static final int METRICS = 7;
+
+    private TrendSampler() {
+    }
+
+    /**
+     * Reduces a trend to at most the given number of builds.
+     * @param trend builds, oldest first
+     * @param points maximum number of builds to return, at least 2
+     * @return the kept builds, oldest first, or the trend itself if it is
+     *      short enough
+     */
+    static List<CoverageHistoryIndex.Entry> sample(List<CoverageHistoryIndex.Entry> trend, int points) {
+        int n = trend.size();
+        points = Math.max(2, points);
+        if (n <= points) {
+            return trend;
+        }
+
+        float[][] y = values(trend);
+        List<CoverageHistoryIndex.Entry> sampled = new ArrayList<CoverageHistoryIndex.Entry>(points);
+        sampled.add(trend.get(0));
+
+        int buckets = points - 2;
+        int a = 0;
+        float[] avg = new float[METRICS];
+        for (int i = 0; i < buckets; i++) {
+            int start = bound(i, n, buckets);
+            int end = bound(i + 1, n, buckets);
+
+            // average of the next bucket, or the last build
+            int nextStart = end;
+            int nextEnd = bound(i + 2, n, buckets);
+            if (i == buckets - 1) {
+                nextStart = n - 1;
+                nextEnd = n;
+            }
+            for (int m = 0; m < METRICS; m++) {
+                float sum = 0;
+                for (int j = nextStart; j < nextEnd; j++) {
+                    sum += y[j][m];
+                }
+                avg[m] = sum / (nextEnd - nextStart);
+            }
+            double avgX = (nextStart + nextEnd - 1) / 2.0;
+
+            int best = start;
+            double max = -1;
+            for (int j = start; j < end; j++) {
+                double area = 0;
+                for (int m = 0; m < METRICS; m++) {
+                    area += Math.abs((a - avgX) * (y[j][m] - y[a][m]) - (a - j) * (avg[m] - y[a][m]));
+                }
+                if (area > max) {
+                    max = area;
+                    best = j;
+                }
+            }
+            sampled.add(trend.get(best));
+            a = best;
+        }
+
+        sampled.add(trend.get(n - 1));
+        return sampled;
+    }
+
+    /**
+     * Gets the index of the first build of a bucket; the first and last
+     * builds are not in any bucket.
+     */
+    private static int bound(int bucket, int n, int buckets) {
+        return 1 + (int) ((long) bucket * (n - 2) / buckets);
+    }
+
+    /**
+     * Gets the values of all builds on a common scale: coverage percentages,
+     * and complexity relative to its maximum.
+     */
+    private static float[][] values(List<CoverageHistoryIndex.Entry> trend) {
+        float[][] y = new float[trend.size()][METRICS];
+        float maxComplexity = 0;
+        for (int i = 0; i < y.length; i++) {
+            CoverageHistoryIndex.Entry e = trend.get(i);
+            for (int m = 0; m < METRICS - 1; m++) {
+                Ratio r = e.getRatio(m);
+                y[i][m] = r != null ? r.getPercentageFloat() : 0;
+            }
+            Ratio complexity = e.getComplexity();
+            y[i][METRICS - 1] = complexity != null ? complexity.getNumeratorCount() : 0;
+            maxComplexity = Math.max(maxComplexity, y[i][METRICS - 1]);
+        }
+        if (maxComplexity > 0) {
+            for (float[] v : y) {
+                v[METRICS - 1] = v[METRICS - 1] * 100 / maxComplexity;
+            }
+        }
+        return y;
+    }
+}
@@ -5,21 +5,20 @@ import hudson.model.AbstractBuild;
 import hudson.model.HealthReport;
 import hudson.model.HealthReportingAction;
 import hudson.model.Result;
+import hudson.model.TaskListener;
 import hudson.util.IOException2;
 import hudson.util.NullStream;
 import hudson.util.StreamTaskListener;
 
 import org.jvnet.localizer.Localizable;
 import org.kohsuke.stapler.StaplerProxy;
-import org.xmlpull.v1.XmlPullParser;
-import org.xmlpull.v1.XmlPullParserException;
-import org.xmlpull.v1.XmlPullParserFactory;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import jenkins.model.RunAction2;
@@ -27,6 +26,7 @@ import jenkins.tasks.SimpleBuildStep.LastBuildAction;
 import java.io.Serializable;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import hudson.model.Action;
 import hudson.model.Run;
 
@@ -42,7 +42,6 @@ public final class VectorCASTBuildAction extends CoverageObject<VectorCASTBuildA
     private static final long serialVersionUID = 4691586L;
     public transient Run<?,?> owner;
 
-    private transient WeakReference<CoverageReport> report;
     private transient VectorCASTProjectAction vectorcastProjectAction;
     
     /**
@@ -50,6 +49,20 @@ public final class VectorCASTBuildAction extends CoverageObject<VectorCASTBuildA
      */
     private final Rule rule;
 
+    /**
+     * Nodes the rule marked as failed when the build published its
+     * coverage, see {@link FailedNodes}. Null for builds recorded before
+     * these were kept, whose trees have the rule enforced again.
+     */
+    private int[] failedNodes;
+
+    /**
+     * Number of nodes of the tree {@link #failedNodes} was taken from. A
+     * tree of another size has a different shape, so the positions would
+     * mark the wrong nodes. 0 if it was not recorded.
+     */
+    private int failedNodeCount;
+
     /**
      * The thresholds that applied when this build was built.
      */
@@ -189,18 +202,68 @@ public final class VectorCASTBuildAction extends CoverageObject<VectorCASTBuildA
      * Obtains the detailed {@link CoverageReport} instance.
      * @return coverage report
      */
-    public synchronized CoverageReport getResult() {
+    public CoverageReport getResult() {
 
-        if(report!=null) {
-            final CoverageReport r = report.get();
-            if(r!=null)     return r;
+        final File reportFolder = VectorCASTPublisher.getVectorCASTReport(owner);
+
+        final CoverageReport cached = CoverageReportCache.get(reportFolder);
+        if (cached != null) {
+            // the action may have been reloaded since the tree was cached
+            cached.setAction(this);
+            return cached;
         }
 
-        final File reportFolder = VectorCASTPublisher.getVectorCASTReport(owner);
+        // viewers of the same build share one load
+        try {
+            CoverageReport r = ReportLoader.load(reportFolder, new Callable<CoverageReport>() {
+                public CoverageReport call() {
+                    return loadResult(reportFolder);
+                }
+            });
+            if (r != null) {
+                r.setAction(this);
+            }
+            return r;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            logger.log(Level.WARNING, "Failed to load results from: " + reportFolder, e.getCause());
+            return null;
+        }
+    }
+
+    /**
+     * Reads the tree from the stored snapshot or, failing that, from the
+     * stored XML reports. Runs on a {@link ReportLoader} thread.
+     */
+    private CoverageReport loadResult(File reportFolder) {
+
+        // a load that finished just before this one was started
+        final CoverageReport cached = CoverageReportCache.get(reportFolder);
+        if (cached != null) {
+            return cached;
+        }
+
+        File snapshot = new File(reportFolder, CoverageReportSnapshot.FILE_NAME);
+        if (snapshot.isFile()) {
+            try {
+                CoverageReport r = CoverageReportSnapshot.read(this, snapshot);
+                CoverageReportCache.put(reportFolder, r);
+                return r;
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to load " + snapshot + ", reading the XML reports instead", e);
+            }
+        }
         
         try {
             
             FilePath[] reports = getVectorCASTCoverageReports(reportFolder);
+            if (reports.length == 0) {
+                // the publisher only kept the snapshot (storeReports off)
+                logger.log(Level.WARNING, "No readable snapshot and no stored XML reports in " + reportFolder + ", the coverage of this build cannot be shown");
+                return null;
+            }
             
             try {
                 
@@ -214,14 +277,7 @@ public final class VectorCASTBuildAction extends CoverageObject<VectorCASTBuildA
                 
                 // Generate the report
                 CoverageReport r = new CoverageReport(this, streams);
-
-                if(rule!=null) {
-                    // we change the report so that the FAILED flag is set correctly
-                    logger.info("calculating failed packages based on " + rule);
-                    rule.enforce(r,new StreamTaskListener(new NullStream()));
-                }
-
-                report = new WeakReference<CoverageReport>(r);
+                setResult(r);
                 return r;
             } catch (InterruptedException e) {
                 logger.log(Level.WARNING, "Failed to load " + reportFolder, e);
@@ -247,6 +303,11 @@ public final class VectorCASTBuildAction extends CoverageObject<VectorCASTBuildA
         return getPreviousResult(owner);
     }
 
+    @Override
+    List<CoverageHistoryIndex.Entry> getIndexedTrend(int maxHistory) {
+        return CoverageHistoryIndex.getTrend(owner, maxHistory);
+    }
+
     /**
      * Gets the previous {@link VectorCASTBuildAction} of the given build.
      */
@@ -264,6 +325,28 @@ public final class VectorCASTBuildAction extends CoverageObject<VectorCASTBuildA
         }
     }
 
+    /**
+     * Caches a report tree that was built for this action, marking the
+     * nodes that failed the rule first so that the FAILED flags are set
+     * correctly.
+     */
+    private synchronized void setResult(CoverageReport r) {
+        r.setAction(this);
+        if(failedNodes!=null && (failedNodeCount==0 || failedNodeCount==r.getNodeCount())) {
+            FailedNodes.apply(r, failedNodes);
+        } else if(rule!=null) {
+            if(failedNodes!=null) {
+                logger.info("the tree of " + owner + " has " + r.getNodeCount() + " nodes instead of " + failedNodeCount + ", enforcing the rule again");
+            }
+            // we change the report so that the FAILED flag is set correctly
+            logger.info("calculating failed packages based on " + rule);
+            rule.enforce(r,new StreamTaskListener(new NullStream()));
+        }
+        if (owner != null) {
+            CoverageReportCache.put(VectorCASTPublisher.getVectorCASTReport(owner), r);
+        }
+    }
+
     /**
      * Constructs the object from VectorCAST XML report files.
      * @param owner owner
@@ -275,135 +358,116 @@ public final class VectorCASTBuildAction extends CoverageObject<VectorCASTBuildA
      *      if failed to parse the file.
      */
     public static VectorCASTBuildAction load(AbstractBuild<?,?> owner, Rule rule, VectorCASTHealthReportThresholds thresholds, FilePath... files) throws IOException {
-        Ratio ratios[] = null;
-        boolean[] flag = {false};
-        for (FilePath f: files ) {
-            InputStream in = null;
-            try {
-                in = f.read();
-                ratios = loadRatios(in, ratios, flag);
-            } catch (XmlPullParserException e) {
-                throw new IOException2("Failed to parse " + f, e);
-            } catch (InterruptedException e) {
-                Logger.getLogger(VectorCASTBuildAction.class.getName()).log(Level.SEVERE, null, e);
-            } finally {
-                if (in != null) {
-                    in.close();
-                }
+        InputStream[] streams = new InputStream[files.length];
+        try {
+            for (int i=0; i<files.length; i++) {
+                streams[i] = files[i].read();
             }
+        } catch (InterruptedException e) {
+            closeAll(streams);
+            throw new IOException2("Interrupted while reading coverage reports", e);
         }
-
-        return new VectorCASTBuildAction(owner,rule,ratios[0],ratios[1],ratios[2],ratios[3],ratios[4],ratios[5],ratios[6],thresholds);
+        return load((Run<?,?>)owner, rule, thresholds, streams);
     }
-    
-    public static VectorCASTBuildAction load(Run<?,?> owner, Rule rule, VectorCASTHealthReportThresholds thresholds, InputStream... streams) throws IOException {
-        Ratio ratios[] = null;
-        boolean[] flag = {false};
-        for (InputStream in: streams) {
-            try {
-                ratios = loadRatios(in, ratios, flag);
-            } catch (XmlPullParserException e) {
-                throw new IOException2("Failed to parse " + in, e);
-            } finally {
-                if (in != null) {
-                    in.close();
-                }
-            }
-        }
 
-        return new VectorCASTBuildAction(owner,rule,ratios[0],ratios[1],ratios[2],ratios[3],ratios[4],ratios[5],ratios[6],thresholds);
+    /**
+     * Constructs the object from VectorCAST XML report streams.
+     *
+     * <p>
+     * The streams are parsed once into the full {@link CoverageReport} tree.
+     * The build-wide ratios are collected during the same pass, and the tree
+     * is kept as the result of the new action so that the first page view
+     * does not have to parse the files again. The streams are closed.
+     *
+     * @param owner owner
+     * @param rule rule
+     * @param thresholds thresholds
+     * @param streams report streams
+     * @return build action
+     * @throws IOException
+     *      if failed to parse a stream.
+     */
+    public static VectorCASTBuildAction load(Run<?,?> owner, Rule rule, VectorCASTHealthReportThresholds thresholds, InputStream... streams) throws IOException {
+        CoverageReport r = parse(streams);
+        VectorCASTBuildAction action = load(owner, rule, thresholds, r, r.getTopLevelRatios(),
+                new StreamTaskListener(new NullStream()));
+        action.cacheResult(r);
+        return action;
     }
 
-    public static VectorCASTBuildAction load(AbstractBuild<?,?> owner, Rule rule, VectorCASTHealthReportThresholds thresholds, InputStream... streams) throws IOException, XmlPullParserException {
-        Ratio ratios[] = null;
-        boolean[] flag = {false};
-        for (InputStream in: streams) {
-          ratios = loadRatios(in, ratios, flag);
+    /**
+     * Parses VectorCAST XML report streams into one tree, and closes them.
+     * @param streams report streams
+     * @return the tree, which has no action yet
+     * @throws IOException
+     *      if failed to parse a stream.
+     */
+    static CoverageReport parse(InputStream... streams) throws IOException {
+        try {
+            return new CoverageReport(null, streams);
+        } finally {
+            closeAll(streams);
         }
-        return new VectorCASTBuildAction(owner,rule,ratios[0],ratios[1],ratios[2],ratios[3],ratios[4],ratios[5],ratios[6],thresholds);
     }
 
-    private static Ratio[] loadRatios(InputStream in, Ratio[] r, boolean[] topLevel) throws IOException, XmlPullParserException {
-
-        XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
-        factory.setNamespaceAware(true);
-
-        XmlPullParser parser = factory.newPullParser();
-
-        parser.setInput(in,null);
-        String versionRead = "undefined";
-        while(true) {
-            if(parser.nextTag()!=XmlPullParser.START_TAG)
-                continue;
-            if (parser.getName().equals("version")) {
-                versionRead = parser.getAttributeValue("", "value");
-            }
-            if(!parser.getName().equals("coverage") && !parser.getName().equals("combined-coverage"))
-                continue;
-            break;
+    /**
+     * Constructs the object from a report tree that was already built, for
+     * example on the agent by {@link RemoteCoverageParser}. The rule is
+     * enforced on the tree, which is not cached yet: the publisher keeps it
+     * until it has checked the other thresholds, then calls
+     * {@link #cacheResult(CoverageReport)}.
+     *
+     * @param owner owner
+     * @param rule rule
+     * @param thresholds thresholds
+     * @param r report tree
+     * @param ratios build-wide ratios, as {@link CoverageReport#getTopLevelRatios()}
+     * @param listener where the violations of the rule are printed
+     * @return build action
+     */
+    static VectorCASTBuildAction load(Run<?,?> owner, Rule rule, VectorCASTHealthReportThresholds thresholds, CoverageReport r, Ratio[] ratios, TaskListener listener) {
+        VectorCASTBuildAction action = new VectorCASTBuildAction(owner,rule,ratios[0],ratios[1],ratios[2],ratios[3],ratios[4],ratios[5],ratios[6],thresholds);
+        if(rule!=null) {
+            // enforced once, later loads of the tree only mark the recorded nodes
+            rule.enforce(r,listener);
+            action.failedNodes = FailedNodes.collect(r);
+            action.failedNodeCount = r.getNodeCount();
         }
+        r.setAction(action);
+        return action;
+    }
+
+    /**
+     * Records the failed nodes of the result again, after the publisher
+     * marked more of them.
+     * @param r the tree of this action
+     */
+    synchronized void updateFailedNodes(CoverageReport r) {
+        failedNodes = FailedNodes.collect(r);
+        failedNodeCount = r.getNodeCount();
+    }
 
-        if (!versionRead.equals("3")) {
-            throw new XmlPullParserException("Unsupported version: '" + versionRead + "', expecting 3");
+    /**
+     * Caches the tree this action was loaded from, once all its failed
+     * nodes are marked.
+     * @param r the tree of this action
+     */
+    void cacheResult(CoverageReport r) {
+        if (owner != null) {
+            CoverageReportCache.put(VectorCASTPublisher.getVectorCASTReport(owner), r);
         }
+    }
 
-        if (r == null || r.length < 7) 
-            r = new Ratio[7];
-
-        // head for the first <coverage> tag.
-        for( int i=0; i<r.length; i++ ) {
-            boolean combined = false;
-            if(!parser.getName().equals("coverage") && !parser.getName().equals("combined-coverage"))
-                break;
-
-            if (parser.getName().equals("coverage")) {
-                parser.require(XmlPullParser.START_TAG,"","coverage");
-                combined = false;
-            } else if (parser.getName().equals("combined-coverage")) {
-                parser.require(XmlPullParser.START_TAG,"","combined-coverage");
-                combined = true;
-                topLevel[0] = true;
-            }
-            String v = parser.getAttributeValue("", "value");
-            String t = parser.getAttributeValue("", "type");
-
-            int index ;
-            if ( t.equals("statement, %") )
-                index = 0;
-            else if (t.equals("branch, %"))
-                index = 1;
-            else if ( t.equals("basispath, %"))
-                index = 2;
-            else if ( t.equals("mcdc, %") )
-                index = 3;
-            else if ( t.equals("function, %") )
-                index = 4;
-            else if ( t.equals("functioncall, %") )
-                index = 5;
-            else if ( t.equals("complexity, %") )
-                index = 6;
-            else
-                continue;
+    public static VectorCASTBuildAction load(AbstractBuild<?,?> owner, Rule rule, VectorCASTHealthReportThresholds thresholds, InputStream... streams) throws IOException {
+        return load((Run<?,?>)owner, rule, thresholds, streams);
+    }
 
-            if (r[index] == null) {
-                r[index] = Ratio.parseValue(v);
-            } else {
-                if (combined) {
-                        r[index].setValue(v);
-                } else {
-                    if (!topLevel[0]) {
-                        r[index].addValue(v);
-                    }
-                }
+    private static void closeAll(InputStream[] streams) throws IOException {
+        for (InputStream in : streams) {
+            if (in != null) {
+                in.close();
             }
-
-            // move to the next coverage tag.
-            parser.nextTag();
-            parser.nextTag();
         }
-
-        return r;
-
     }
 
 	private void setOwner(Run<?, ?> owner) {
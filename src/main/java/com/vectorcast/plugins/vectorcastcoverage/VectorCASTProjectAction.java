@@ -8,6 +8,7 @@ import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 
 import java.io.IOException;
+import java.util.List;
  
 /**
  * Project view extension by VectorCAST plugin.
@@ -53,9 +54,35 @@ public final class VectorCASTProjectAction implements Action {
      * @return last SUCCSSS or UNSTABLE build result
      */
     public VectorCASTBuildAction getPreviousNotFailedBuild() {
+        Run<?, ?> last = project.getLastBuild();
+        if (last == null)
+            return null;
+
+        // only load the builds the index points at
+        List<CoverageHistoryIndex.Entry> history = CoverageHistoryIndex.read(project);
+        if (history != null) {
+            for (int i = history.size() - 1; i >= 0; i--) {
+                CoverageHistoryIndex.Entry e = history.get(i);
+                Result result = e.getResult();
+                if (e.getNumber() >= last.getNumber())
+                    continue;
+                if (result != null && result != Result.SUCCESS && result != Result.UNSTABLE)
+                    continue;
+                Run<?, ?> b = project.getBuildByNumber(e.getNumber());
+                if (b == null)
+                    continue;
+                if (b.getResult() == Result.SUCCESS || b.getResult() == Result.UNSTABLE) {
+                    VectorCASTBuildAction r = b.getAction(VectorCASTBuildAction.class);
+                    if (r != null)
+                        return r;
+                }
+            }
+            return null;
+        }
+
         Boolean skipFirst = true;
         VectorCASTBuildAction r;
-        for( Run<?, ?> b = project.getLastBuild(); b!=null; b=b.getPreviousBuild()) {
+        for( Run<?, ?> b = last; b!=null; b=b.getPreviousBuild()) {
             if (skipFirst) {
                 skipFirst = false;
                 continue;
@@ -76,4 +103,12 @@ public final class VectorCASTProjectAction implements Action {
         if (getLastResult() != null)
             getLastResult().doGraph(req,rsp);
     }
+
+    public void doTrend(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        VectorCASTBuildAction last = getLastResult();
+        if (last != null)
+            last.doTrend(req,rsp);
+        else
+            rsp.sendError(StaplerResponse.SC_NOT_FOUND);
+    }
 }
@@ -19,6 +19,7 @@ import hudson.tasks.Recorder;
 import hudson.model.Run;
 import java.io.InputStream;
 
+import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
 
 import org.kohsuke.stapler.StaplerRequest;
@@ -29,17 +30,23 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
+import jenkins.model.Jenkins;
 import jenkins.tasks.SimpleBuildStep;
 import hudson.model.Job;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 import org.kohsuke.stapler.DataBoundSetter;
+import com.vectorcast.plugins.vectorcastcoverage.rules.MetricRule;
+import com.vectorcast.plugins.vectorcastcoverage.rules.RuleSet;
+import com.vectorcast.plugins.vectorcastcoverage.rules.ScopedThreshold;
+import com.vectorcast.plugins.vectorcastcoverage.rules.ScopedThresholdRule;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -62,15 +69,29 @@ public class VectorCASTPublisher extends Recorder implements SimpleBuildStep {
     public Boolean useThreshold;
     public Boolean useCoverageHistory;
     public Integer maxHistory;
+    /**
+     * Parse the reports on the node that holds the workspace. Can be null.
+     */
+    public Boolean parseOnAgent;
+    /**
+     * Copy the XML reports into the build when they are parsed on the
+     * agent. Can be null, which means true.
+     */
+    public Boolean storeReports;
     
     /**
     /**
-     * Rule to be enforced. Can be null.
-     *
-     * TODO: define a configuration mechanism.
+     * Rule to be enforced. Can be null. Takes the place of the
+     * {@link #metricRules} when set.
      */
     public Rule rule;
 
+    /**
+     * Minimum coverage per level and metric, enforced together as one
+     * {@link RuleSet}. Can be null.
+     */
+    public List<MetricRule> metricRules;
+
     /**
      * {@link hudson.model.HealthReport} thresholds to apply.
      */
@@ -80,6 +101,12 @@ public class VectorCASTPublisher extends Recorder implements SimpleBuildStep {
     public VectorCASTHealthReportThresholds healthyTarget;
     public VectorCASTHealthReportThresholds unhealthyTarget = null;
 
+    /**
+     * Thresholds for parts of the report tree, checked when
+     * {@link #useThreshold} is set. Can be null.
+     */
+    public List<ScopedThreshold> scopedThresholds;
+
     public VectorCASTPublisher() {
         
         this.includes = "xml_data/coverage_results*.xml";
@@ -131,6 +158,14 @@ public class VectorCASTPublisher extends Recorder implements SimpleBuildStep {
         return this.maxHistory;
     }
     @Nonnull
+    public final Boolean getParseOnAgent() {
+        return parseOnAgent != null && parseOnAgent;
+    }
+    @Nonnull
+    public final Boolean getStoreReports() {
+        return storeReports == null || storeReports;
+    }
+    @Nonnull
     public final VectorCASTHealthReportThresholds getHealthReports() {
         return healthReports;
     }
@@ -145,6 +180,34 @@ public class VectorCASTPublisher extends Recorder implements SimpleBuildStep {
         return healthReports;
     }
     
+    @Nonnull
+    public final List<ScopedThreshold> getScopedThresholds() {
+        if (scopedThresholds == null) {
+            return Collections.emptyList();
+        }
+        return scopedThresholds;
+    }
+
+    @Nonnull
+    public final List<MetricRule> getMetricRules() {
+        if (metricRules == null) {
+            return Collections.emptyList();
+        }
+        return metricRules;
+    }
+
+    /**
+     * @return the rule enforced on the report tree: {@link #rule} if set,
+     *      otherwise the {@link RuleSet} of the {@link #metricRules}, or null
+     *      if there are none
+     */
+    Rule getEffectiveRule() {
+        if (rule != null || getMetricRules().isEmpty()) {
+            return rule;
+        }
+        return new RuleSet(getMetricRules());
+    }
+
     @DataBoundSetter public final void setIncludes(String includes) {
         this.includes = includes;
     }
@@ -157,6 +220,14 @@ public class VectorCASTPublisher extends Recorder implements SimpleBuildStep {
         this.useCoverageHistory = useCoverageHistory;
     }
     
+    @DataBoundSetter public final void setParseOnAgent(Boolean parseOnAgent) {
+        this.parseOnAgent = parseOnAgent;
+    }
+    
+    @DataBoundSetter public final void setStoreReports(Boolean storeReports) {
+        this.storeReports = storeReports;
+    }
+    
     @DataBoundSetter public final void setHealthReports(VectorCASTHealthReportThresholds healthReports) {
         this.healthReports = healthReports;
     }
@@ -168,6 +239,14 @@ public class VectorCASTPublisher extends Recorder implements SimpleBuildStep {
     @DataBoundSetter public final void setUnhealthyTarget(VectorCASTHealthReportThresholds unhealthyTarget) {
         this.unhealthyTarget = unhealthyTarget;
     }
+
+    @DataBoundSetter public final void setScopedThresholds(List<ScopedThreshold> scopedThresholds) {
+        this.scopedThresholds = scopedThresholds;
+    }
+
+    @DataBoundSetter public final void setMetricRules(List<MetricRule> metricRules) {
+        this.metricRules = metricRules;
+    }
     
     /**
      * look for VectorCAST reports based in the configured parameter includes. 'includes' is - an Ant-style pattern - a list
@@ -261,16 +340,30 @@ public class VectorCASTPublisher extends Recorder implements SimpleBuildStep {
         env.overrideAll(envs);
         includes = env.expand(includes);
 
-        FilePath[] reports;
+        String pattern;
         if (includes == null || includes.trim().length() == 0) {
             //FilePath workspace = build.getWorkspace();
             if (workspace!= null) {
                 logger.println("[VectorCASTCoverage] [INFO]: looking for coverage reports in the entire workspace: " + workspace.getRemote());
             }
-            reports = locateCoverageReports(workspace, "**/coverage.xml");
+            pattern = "**/coverage.xml";
         } else {
             logger.println("[VectorCASTCoverage] [INFO]: looking for coverage reports in the provided path: " + includes);
-            reports = locateCoverageReports(workspace, includes);
+            pattern = includes;
+        }
+
+        FilePath[] reports;
+        RemoteCoverageParser.Result parsed = null;
+        if (getParseOnAgent()) {
+            // locate and parse next to the workspace, only the snapshot comes back
+            parsed = workspace.act(new RemoteCoverageParser(pattern));
+            String[] paths = parsed.getPaths();
+            reports = new FilePath[paths.length];
+            for (int i = 0; i < paths.length; i++) {
+                reports[i] = new FilePath(workspace.getChannel(), paths[i]);
+            }
+        } else {
+            reports = locateCoverageReports(workspace, pattern);
         }
 
         if (reports.length == 0) {
@@ -299,17 +392,54 @@ public class VectorCASTPublisher extends Recorder implements SimpleBuildStep {
         }
 
         FilePath vcFolder = new FilePath(getVectorCASTReport(run));
-        saveCoverageReports(vcFolder, reports);
-        logger.println("[VectorCASTCoverage] [INFO]: stored " + reports.length + " report file(s) in the run folder: " + vcFolder);
+        final VectorCASTBuildAction action;
+        final CoverageReport result;
+        if (parsed != null) {
+            vcFolder.mkdirs();
+            if (getStoreReports()) {
+                saveCoverageReports(vcFolder, reports);
+                logger.println("[VectorCASTCoverage] [INFO]: stored " + reports.length + " report file(s) in the run folder: " + vcFolder);
+            }
+            if (parsed.getError() != null) {
+                logger.println("[VectorCASTCoverage] [INFO]: " + parsed.getError());
+                printParseFailure(logger);
+                run.setResult(Result.FAILURE);
+                return true;
+            }
+            logger.println("[VectorCASTCoverage] [INFO]: parsed " + reports.length + " report file(s) on the agent");
+            try {
+                ByteBuffer snapshot = ByteBuffer.wrap(parsed.getSnapshot());
+                CoverageReportSnapshot.verify(snapshot);
+                result = CoverageReportSnapshot.read(null, snapshot);
+            } catch (IOException e) {
+                logger.println("[VectorCASTCoverage] [INFO]: the agent sent an unreadable report: " + e.getMessage());
+                printParseFailure(logger);
+                run.setResult(Result.FAILURE);
+                return true;
+            }
+            action = VectorCASTBuildAction.load(run, getEffectiveRule(), healthReports, result, parsed.getRatios(), listener);
+        } else {
+            saveCoverageReports(vcFolder, reports);
+            logger.println("[VectorCASTCoverage] [INFO]: stored " + reports.length + " report file(s) in the run folder: " + vcFolder);
 
-        //convert FilePath to steams
-        InputStream[] streams = new InputStream[reports.length];
-        for (int i=0; i<reports.length; i++) {
-            File localXMLFile = new File(vcFolder + "/" + "coverage" + (i > 0 ? i : "") + ".xml");
-            streams[i] = new FileInputStream(localXMLFile);
-        }
+            //convert FilePath to steams
+            InputStream[] streams = new InputStream[reports.length];
+            for (int i=0; i<reports.length; i++) {
+                File localXMLFile = new File(vcFolder + "/" + "coverage" + (i > 0 ? i : "") + ".xml");
+                streams[i] = new FileInputStream(localXMLFile);
+            }
 
-        final VectorCASTBuildAction action = VectorCASTBuildAction.load(run, rule, healthReports, streams); //reports);
+            // one pass builds both the build-wide ratios and the report tree
+            try {
+                result = VectorCASTBuildAction.parse(streams);
+            } catch (IOException e) {
+                logger.println("[VectorCASTCoverage] [INFO]: " + e.getMessage() + (e.getCause() != null ? " (" + e.getCause().getMessage() + ")" : ""));
+                printParseFailure(logger);
+                run.setResult(Result.FAILURE);
+                return true;
+            }
+            action = VectorCASTBuildAction.load(run, getEffectiveRule(), healthReports, result, result.getTopLevelRatios(), listener);
+        }
         
         if (action.getBuildHealth() != null) {
             logger.println("[VectorCASTCoverage] [INFO]: " + action.getBuildHealth().getDescription());
@@ -319,17 +449,19 @@ public class VectorCASTPublisher extends Recorder implements SimpleBuildStep {
         
         run.getActions().add(action);
 
-        final CoverageReport result = action.getResult();
-        if (result == null) {
-            logger.println("[VectorCASTCoverage] [INFO]: Could not parse a coverage result file:");
-            logger.println("[VectorCASTCoverage] [INFO]:     See Manage Jenkins > System Log > All Jenkins Log and search for 'Error Parsing VectorCAST Coverage'");
-            logger.println("[VectorCASTCoverage] [INFO]:     Use file list above to relate coverage*.xml to xml_data/coverage_results*.xml");
-            logger.println("[VectorCASTCoverage] [INFO]:     Setting Build to failure.");
-            run.setResult(Result.FAILURE);
-        } else if (result.isFailed()) {
+        if (result.isFailed()) {
             logger.println("[VectorCASTCoverage] [INFO]: code coverage enforcement failed. Setting Build to unstable.");
             run.setResult(Result.UNSTABLE);
         }
+        checkScopedThresholds(run, logger, action, result);
+        // later page views restore the tree from this instead of parsing the XML again
+        try {
+            CoverageReportSnapshot.write(result, new File(getVectorCASTReport(run), CoverageReportSnapshot.FILE_NAME));
+        } catch (IOException e) {
+            logger.println("[VectorCASTCoverage] [WARNING]: could not store the coverage report snapshot: " + e.getMessage());
+        }
+        // cached only now, with the nodes of every check marked
+        action.cacheResult(result);
 
         float prevStCov       = -1.0f;
         float currStCov       = -1.0f;
@@ -429,6 +561,20 @@ public class VectorCASTPublisher extends Recorder implements SimpleBuildStep {
         
         checkThreshold(run, logger, env, action);
 
+        // trend graphs read the job's history from this instead of loading every build
+        try {
+            CoverageHistoryIndex.append(run, action);
+        } catch (IOException e) {
+            logger.println("[VectorCASTCoverage] [WARNING]: could not update the coverage history index: " + e.getMessage());
+        }
+        if (result != null) {
+            try {
+                CoverageSeriesStore.append(run, result);
+            } catch (IOException e) {
+                logger.println("[VectorCASTCoverage] [WARNING]: could not update the coverage series store: " + e.getMessage());
+            }
+        }
+
         return true;
     }
 
@@ -546,6 +692,13 @@ public class VectorCASTPublisher extends Recorder implements SimpleBuildStep {
        }
         
 
+    private void printParseFailure(final PrintStream logger) {
+        logger.println("[VectorCASTCoverage] [INFO]: Could not parse a coverage result file:");
+        logger.println("[VectorCASTCoverage] [INFO]:     See Manage Jenkins > System Log > All Jenkins Log and search for 'Error Parsing VectorCAST Coverage'");
+        logger.println("[VectorCASTCoverage] [INFO]:     Use file list above to relate coverage*.xml to xml_data/coverage_results*.xml");
+        logger.println("[VectorCASTCoverage] [INFO]:     Setting Build to failure.");
+    }
+
 	private void printThresholdFailure(final PrintStream logger, String coverageType, int percent, int threshold) {
         logger.println("[VectorCASTCoverage] [FAIL]: " + coverageType + " coverage " + percent +"% < " + threshold + "% threshold.");
     }
@@ -588,6 +741,32 @@ public class VectorCASTPublisher extends Recorder implements SimpleBuildStep {
 		}
 	}
 
+	/**
+	 * Checks the nodes of the tree against the scoped thresholds, before the
+	 * snapshot of the tree is written so that it keeps the failed flags.
+	 */
+	private void checkScopedThresholds(Run<?, ?> run, final PrintStream logger,
+		final VectorCASTBuildAction action, CoverageReport result) {
+		if (!Boolean.TRUE.equals(useThreshold) || getScopedThresholds().isEmpty()) {
+			return;
+		}
+		int failures;
+		try {
+			failures = new ScopedThresholdRule(getScopedThresholds()).check(result, logger);
+		} catch (IllegalArgumentException e) {
+			// saved before the patterns were checked on configuration
+			logger.println("[VectorCASTCoverage] [FAIL]: Scoped thresholds not checked. " + e.getMessage());
+			run.setResult(Result.FAILURE);
+			return;
+		}
+		if (failures > 0) {
+			logger.println("[VectorCASTCoverage] [FAIL]: Build failed due to " + failures + " coverage metric(s) below a scoped threshold");
+			run.setResult(Result.FAILURE);
+			// later loads of the tree mark these nodes too
+			action.updateFailedNodes(result);
+		}
+	}
+
 	private boolean isMCDCCoverageOk(final VectorCASTBuildAction action)  {
 		
 		if (action.getMCDCCoverage() == null)
@@ -672,8 +851,46 @@ public class VectorCASTPublisher extends Recorder implements SimpleBuildStep {
 
     public static class DescriptorImpl extends BuildStepDescriptor<Publisher> {
 
+        /**
+         * Memory budget of the {@link CoverageReportCache}, in MB.
+         */
+        private int reportCacheSize = CoverageReportCache.DEFAULT_SIZE_MB;
+
+        /**
+         * Keep the cached reports as {@link CoverageColumns}.
+         */
+        private boolean columnarReportCache = CoverageReportCache.COLUMNAR;
+
         public DescriptorImpl() {
             super(VectorCASTPublisher.class);
+            // plain unit tests create the descriptor without a Jenkins instance
+            if (Jenkins.getInstanceOrNull() != null) {
+                load();
+            }
+            CoverageReportCache.setSize(reportCacheSize);
+            CoverageReportCache.setColumnar(columnarReportCache);
+        }
+
+        public int getReportCacheSize() {
+            return reportCacheSize;
+        }
+
+        public void setReportCacheSize(int reportCacheSize) {
+            this.reportCacheSize = reportCacheSize;
+            CoverageReportCache.setSize(reportCacheSize);
+        }
+
+        public boolean isColumnarReportCache() {
+            return columnarReportCache;
+        }
+
+        public void setColumnarReportCache(boolean columnarReportCache) {
+            this.columnarReportCache = columnarReportCache;
+            CoverageReportCache.setColumnar(columnarReportCache);
+        }
+
+        public String getReportCacheStatistics() {
+            return CoverageReportCache.getStatistics();
         }
 
         @Override
@@ -688,6 +905,8 @@ public class VectorCASTPublisher extends Recorder implements SimpleBuildStep {
         @Override
         public boolean configure(StaplerRequest req, JSONObject formData) throws FormException {
             req.bindParameters(this, "vectorcastcoverage.");
+            // an unchecked box is not sent at all
+            setColumnarReportCache(req.getParameter("vectorcastcoverage.columnarReportCache") != null);
             save();
             return super.configure(req, formData);
         }
@@ -732,6 +951,10 @@ public class VectorCASTPublisher extends Recorder implements SimpleBuildStep {
             VectorCASTHealthReportThresholds loc_healthReports = new VectorCASTHealthReportThresholds( minStatement,  maxStatement,  minBranch,  maxBranch,  minBasisPath,  maxBasisPath,  minMCDC,  maxMCDC,  minFunction,  maxFunction,  minFunctionCall,  maxFunctionCall);
             
             VectorCASTPublisher pub = new VectorCASTPublisher(loc_includes,loc_useThreshold,loc_healthReports, null, loc_useCoverageHistory, loc_maxHistory);
+            pub.parseOnAgent = json.optBoolean("parseOnAgent", false);
+            pub.storeReports = json.optBoolean("storeReports", true);
+            pub.metricRules = parseMetricRules(json);
+            pub.scopedThresholds = parseScopedThresholds(json);
                                 
             req.bindParameters(pub, "vectorcastcoverage.");
             req.bindParameters(pub.healthReports, "vectorCASTHealthReports.");
@@ -763,5 +986,64 @@ public class VectorCASTPublisher extends Recorder implements SimpleBuildStep {
             // end ugly hack
             return pub;
         }
+
+        /**
+         * Reads the rows of a repeatable block of the form, which holds a
+         * single object instead of an array when there is one row.
+         */
+        static List<JSONObject> rowsOf(JSONObject json, String name) {
+            List<JSONObject> rows = new ArrayList<JSONObject>();
+            Object value = json.opt(name);
+            if (value instanceof JSONObject) {
+                rows.add((JSONObject) value);
+            } else if (value instanceof JSONArray) {
+                for (Object row : (JSONArray) value) {
+                    if (row instanceof JSONObject) {
+                        rows.add((JSONObject) row);
+                    }
+                }
+            }
+            return rows;
+        }
+
+        private static List<MetricRule> parseMetricRules(JSONObject json) throws FormException {
+            List<MetricRule> rules = new ArrayList<MetricRule>();
+            for (JSONObject row : rowsOf(json, "metricRules")) {
+                try {
+                    rules.add(new MetricRule(
+                            MetricRule.Level.valueOf(row.optString("level", "UNIT")),
+                            row.optString("metric", "statement"),
+                            (float) row.optDouble("minPercentage", 0),
+                            (float) row.optDouble("minComplexity", 0)));
+                } catch (IllegalArgumentException e) {
+                    throw new FormException(e.getMessage(), "metricRules");
+                }
+            }
+            return rules.isEmpty() ? null : rules;
+        }
+
+        private static List<ScopedThreshold> parseScopedThresholds(JSONObject json) throws FormException {
+            List<ScopedThreshold> scoped = new ArrayList<ScopedThreshold>();
+            for (JSONObject row : rowsOf(json, "scopedThresholds")) {
+                String pattern = row.optString("pattern", "").trim();
+                if (pattern.isEmpty()) {
+                    continue;
+                }
+                // only the minimums of scoped thresholds are checked
+                scoped.add(new ScopedThreshold(pattern, new VectorCASTHealthReportThresholds(
+                        row.optInt("minStatement", 0), 100,
+                        row.optInt("minBranch", 0), 100,
+                        row.optInt("minBasisPath", 0), 100,
+                        row.optInt("minMCDC", 0), 100,
+                        row.optInt("minFunction", 0), 100,
+                        row.optInt("minFunctionCall", 0), 100)));
+            }
+            try {
+                new ScopedThresholdRule(scoped).compile();
+            } catch (IllegalArgumentException e) {
+                throw new FormException(e.getMessage(), "scopedThresholds");
+            }
+            return scoped.isEmpty() ? null : scoped;
+        }
     }
 }
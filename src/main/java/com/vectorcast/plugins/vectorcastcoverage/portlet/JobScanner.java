@@ -0,0 +1,193 @@
+package com.vectorcast.plugins.vectorcastcoverage.portlet;
+
+import hudson.model.Job;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the per-job work of the portlets on a small fixed pool, so that
+ * jobs whose builds have to be loaded from disk do not hold up the others.
+ *
+ * <p>
+ * Results come back in the order of the jobs, whatever order the work
+ * finishes in. A scan waits at most a time budget; the jobs that are not
+ * done by then are left out, their work is interrupted and the scan is
+ * flagged incomplete. A job whose work from an earlier scan is still
+ * running is left out too instead of being given more, so that a few slow
+ * jobs cannot take all the threads and hold up every later page view.
+ *
+ * <p>
+ * The pool has 4 threads and the budget is 10 seconds by default; they can
+ * be set with the <code>JobScanner.THREADS</code> and
+ * <code>JobScanner.TIME_BUDGET_MS</code> system properties.
+ */
+final class JobScanner {
+
+  private static final Logger logger = Logger.getLogger(JobScanner.class.getName());
+
+  private static final int THREADS = Math.max(1, Integer.getInteger(JobScanner.class.getName() + ".THREADS", 4));
+
+  private static final long TIME_BUDGET_MS = Math.max(0, Integer.getInteger(JobScanner.class.getName() + ".TIME_BUDGET_MS", 10000));
+
+  private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(THREADS,
+      new NamingThreadFactory(new DaemonThreadFactory(), "VectorCAST coverage portlet"));
+
+  /**
+   * Jobs with work queued or running, by full name.
+   */
+  private static final ConcurrentMap<String, Object> BUSY = new ConcurrentHashMap<String, Object>();
+
+  private JobScanner() {
+  }
+
+  /**
+   * The work done for one job.
+   *
+   * @param <T>
+   *          type of the result
+   */
+  interface Task<T> {
+    /**
+     * @param job
+     *          the job
+     * @return the result for the job, may be null
+     * @throws Exception
+     *           if the job cannot be scanned; it is left out
+     */
+    T scan(Job job) throws Exception;
+  }
+
+  /**
+   * Results of a scan, one per job in the order of the jobs.
+   *
+   * @param <T>
+   *          type of the results
+   */
+  static final class Results<T> {
+    private final List<T> values;
+    private final boolean incomplete;
+
+    Results(List<T> values, boolean incomplete) {
+      this.values = values;
+      this.incomplete = incomplete;
+    }
+
+    /**
+     * @return the result of each job, null for jobs that were left out
+     */
+    List<T> getValues() {
+      return values;
+    }
+
+    /**
+     * @return true if some jobs were not done within the time budget
+     */
+    boolean isIncomplete() {
+      return incomplete;
+    }
+  }
+
+  /**
+   * Runs a task for each job and waits for the results, at most for the
+   * time budget.
+   *
+   * @param jobs
+   *          the jobs
+   * @param task
+   *          the work for one job
+   * @return the results
+   */
+  static <T> Results<T> scan(Collection<Job> jobs, final Task<T> task) {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIME_BUDGET_MS);
+
+    List<Future<T>> futures = new ArrayList<Future<T>>(jobs.size());
+    for (final Job job : jobs) {
+      futures.add(submit(job, task));
+    }
+
+    List<T> values = new ArrayList<T>(futures.size());
+    boolean incomplete = false;
+    boolean interrupted = false;
+    for (Future<T> future : futures) {
+      T value = null;
+      if (future == null) {
+        // still busy with an earlier scan
+        values.add(null);
+        incomplete = true;
+        continue;
+      }
+      try {
+        if (interrupted) {
+          throw new TimeoutException();
+        }
+        value = future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+      } catch (TimeoutException e) {
+        future.cancel(true);
+        incomplete = true;
+      } catch (InterruptedException e) {
+        future.cancel(true);
+        incomplete = true;
+        interrupted = true;
+      } catch (ExecutionException e) {
+        logger.log(Level.WARNING, "Failed to load VectorCAST coverage for the portlet", e.getCause());
+      }
+      values.add(value);
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    return new Results<T>(values, incomplete);
+  }
+
+  /**
+   * Queues the work for one job, unless the job is busy.
+   *
+   * @return the work, or null if the job still has work queued or running
+   */
+  private static <T> Future<T> submit(final Job job, final Task<T> task) {
+    final String key = job.getFullName();
+    final Object token = new Object();
+    if (BUSY.putIfAbsent(key, token) != null) {
+      return null;
+    }
+    final AtomicBoolean started = new AtomicBoolean();
+    FutureTask<T> future = new FutureTask<T>(new Callable<T>() {
+      public T call() throws Exception {
+        started.set(true);
+        try {
+          return task.scan(job);
+        } finally {
+          BUSY.remove(key, token);
+        }
+      }
+    }) {
+      @Override
+      protected void done() {
+        // cancelled before it ran; once running, the job is busy until
+        // the work has actually stopped
+        if (!started.get()) {
+          BUSY.remove(key, token);
+        }
+      }
+    };
+    EXECUTOR.execute(future);
+    return future;
+  }
+}
@@ -31,6 +31,9 @@ package com.vectorcast.plugins.vectorcastcoverage.portlet;
 
 import hudson.model.Job;
 import hudson.model.Run;
+import com.vectorcast.plugins.vectorcastcoverage.CoverageDailyRollup;
+import com.vectorcast.plugins.vectorcastcoverage.CoverageHistoryIndex;
+import com.vectorcast.plugins.vectorcastcoverage.Ratio;
 import com.vectorcast.plugins.vectorcastcoverage.VectorCASTBuildAction;
 import com.vectorcast.plugins.vectorcastcoverage.portlet.bean.VectorCASTCoverageResultSummary;
 import com.vectorcast.plugins.vectorcastcoverage.portlet.utils.Utils;
@@ -39,6 +42,7 @@ import java.io.IOException;
 import java.math.BigDecimal;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
@@ -149,6 +153,7 @@ public final class VectorCASTLoadData {
     logger.log(Level.INFO,"In VectorCASTLoadData::loadChartDataWithinRange");
 
     Map<LocalDate, VectorCASTCoverageResultSummary> summaries = new HashMap<LocalDate, VectorCASTCoverageResultSummary>();
+    Map<LocalDate, Map<String, VectorCASTCoverageResultSummary>> jobResults = new HashMap<LocalDate, Map<String, VectorCASTCoverageResultSummary>>();
 
     // Get the last build (last date) of the all jobs
     LocalDate lastDate = Utils.getLastDate(jobs);
@@ -163,41 +168,100 @@ public final class VectorCASTLoadData {
 
     // For each job, get VcastCoverage coverage results according with
     // date range (last build date minus number of days)
-    for (Job job : jobs) {
-      final Integer maxHistory = getMaxHistory(job);
-      Integer historyCount = 0;
-    
-      Run run = job.getLastBuild();      
-      
-      if (null != run) {
-
-        LocalDate runDate = Utils.calendarToLocalData(run.getTimestamp());
+    final LocalDate from = firstDate;
+    JobScanner.Results<Map<LocalDate, VectorCASTCoverageResultSummary>> results = JobScanner.scan(jobs,
+        new JobScanner.Task<Map<LocalDate, VectorCASTCoverageResultSummary>>() {
+          public Map<LocalDate, VectorCASTCoverageResultSummary> scan(Job job) {
+            return loadJobDataWithinRange(job, from);
+          }
+        });
 
-        while (runDate.isAfter(firstDate)) {
+    // merged in the order of the jobs, as if they were loaded one by one
+    int i = 0;
+    for (Job job : jobs) {
+      Map<LocalDate, VectorCASTCoverageResultSummary> jobData = results.getValues().get(i++);
+      if (jobData == null) {
+        continue;
+      }
+      for (Map.Entry<LocalDate, VectorCASTCoverageResultSummary> e : jobData.entrySet()) {
+        summarize(summaries, jobResults, e.getValue(), e.getKey(), job);
+      }
+    }
+    if (results.isIncomplete()) {
+      for (VectorCASTCoverageResultSummary summary : summaries.values()) {
+        summary.setIncomplete(true);
+      }
+    }
 
-          summarize(summaries, run, runDate, job);
+    // Sorting by date, ascending order
+    Map<LocalDate, VectorCASTCoverageResultSummary> sortedSummaries = new TreeMap(summaries);
 
-          run = run.getPreviousBuild();
+    return sortedSummaries;
 
-          if (null == run) {
-            break;
-          }
+  }
 
-          runDate = Utils.calendarToLocalData(run.getTimestamp());
+  /**
+   * Get the VcastCoverage coverage results of one job after a date, the
+   * last result of each day.
+   *
+   * <p>
+   * From the rollup or the history index, that is the last build of the
+   * day that published coverage. Walking the builds takes the last build of
+   * the day whatever it is, and one without coverage counts as -1 in the
+   * averages of its day; the indexed path leaves such days to the builds
+   * that have coverage.
+   *
+   * @param job
+   *          job from the DashBoard Portlet view
+   * @param firstDate
+   *          the results of this date and earlier are left out
+   * @return Map the results indexed by date, latest first
+   */
+  private static Map<LocalDate, VectorCASTCoverageResultSummary> loadJobDataWithinRange(Job job, LocalDate firstDate) {
+    Map<LocalDate, VectorCASTCoverageResultSummary> results = new LinkedHashMap<LocalDate, VectorCASTCoverageResultSummary>();
+
+    // one record per day from the job's rollup, or one per build from
+    // its history index, instead of loading every build
+    List<CoverageHistoryIndex.Entry> history = CoverageDailyRollup.read(job);
+    if (history == null) {
+      history = CoverageHistoryIndex.read(job);
+    }
+    if (history != null) {
+      for (int i = history.size() - 1; i >= 0; i--) {
+        CoverageHistoryIndex.Entry entry = history.get(i);
+        LocalDate runDate = CoverageDailyRollup.dayOf(entry);
+        if (!runDate.isAfter(firstDate)) {
+          break;
         }
-        // set max history count to 25 for readability
-        if (historyCount++ >= maxHistory) {
-            break;
+        if (!results.containsKey(runDate)) {
+          results.put(runDate, getResult(job, entry));
         }
-        logger.log(Level.INFO, "VectorCASTLoadData::loadChartDataWithinRange - (H | M) = " + Integer.toString(historyCount) + " | " + Integer.toString(maxHistory));
       }
+      return results;
     }
 
-    // Sorting by date, ascending order
-    Map<LocalDate, VectorCASTCoverageResultSummary> sortedSummaries = new TreeMap(summaries);
+    Run run = job.getLastBuild();
 
-    return sortedSummaries;
+    if (null != run) {
 
+      LocalDate runDate = Utils.calendarToLocalData(run.getTimestamp());
+
+      while (runDate.isAfter(firstDate)) {
+
+        if (!results.containsKey(runDate)) {
+          results.put(runDate, getResult(run));
+        }
+
+        run = run.getPreviousBuild();
+
+        if (null == run) {
+          break;
+        }
+
+        runDate = Utils.calendarToLocalData(run.getTimestamp());
+      }
+    }
+    return results;
   }
 
   /**
@@ -206,52 +270,43 @@ public final class VectorCASTLoadData {
    * @param summaries
    *          a Map of VectorCASTCoverageResultSummary objects indexed by
           dates
-   * @param run
-   *          the build which will provide information about the
-   *          coverage result
+   * @param jobResults
+   *          the results already in each summary, indexed by dates and job
+   *          names
+   * @param vectorCASTCoverageResult
+   *          the coverage result of the build
    * @param runDate
    *          the date on which the build was performed
    * @param job
    *          job from the DashBoard Portlet view
    */
-  private static void summarize(Map<LocalDate, VectorCASTCoverageResultSummary> summaries, Run run, LocalDate runDate, Job job) {
-
-    VectorCASTCoverageResultSummary vectorCASTCoverageResult = getResult(run);
+  private static void summarize(Map<LocalDate, VectorCASTCoverageResultSummary> summaries,
+      Map<LocalDate, Map<String, VectorCASTCoverageResultSummary>> jobResults,
+      VectorCASTCoverageResultSummary vectorCASTCoverageResult, LocalDate runDate, Job job) {
 
     // Retrieve VcastCoverage information for informed date
     VectorCASTCoverageResultSummary vectorCASTCoverageResultSummary = summaries.get(runDate);
+    Map<String, VectorCASTCoverageResultSummary> dayResults = jobResults.get(runDate);
 
-    // Consider the last result of each
-    // job date (if there are many builds for the same date). If not
-    // exists, the VcastCoverage coverage data must be added. If exists
-    // VcastCoverage coverage data for the same date but it belongs to other
-    // job, sum the values.
     if (vectorCASTCoverageResultSummary == null) {
       vectorCASTCoverageResultSummary = new VectorCASTCoverageResultSummary();
+      summaries.put(runDate, vectorCASTCoverageResultSummary);
+      dayResults = new HashMap<String, VectorCASTCoverageResultSummary>();
+      jobResults.put(runDate, dayResults);
+    }
+
+    // Consider the last result of each
+    // job date (if there are many builds for the same date). If
+    // VcastCoverage coverage data for the same date belongs to other
+    // job, sum the values.
+    String name = (job != null) ? job.getName() : null;
+    if (name == null || !dayResults.containsKey(name)) {
       vectorCASTCoverageResultSummary.addCoverageResult(vectorCASTCoverageResult);
       vectorCASTCoverageResultSummary.setJob(job);
-    } else {
-
-      // Check if exists VectorCASTCoverage data for same date and job
-      List<VectorCASTCoverageResultSummary> listResults = vectorCASTCoverageResultSummary.getVectorCASTCoverageResults();
-      boolean found = false;
-
-      for (VectorCASTCoverageResultSummary item : listResults) {
-        if ((null != item.getJob()) && (null != item.getJob().getName()) && (null != job)) {
-          if (item.getJob().getName().equals(job.getName())) {
-            found = true;
-            break;
-          }
-        }
-      }
-
-      if (!found) {
-        vectorCASTCoverageResultSummary.addCoverageResult(vectorCASTCoverageResult);
-        vectorCASTCoverageResultSummary.setJob(job);
+      if (name != null) {
+        dayResults.put(name, vectorCASTCoverageResult);
       }
     }
-
-    summaries.put(runDate, vectorCASTCoverageResultSummary);
   }
 
   /**
@@ -264,6 +319,31 @@ public final class VectorCASTLoadData {
   private static VectorCASTCoverageResultSummary getResult(Run run) {
     VectorCASTBuildAction vectorCASTAction = run.getAction(VectorCASTBuildAction.class);
 
+    if (vectorCASTAction == null) {
+      return getResult(run.getParent(), null, null, null, null, null, null, null);
+    }
+    return getResult(run.getParent(), vectorCASTAction.getBasisPathCoverage(), vectorCASTAction.getMCDCCoverage(),
+        vectorCASTAction.getBranchCoverage(), vectorCASTAction.getStatementCoverage(), vectorCASTAction.getFunctionCoverage(),
+        vectorCASTAction.getFunctionCallCoverage(), vectorCASTAction.getComplexity());
+  }
+
+  /**
+   * Get the VcastCoverage coverage result recorded in the history index.
+   *
+   * @param job
+   *          the job of the build
+   * @param entry
+   *          the record of the build
+   * @return VectorCASTCoverageResultSummary the coverage result
+   */
+  private static VectorCASTCoverageResultSummary getResult(Job job, CoverageHistoryIndex.Entry entry) {
+    return getResult(job, entry.getBasisPathCoverage(), entry.getMCDCCoverage(), entry.getBranchCoverage(),
+        entry.getStatementCoverage(), entry.getFunctionCoverage(), entry.getFunctionCallCoverage(), entry.getComplexity());
+  }
+
+  private static VectorCASTCoverageResultSummary getResult(Job job, Ratio basisPath, Ratio mcdc, Ratio branch,
+      Ratio statement, Ratio function, Ratio functionCall, Ratio complexity) {
+
     float BasisPathCoverage = -1.0f;
     float StatementCoverage = -1.0f;
     float MCDCCoverage = -1.0f;
@@ -272,30 +352,28 @@ public final class VectorCASTLoadData {
     float FunctionCallCoverage = -1.0f;
     float Complexity = -1.0f;
 
-    if (vectorCASTAction != null) {
-      if (null != vectorCASTAction.getBasisPathCoverage()) {
-        BasisPathCoverage = vectorCASTAction.getBasisPathCoverage().getPercentageFloat();
-      }
-      if (null != vectorCASTAction.getStatementCoverage()) {
-        StatementCoverage = vectorCASTAction.getStatementCoverage().getPercentageFloat();
-      }
-      if (null != vectorCASTAction.getMCDCCoverage()) {
-        MCDCCoverage = vectorCASTAction.getMCDCCoverage().getPercentageFloat();
-      }
-      if (null != vectorCASTAction.getBranchCoverage()) {
-        BranchCoverage = vectorCASTAction.getBranchCoverage().getPercentageFloat();
-      }
-      if (null != vectorCASTAction.getFunctionCoverage()) {
-        FunctionCoverage = vectorCASTAction.getFunctionCoverage().getPercentageFloat();
-      }
-      if (null != vectorCASTAction.getFunctionCallCoverage()) {
-        FunctionCallCoverage = vectorCASTAction.getFunctionCallCoverage().getPercentageFloat();
-      }
-      if (null != vectorCASTAction.getComplexity()) {
-        Complexity = vectorCASTAction.getComplexity().getNumerator();
-      }
+    if (null != basisPath) {
+      BasisPathCoverage = basisPath.getPercentageFloat();
+    }
+    if (null != statement) {
+      StatementCoverage = statement.getPercentageFloat();
+    }
+    if (null != mcdc) {
+      MCDCCoverage = mcdc.getPercentageFloat();
     }
-    return new VectorCASTCoverageResultSummary(run.getParent(), BasisPathCoverage, MCDCCoverage, BranchCoverage, StatementCoverage, FunctionCoverage, FunctionCallCoverage,Complexity);
+    if (null != branch) {
+      BranchCoverage = branch.getPercentageFloat();
+    }
+    if (null != function) {
+      FunctionCoverage = function.getPercentageFloat();
+    }
+    if (null != functionCall) {
+      FunctionCallCoverage = functionCall.getPercentageFloat();
+    }
+    if (null != complexity) {
+      Complexity = complexity.getNumeratorCount();
+    }
+    return new VectorCASTCoverageResultSummary(job, BasisPathCoverage, MCDCCoverage, BranchCoverage, StatementCoverage, FunctionCoverage, FunctionCallCoverage,Complexity);
   }
 
   /**
@@ -308,77 +386,98 @@ public final class VectorCASTLoadData {
   public static VectorCASTCoverageResultSummary getResultSummary(final Collection<Job> jobs) {
     VectorCASTCoverageResultSummary summary = new VectorCASTCoverageResultSummary();
 
-    for (Job job : jobs) {
+    JobScanner.Results<VectorCASTCoverageResultSummary> results = JobScanner.scan(jobs,
+        new JobScanner.Task<VectorCASTCoverageResultSummary>() {
+          public VectorCASTCoverageResultSummary scan(Job job) {
+            return getLastResult(job);
+          }
+        });
 
-      float BasisPathCoverage = -1.0f;
-      float StatementCoverage = -1.0f;
-      float MCDCCoverage = -1.0f;
-      float BranchCoverage = -1.0f;
-      float FunctionCoverage = -1.0f;
-      float FunctionCallCoverage = -1.0f;
-      float Complexity = -1.0f;
+    for (VectorCASTCoverageResultSummary result : results.getValues()) {
+      if (result != null) {
+        summary.addCoverageResult(result);
+      }
+    }
+    summary.setIncomplete(results.isIncomplete());
+    return summary;
+  }
 
-      Run run = job.getLastSuccessfulBuild();
+  /**
+   * Get the coverage result of the last successful build of a job.
+   *
+   * @param job
+   *          a job from the DashBoard Portlet view
+   * @return VectorCASTCoverageResultSummary the coverage result, or null if
+   *         the last successful build has no coverage
+   */
+  private static VectorCASTCoverageResultSummary getLastResult(Job job) {
+    float BasisPathCoverage = -1.0f;
+    float StatementCoverage = -1.0f;
+    float MCDCCoverage = -1.0f;
+    float BranchCoverage = -1.0f;
+    float FunctionCoverage = -1.0f;
+    float FunctionCallCoverage = -1.0f;
+    float Complexity = -1.0f;
 
-      if (run != null) {
+    Run run = job.getLastSuccessfulBuild();
 
-        VectorCASTBuildAction vectorCASTAction = job.getLastSuccessfulBuild().getAction(VectorCASTBuildAction.class);
+    if (run != null) {
 
-        if (null == vectorCASTAction) {
-            continue;
-        } else {
-          if (null != vectorCASTAction.getBasisPathCoverage()) {
-            BasisPathCoverage = vectorCASTAction.getBasisPathCoverage().getPercentageFloat();
-            BigDecimal bigBasisPathCoverage = new BigDecimal(BasisPathCoverage);
-            bigBasisPathCoverage = bigBasisPathCoverage.setScale(1, BigDecimal.ROUND_HALF_EVEN);
-            BasisPathCoverage = bigBasisPathCoverage.floatValue();
-          }
+      VectorCASTBuildAction vectorCASTAction = job.getLastSuccessfulBuild().getAction(VectorCASTBuildAction.class);
 
-          if (null != vectorCASTAction.getStatementCoverage()) {
-            StatementCoverage = vectorCASTAction.getStatementCoverage().getPercentageFloat();
-            BigDecimal bigStatementCoverage = new BigDecimal(StatementCoverage);
-            bigStatementCoverage = bigStatementCoverage.setScale(1, BigDecimal.ROUND_HALF_EVEN);
-            StatementCoverage = bigStatementCoverage.floatValue();
-          }
-          if (null != vectorCASTAction.getMCDCCoverage()) {
-            MCDCCoverage = vectorCASTAction.getMCDCCoverage().getPercentageFloat();
-            BigDecimal bigMCDCCoverage = new BigDecimal(MCDCCoverage);
-            bigMCDCCoverage = bigMCDCCoverage.setScale(1, BigDecimal.ROUND_HALF_EVEN);
-            MCDCCoverage = bigMCDCCoverage.floatValue();
-          }
+      if (null == vectorCASTAction) {
+          return null;
+      } else {
+        if (null != vectorCASTAction.getBasisPathCoverage()) {
+          BasisPathCoverage = vectorCASTAction.getBasisPathCoverage().getPercentageFloat();
+          BigDecimal bigBasisPathCoverage = new BigDecimal(BasisPathCoverage);
+          bigBasisPathCoverage = bigBasisPathCoverage.setScale(1, BigDecimal.ROUND_HALF_EVEN);
+          BasisPathCoverage = bigBasisPathCoverage.floatValue();
+        }
 
-          if (null != vectorCASTAction.getBranchCoverage()) {
-            BranchCoverage = vectorCASTAction.getBranchCoverage().getPercentageFloat();
-            BigDecimal bigBranchCoverage = new BigDecimal(BranchCoverage);
-            bigBranchCoverage = bigBranchCoverage.setScale(1, BigDecimal.ROUND_HALF_EVEN);
-            BranchCoverage = bigBranchCoverage.floatValue();
-          }
-          
-          if (null != vectorCASTAction.getFunctionCoverage()) {
-            FunctionCoverage = vectorCASTAction.getFunctionCoverage().getPercentageFloat();
-            BigDecimal bigFunctionCoverage = new BigDecimal(FunctionCoverage);
-            bigFunctionCoverage = bigFunctionCoverage.setScale(1, BigDecimal.ROUND_HALF_EVEN);
-            FunctionCoverage = bigFunctionCoverage.floatValue();
-          }
-          if (null != vectorCASTAction.getFunctionCallCoverage()) {
-            FunctionCallCoverage = vectorCASTAction.getFunctionCallCoverage().getPercentageFloat();
-            BigDecimal bigFunctionCallCoverage = new BigDecimal(FunctionCallCoverage);
-            bigFunctionCallCoverage = bigFunctionCallCoverage.setScale(1, BigDecimal.ROUND_HALF_EVEN);
-            FunctionCallCoverage = bigFunctionCallCoverage.floatValue();
-          }
-          if (null != vectorCASTAction.getComplexity()) {
-            Complexity = vectorCASTAction.getComplexity().getNumerator();
-            BigDecimal bigComplexity = new BigDecimal(Complexity);
-            bigComplexity = bigComplexity.setScale(1, BigDecimal.ROUND_HALF_EVEN);
-            Complexity = bigComplexity.floatValue();
-          }
+        if (null != vectorCASTAction.getStatementCoverage()) {
+          StatementCoverage = vectorCASTAction.getStatementCoverage().getPercentageFloat();
+          BigDecimal bigStatementCoverage = new BigDecimal(StatementCoverage);
+          bigStatementCoverage = bigStatementCoverage.setScale(1, BigDecimal.ROUND_HALF_EVEN);
+          StatementCoverage = bigStatementCoverage.floatValue();
+        }
+        if (null != vectorCASTAction.getMCDCCoverage()) {
+          MCDCCoverage = vectorCASTAction.getMCDCCoverage().getPercentageFloat();
+          BigDecimal bigMCDCCoverage = new BigDecimal(MCDCCoverage);
+          bigMCDCCoverage = bigMCDCCoverage.setScale(1, BigDecimal.ROUND_HALF_EVEN);
+          MCDCCoverage = bigMCDCCoverage.floatValue();
         }
-      }
 
-      summary.addCoverageResult(new VectorCASTCoverageResultSummary(job, BasisPathCoverage, MCDCCoverage, BranchCoverage,
-        StatementCoverage, FunctionCoverage, FunctionCallCoverage, Complexity));
+        if (null != vectorCASTAction.getBranchCoverage()) {
+          BranchCoverage = vectorCASTAction.getBranchCoverage().getPercentageFloat();
+          BigDecimal bigBranchCoverage = new BigDecimal(BranchCoverage);
+          bigBranchCoverage = bigBranchCoverage.setScale(1, BigDecimal.ROUND_HALF_EVEN);
+          BranchCoverage = bigBranchCoverage.floatValue();
+        }
+        
+        if (null != vectorCASTAction.getFunctionCoverage()) {
+          FunctionCoverage = vectorCASTAction.getFunctionCoverage().getPercentageFloat();
+          BigDecimal bigFunctionCoverage = new BigDecimal(FunctionCoverage);
+          bigFunctionCoverage = bigFunctionCoverage.setScale(1, BigDecimal.ROUND_HALF_EVEN);
+          FunctionCoverage = bigFunctionCoverage.floatValue();
+        }
+        if (null != vectorCASTAction.getFunctionCallCoverage()) {
+          FunctionCallCoverage = vectorCASTAction.getFunctionCallCoverage().getPercentageFloat();
+          BigDecimal bigFunctionCallCoverage = new BigDecimal(FunctionCallCoverage);
+          bigFunctionCallCoverage = bigFunctionCallCoverage.setScale(1, BigDecimal.ROUND_HALF_EVEN);
+          FunctionCallCoverage = bigFunctionCallCoverage.floatValue();
+        }
+        if (null != vectorCASTAction.getComplexity()) {
+          Complexity = vectorCASTAction.getComplexity().getNumeratorCount();
+          BigDecimal bigComplexity = new BigDecimal(Complexity);
+          bigComplexity = bigComplexity.setScale(1, BigDecimal.ROUND_HALF_EVEN);
+          Complexity = bigComplexity.floatValue();
+        }
+      }
     }
-    return summary;
+
+    return new VectorCASTCoverageResultSummary(job, BasisPathCoverage, MCDCCoverage, BranchCoverage,
+      StatementCoverage, FunctionCoverage, FunctionCallCoverage, Complexity);
   }
 
   public static boolean hasStatementCoverage(final Collection<Job> jobs) {
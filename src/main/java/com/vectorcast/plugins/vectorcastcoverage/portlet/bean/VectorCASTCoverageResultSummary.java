@@ -84,6 +84,11 @@ public class VectorCASTCoverageResultSummary {
 
   private List<VectorCASTCoverageResultSummary> coverageResults = new ArrayList<VectorCASTCoverageResultSummary>();
 
+  /**
+   * Whether some jobs are missing because they took too long to load.
+   */
+  private boolean incomplete;
+
   /**
    * Default Constructor.
    */
@@ -486,4 +491,19 @@ public class VectorCASTCoverageResultSummary {
   public void setCoverageResults(List<VectorCASTCoverageResultSummary> coverageResults) {
     this.coverageResults = coverageResults;
   }
+
+  /**
+   * @return true if some jobs are missing because they took too long to load
+   */
+  public boolean isIncomplete() {
+    return incomplete;
+  }
+
+  /**
+   * @param incomplete
+   *          whether some jobs are missing
+   */
+  public void setIncomplete(boolean incomplete) {
+    this.incomplete = incomplete;
+  }
 }
@@ -167,6 +167,13 @@ public class VectorCASTBuilderTrendChart extends DashboardPortlet {
         JFreeChart chart = ChartFactory.createLineChart("", Constants.AXIS_LABEL, Constants.AXIS_LABEL_VALUE,
           buildDataSet(summaries), PlotOrientation.VERTICAL, true, false, false);
         chart.setBackgroundPaint(Color.white);
+
+        for (VectorCASTCoverageResultSummary summary : summaries.values()) {
+          if (summary.isIncomplete()) {
+            chart.setTitle(Messages.Portlet_Incomplete());
+            break;
+          }
+        }
         
         final CategoryPlot plot = chart.getCategoryPlot();
         plot.setBackgroundPaint(Color.WHITE);
@@ -224,71 +231,28 @@ public class VectorCASTBuilderTrendChart extends DashboardPortlet {
 
       LOGGER.log(Level.INFO,"In VectorCASTBuilderTrendChart::buildDataSet");
 
+      // the summary of a day already holds the sums of its jobs
       for (Map.Entry<LocalDate, VectorCASTCoverageResultSummary> entry : summaries.entrySet()) {
-          float BasisPathCoverage = 0;
-          float StatementCoverage = 0;
-          float MCDCCoverage = 0;
-          float BranchCoverage = 0;
-          float FunctionCoverage = 0;
-          float FunctionCallCoverage = 0;
-
-          boolean hasStatementCoverage = false;
-          boolean hasBranchCoverage = false;
-          boolean hasBasisPathCoverage = false;
-          boolean hasMCDCCoverage = false;
-          boolean hasFunctionCoverage = false;
-          boolean hasFunctionCallCoverage = false;
-
-          int count = 0;
-
-          List<VectorCASTCoverageResultSummary> list = entry.getValue().getVectorCASTCoverageResults();
-
-          for (VectorCASTCoverageResultSummary item : list) {
-              if (item.hasStatementCoverage()) {
-                  hasStatementCoverage = true;
-                  StatementCoverage += item.getStatementCoverage();
-
-              }
-              if (item.hasBranchCoverage()) {
-                  BranchCoverage += item.getBranchCoverage();
-                  hasBranchCoverage = true;
-              }
-              if (item.hasBasisPathCoverage()) {
-                  BasisPathCoverage += item.getBasisPathCoverage();
-                  hasBasisPathCoverage = true;
-              }
-              if (item.hasMCDCCoverage()) {
-                  MCDCCoverage += item.getMCDCCoverage();
-                  hasMCDCCoverage = true;
-              }
-              if (item.hasFunctionCoverage()) {
-                  FunctionCoverage += item.getFunctionCoverage();
-                  hasFunctionCoverage = true;
-              }
-              if (item.hasFunctionCallCoverage()) {
-                  FunctionCallCoverage += item.getFunctionCallCoverage();
-                  hasFunctionCallCoverage = true;
-              }
-              count++;
-          }
+          VectorCASTCoverageResultSummary day = entry.getValue();
+          int count = day.getVectorCASTCoverageResults().size();
 
-          if (hasStatementCoverage) {
-              dataSetBuilder.add((StatementCoverage / count), "Statement", entry.getKey());
+          if (day.hasStatementCoverage()) {
+              dataSetBuilder.add((day.getStatementCoverage() / count), "Statement", entry.getKey());
           }
-          if (hasBranchCoverage) {
-              dataSetBuilder.add((BranchCoverage / count), "Branch", entry.getKey());
+          if (day.hasBranchCoverage()) {
+              dataSetBuilder.add((day.getBranchCoverage() / count), "Branch", entry.getKey());
           }
-          if (hasBasisPathCoverage) {
-              dataSetBuilder.add((BasisPathCoverage / count), "Basis Path", entry.getKey());
+          if (day.hasBasisPathCoverage()) {
+              dataSetBuilder.add((day.getBasisPathCoverage() / count), "Basis Path", entry.getKey());
           }
-          if (hasMCDCCoverage) {
-              dataSetBuilder.add((MCDCCoverage / count), "MC/DC", entry.getKey());
+          if (day.hasMCDCCoverage()) {
+              dataSetBuilder.add((day.getMCDCCoverage() / count), "MC/DC", entry.getKey());
           }
-          if (hasFunctionCoverage) {
-              dataSetBuilder.add((FunctionCoverage / count), "Function", entry.getKey());
+          if (day.hasFunctionCoverage()) {
+              dataSetBuilder.add((day.getFunctionCoverage() / count), "Function", entry.getKey());
           }
-          if (hasFunctionCallCoverage) {
-              dataSetBuilder.add((FunctionCallCoverage / count), "Function Call", entry.getKey());
+          if (day.hasFunctionCallCoverage()) {
+              dataSetBuilder.add((day.getFunctionCallCoverage() / count), "Function Call", entry.getKey());
           }
       }
 
@@ -300,21 +264,9 @@ public class VectorCASTBuilderTrendChart extends DashboardPortlet {
         DataSetBuilder<String, LocalDate> dataSetBuilder = new DataSetBuilder<String, LocalDate>();
 
         for (Map.Entry<LocalDate, VectorCASTCoverageResultSummary> entry : summaries.entrySet()) {
-
-            float Complexity = 0;
-            boolean hasComplexity = false;
-
-            List<VectorCASTCoverageResultSummary> list = entry.getValue().getVectorCASTCoverageResults();
-
-            for (VectorCASTCoverageResultSummary item : list) {
-                if (item.hasComplexity()) {
-                    Complexity += item.getComplexity();
-                    hasComplexity = true;
-                }
-            }
-
-            if (hasComplexity) {
-                dataSetBuilder.add(Complexity, "Complexity", entry.getKey());
+            VectorCASTCoverageResultSummary day = entry.getValue();
+            if (day.hasComplexity()) {
+                dataSetBuilder.add(day.getComplexity(), "Complexity", entry.getKey());
             }
         }
 
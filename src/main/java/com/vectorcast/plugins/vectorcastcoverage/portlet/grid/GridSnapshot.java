@@ -0,0 +1,116 @@
+package com.vectorcast.plugins.vectorcastcoverage.portlet.grid;
+
+import hudson.model.Job;
+import hudson.model.Run;
+import com.vectorcast.plugins.vectorcastcoverage.portlet.bean.VectorCASTCoverageResultSummary;
+
+import java.util.Collection;
+
+/**
+ * Rows of the coverage grid and the metrics present in any of them, gathered
+ * in one pass over the jobs and used for a whole render of the grid.
+ *
+ * <p>
+ * A snapshot stays valid until one of its jobs starts a build or its last
+ * build finishes, which is all {@link #isCurrent(Collection)} has to look at.
+ */
+public final class GridSnapshot {
+
+  private final String key;
+
+  private final VectorCASTCoverageResultSummary summary;
+
+  private final boolean hasStatementCoverage;
+  private final boolean hasBranchCoverage;
+  private final boolean hasBasisPathCoverage;
+  private final boolean hasMCDCCoverage;
+  private final boolean hasFunctionCoverage;
+  private final boolean hasFunctionCallCoverage;
+  private final boolean hasComplexity;
+
+  /**
+   * @param jobs
+   *          the jobs of the grid
+   * @param summary
+   *          the coverage result of each job, not changed afterwards
+   */
+  GridSnapshot(Collection<Job> jobs, VectorCASTCoverageResultSummary summary) {
+    this.key = keyOf(jobs);
+    this.summary = summary;
+    this.hasStatementCoverage = summary.hasStatementCoverage();
+    this.hasBranchCoverage = summary.hasBranchCoverage();
+    this.hasBasisPathCoverage = summary.hasBasisPathCoverage();
+    this.hasMCDCCoverage = summary.hasMCDCCoverage();
+    this.hasFunctionCoverage = summary.hasFunctionCoverage();
+    this.hasFunctionCallCoverage = summary.hasFunctionCallCoverage();
+    this.hasComplexity = summary.hasComplexity();
+  }
+
+  /**
+   * Identifies the jobs, the state of their last builds and their last
+   * successful builds, which change without a new build when one is deleted.
+   */
+  private static String keyOf(Collection<Job> jobs) {
+    StringBuilder key = new StringBuilder();
+    for (Job job : jobs) {
+      Run last = job.getLastBuild();
+      key.append(job.getFullName()).append('\u0000');
+      if (last != null) {
+        key.append(last.getNumber()).append(last.isBuilding() ? "+" : "");
+      }
+      Run lastSuccessful = job.getLastSuccessfulBuild();
+      key.append('/');
+      if (lastSuccessful != null) {
+        key.append(lastSuccessful.getNumber());
+      }
+      key.append('\u0000');
+    }
+    return key.toString();
+  }
+
+  /**
+   * @param jobs
+   *          the jobs of the grid now
+   * @return true if the snapshot was taken of the same jobs and none of them
+   *         has had a build started or finished, or a different last
+   *         successful build, since
+   */
+  boolean isCurrent(Collection<Job> jobs) {
+    return key.equals(keyOf(jobs));
+  }
+
+  /**
+   * @return the coverage result of each job, and the totals
+   */
+  public VectorCASTCoverageResultSummary getSummary() {
+    return summary;
+  }
+
+  public boolean hasStatementCoverage() {
+    return hasStatementCoverage;
+  }
+
+  public boolean hasBranchCoverage() {
+    return hasBranchCoverage;
+  }
+
+  public boolean hasBasisPathCoverage() {
+    return hasBasisPathCoverage;
+  }
+
+  public boolean hasMCDCCoverage() {
+    return hasMCDCCoverage;
+  }
+
+  public boolean hasFunctionCoverage() {
+    return hasFunctionCoverage;
+  }
+
+  public boolean hasFunctionCallCoverage() {
+    return hasFunctionCallCoverage;
+  }
+
+  public boolean hasComplexity() {
+    return hasComplexity;
+  }
+}
@@ -61,43 +61,67 @@ public class VectorCASTBuilderGrid extends DashboardPortlet {
     super(name);
   }
 
+  /**
+   * Last snapshot of the grid, reused until its jobs change.
+   */
+  private transient volatile GridSnapshot snapshot;
+
   /**
    * This method will be called by portlet.jelly to load data and
    * create the grid.
    *
+   * @param jobs
+   *          a Collection of Job objects
+   * @return GridSnapshot the rows of the grid and the metrics they have
+   */
+  public GridSnapshot getSnapshot(Collection<Job> jobs) {
+    GridSnapshot s = snapshot;
+    if (s == null || !s.isCurrent(jobs)) {
+      VectorCASTCoverageResultSummary summary = VectorCASTLoadData.getResultSummary(jobs);
+      s = new GridSnapshot(jobs, summary);
+      // a partial grid is shown once, the next view tries again
+      snapshot = summary.isIncomplete() ? null : s;
+    }
+    return s;
+  }
+
+  /**
    * @param jobs
    *          a Collection of Job objects
    * @return VectorCASTCoverageResultSummary a coverage result summary
    */
   public VectorCASTCoverageResultSummary getVectorCASTCoverageResultSummary(Collection<Job> jobs) {
-    return VectorCASTLoadData.getResultSummary(jobs);
+    return getSnapshot(jobs).getSummary();
   }
-  
+
   public boolean hasStatementCoverage(Collection<Job> jobs) {
-    return VectorCASTLoadData.hasStatementCoverage(jobs);
+    return getSnapshot(jobs).hasStatementCoverage();
   }
 
   public boolean hasBranchCoverage(Collection<Job> jobs) {
-    return VectorCASTLoadData.hasBranchCoverage(jobs);
+    return getSnapshot(jobs).hasBranchCoverage();
   }
+
   public boolean hasComplexity(Collection<Job> jobs) {
-    return VectorCASTLoadData.hasComplexity(jobs);
+    return getSnapshot(jobs).hasComplexity();
   }
 
   public boolean hasBasisPathCoverage(Collection<Job> jobs) {
-    return VectorCASTLoadData.hasBasisPathCoverage(jobs);
+    return getSnapshot(jobs).hasBasisPathCoverage();
   }
 
   public boolean hasMCDCCoverage(Collection<Job> jobs) {
-    return VectorCASTLoadData.hasMCDCCoverage(jobs);
+    return getSnapshot(jobs).hasMCDCCoverage();
   }
 
   public boolean hasFunctionCoverage(Collection<Job> jobs) {
-    return VectorCASTLoadData.hasFunctionCoverage(jobs);
+    return getSnapshot(jobs).hasFunctionCoverage();
   }
+
   public boolean hasFunctionCallCoverage(Collection<Job> jobs) {
-    return VectorCASTLoadData.hasFunctionCallCoverage(jobs);
+    return getSnapshot(jobs).hasFunctionCallCoverage();
   }
+
   /**
    * Descriptor that will be shown on Dashboard Portlets view.
    */
@@ -0,0 +1,131 @@
+package com.vectorcast.plugins.vectorcastcoverage.rules;
+
+import com.vectorcast.plugins.vectorcastcoverage.AbstractReport;
+import com.vectorcast.plugins.vectorcastcoverage.EnvironmentReport;
+import com.vectorcast.plugins.vectorcastcoverage.Ratio;
+import com.vectorcast.plugins.vectorcastcoverage.SubprogramReport;
+import com.vectorcast.plugins.vectorcastcoverage.UnitReport;
+
+import java.io.Serializable;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * A minimum coverage for one metric at one level of the report tree, such as
+ * "MC/DC coverage of every unit must be at least 80%". Only meant to be
+ * enforced as part of a {@link RuleSet}.
+ *
+ * <p>
+ * A rule can be limited to the nodes whose complexity is at least a given
+ * value, so that complex code can be held to a higher standard than simple
+ * code.
+ */
+public final class MetricRule implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Level of the report tree a rule applies to.
+     */
+    public enum Level {
+        ENVIRONMENT, UNIT, SUBPROGRAM;
+
+        /**
+         * @return the level of a node, or null for the root
+         */
+        static Level of(AbstractReport<?,?> node) {
+            if (node instanceof EnvironmentReport) {
+                return ENVIRONMENT;
+            }
+            if (node instanceof UnitReport) {
+                return UNIT;
+            }
+            if (node instanceof SubprogramReport) {
+                return SUBPROGRAM;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Names of the metrics, in the order used by {@link #metricOf(String)}.
+     */
+    static final String[] METRICS = {"statement", "branch", "basispath", "mcdc", "function", "functioncall"};
+
+    private final Level level;
+    private final String metric;
+    private final float minPercentage;
+    private final float minComplexity;
+
+    /**
+     * @param level level of the nodes checked
+     * @param metric one of statement, branch, basispath, mcdc, function
+     *      and functioncall
+     * @param minPercentage minimum coverage in percent
+     * @param minComplexity the rule only applies to nodes with at least this
+     *      complexity; 0 for all nodes
+     */
+    @DataBoundConstructor
+    public MetricRule(Level level, String metric, float minPercentage, float minComplexity) {
+        if (metricOf(metric) < 0) {
+            throw new IllegalArgumentException("Unknown metric: " + metric);
+        }
+        this.level = level;
+        this.metric = metric;
+        this.minPercentage = minPercentage;
+        this.minComplexity = minComplexity;
+    }
+
+    public MetricRule(Level level, String metric, float minPercentage) {
+        this(level, metric, minPercentage, 0);
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+
+    public String getMetric() {
+        return metric;
+    }
+
+    public float getMinPercentage() {
+        return minPercentage;
+    }
+
+    public float getMinComplexity() {
+        return minComplexity;
+    }
+
+    @Override
+    public String toString() {
+        return level + " " + metric + " >= " + minPercentage + "%"
+                + (minComplexity > 0 ? " if complexity >= " + minComplexity : "");
+    }
+
+    /**
+     * @return the index of a metric name in {@link #METRICS}, or -1
+     */
+    static int metricOf(String metric) {
+        for (int m = 0; m < METRICS.length; m++) {
+            if (METRICS[m].equals(metric)) {
+                return m;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the ratio of a node for the metric at the given index
+     */
+    static Ratio ratioOf(AbstractReport<?,?> node, int metric) {
+        switch (metric) {
+            case 0:  return node.getStatementCoverage();
+            case 1:  return node.getBranchCoverage();
+            case 2:  return node.getBasisPathCoverage();
+            case 3:  return node.getMCDCCoverage();
+            case 4:  return node.getFunctionCoverage();
+            case 5:  return node.getFunctionCallCoverage();
+            default: throw new IllegalArgumentException("Invalid metric: " + metric);
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package com.vectorcast.plugins.vectorcastcoverage.rules;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Any number of glob patterns over "environment/unit/subprogram" paths,
+ * compiled into one deterministic automaton that tells which pattern a path
+ * matches first.
+ *
+ * <p>
+ * In a pattern, <code>*</code> matches any characters but <code>/</code>,
+ * <code>**</code> any characters, <code>?</code> one character but
+ * <code>/</code>, and <code>\</code> escapes the next character. A pattern
+ * matches a whole path.
+ *
+ * <p>
+ * Characters are mapped to classes first: one for each character that
+ * appears in a pattern, one for <code>/</code> and one for all others. The
+ * automaton is then built over these classes by subset construction, so
+ * stepping over a character is a lookup whatever the number of patterns.
+ * As paths share their prefixes, a tree walk can keep the state of a node
+ * and go on from it for each child. An instance is immutable.
+ */
+final class PathAutomaton {
+
+    /**
+     * Limit on the number of states, against patterns whose automaton would
+     * explode.
+     */
+    static final int MAX_STATES = Integer.getInteger(PathAutomaton.class.getName() + ".MAX_STATES", 10000);
+
+    private static final int LITERAL = 0;
+    private static final int ONE = 1;
+    private static final int SEGMENT = 2;
+    private static final int ANY = 3;
+
+    /**
+     * Characters with a class of their own, sorted. Class i + 1 is
+     * symbols[i], class 0 is any other character.
+     */
+    private final char[] symbols;
+
+    /**
+     * Next state by state and character class.
+     */
+    private final int[][] next;
+
+    /**
+     * Index of the first pattern that a path ending in a state matches, or -1.
+     */
+    private final int[] accept;
+
+    /**
+     * True for the states from which no pattern can match any more.
+     */
+    private final boolean[] dead;
+
+    /**
+     * @param patterns the patterns, first match wins
+     */
+    PathAutomaton(List<String> patterns) {
+        // each pattern is a sequence of tokens, the NFA state i of a pattern
+        // having matched its first i tokens
+        List<int[]> kinds = new ArrayList<int[]>();
+        List<char[]> chars = new ArrayList<char[]>();
+        TreeSet<Character> alphabet = new TreeSet<Character>();
+        alphabet.add('/');
+        for (String p : patterns) {
+            int[] k = new int[p.length()];
+            char[] c = new char[p.length()];
+            int n = 0;
+            for (int i = 0; i < p.length(); i++) {
+                char ch = p.charAt(i);
+                if (ch == '*' && i + 1 < p.length() && p.charAt(i + 1) == '*') {
+                    k[n++] = ANY;
+                    i++;
+                } else if (ch == '*') {
+                    k[n++] = SEGMENT;
+                } else if (ch == '?') {
+                    k[n++] = ONE;
+                } else {
+                    if (ch == '\\' && i + 1 < p.length()) {
+                        ch = p.charAt(++i);
+                    }
+                    k[n] = LITERAL;
+                    c[n++] = ch;
+                    alphabet.add(ch);
+                }
+            }
+            kinds.add(Arrays.copyOf(k, n));
+            chars.add(Arrays.copyOf(c, n));
+        }
+        symbols = new char[alphabet.size()];
+        int s = 0;
+        for (Character ch : alphabet) {
+            symbols[s++] = ch;
+        }
+
+        int[] offsets = new int[patterns.size() + 1];
+        for (int p = 0; p < patterns.size(); p++) {
+            offsets[p + 1] = offsets[p] + kinds.get(p).length + 1;
+        }
+        Nfa nfa = new Nfa(kinds, chars, offsets);
+
+        BitSet start = new BitSet();
+        for (int p = 0; p < patterns.size(); p++) {
+            nfa.close(start, p, 0);
+        }
+        List<BitSet> states = new ArrayList<BitSet>();
+        Map<BitSet, Integer> ids = new HashMap<BitSet, Integer>();
+        List<int[]> table = new ArrayList<int[]>();
+        Deque<Integer> work = new ArrayDeque<Integer>();
+        states.add(start);
+        ids.put(start, 0);
+        work.add(0);
+        while (!work.isEmpty()) {
+            int id = work.poll();
+            int[] row = new int[symbols.length + 1];
+            for (int cls = 0; cls < row.length; cls++) {
+                BitSet target = nfa.step(states.get(id), cls == 0 ? -1 : symbols[cls - 1]);
+                Integer t = ids.get(target);
+                if (t == null) {
+                    if (states.size() == MAX_STATES) {
+                        throw new IllegalArgumentException("Patterns too complex, more than " + MAX_STATES + " states: " + patterns);
+                    }
+                    t = states.size();
+                    states.add(target);
+                    ids.put(target, t);
+                    work.add(t);
+                }
+                row[cls] = t;
+            }
+            // states are numbered in the order they are worked on
+            table.add(row);
+        }
+
+        next = table.toArray(new int[table.size()][]);
+        accept = new int[states.size()];
+        dead = new boolean[states.size()];
+        for (int id = 0; id < accept.length; id++) {
+            BitSet set = states.get(id);
+            accept[id] = -1;
+            for (int p = 0; p < patterns.size(); p++) {
+                if (set.get(offsets[p + 1] - 1)) {
+                    accept[id] = p;
+                    break;
+                }
+            }
+            dead[id] = set.isEmpty();
+        }
+    }
+
+    /**
+     * @return the state before any character
+     */
+    int start() {
+        return 0;
+    }
+
+    /**
+     * @return the state after reading the given characters from a state
+     */
+    int step(int state, String s) {
+        int[][] n = next;
+        for (int i = 0; i < s.length(); i++) {
+            state = n[state][classOf(s.charAt(i))];
+        }
+        return state;
+    }
+
+    /**
+     * @return the state after reading one character from a state
+     */
+    int step(int state, char c) {
+        return next[state][classOf(c)];
+    }
+
+    /**
+     * @return the index of the first pattern matched by the path read up to
+     *      a state, or -1
+     */
+    int matchOf(int state) {
+        return accept[state];
+    }
+
+    /**
+     * @return true if no path going through a state can match
+     */
+    boolean isDead(int state) {
+        return dead[state];
+    }
+
+    int size() {
+        return next.length;
+    }
+
+    private int classOf(char c) {
+        int i = Arrays.binarySearch(symbols, c);
+        return i < 0 ? 0 : i + 1;
+    }
+
+    /**
+     * The union of the patterns as one nondeterministic automaton, used
+     * only while building the deterministic one.
+     */
+    private static final class Nfa {
+        private final List<int[]> kinds;
+        private final List<char[]> chars;
+        private final int[] offsets;
+
+        Nfa(List<int[]> kinds, List<char[]> chars, int[] offsets) {
+            this.kinds = kinds;
+            this.chars = chars;
+            this.offsets = offsets;
+        }
+
+        /**
+         * Adds a state of a pattern and the states reached from it by
+         * matching stars with no characters.
+         */
+        void close(BitSet set, int pattern, int i) {
+            int[] k = kinds.get(pattern);
+            set.set(offsets[pattern] + i);
+            while (i < k.length && (k[i] == SEGMENT || k[i] == ANY)) {
+                set.set(offsets[pattern] + ++i);
+            }
+        }
+
+        /**
+         * @param c the character, or -1 for one that no pattern names
+         */
+        BitSet step(BitSet from, int c) {
+            BitSet to = new BitSet();
+            int pattern = 0;
+            for (int s = from.nextSetBit(0); s >= 0; s = from.nextSetBit(s + 1)) {
+                while (s >= offsets[pattern + 1]) {
+                    pattern++;
+                }
+                int i = s - offsets[pattern];
+                int[] k = kinds.get(pattern);
+                if (i == k.length) {
+                    continue;
+                }
+                switch (k[i]) {
+                    case LITERAL:
+                        if (chars.get(pattern)[i] == c) {
+                            close(to, pattern, i + 1);
+                        }
+                        break;
+                    case ONE:
+                        if (c != '/') {
+                            close(to, pattern, i + 1);
+                        }
+                        break;
+                    case SEGMENT:
+                        if (c != '/') {
+                            close(to, pattern, i);
+                        }
+                        break;
+                    default:
+                        close(to, pattern, i);
+                        break;
+                }
+            }
+            return to;
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package com.vectorcast.plugins.vectorcastcoverage.rules;
+
+import hudson.model.TaskListener;
+import com.vectorcast.plugins.vectorcastcoverage.AbstractReport;
+import com.vectorcast.plugins.vectorcastcoverage.AggregatedReport;
+import com.vectorcast.plugins.vectorcastcoverage.CoverageReport;
+import com.vectorcast.plugins.vectorcastcoverage.Ratio;
+import com.vectorcast.plugins.vectorcastcoverage.Rule;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Enforces any number of {@link MetricRule}s in one pass over the report
+ * tree.
+ *
+ * <p>
+ * The rules are compiled into one table per level and metric: the
+ * complexity limits in ascending order, each with the highest minimum of
+ * the rules that apply from that complexity on. A node is checked with one
+ * binary search per metric, however many rules there are. Environments and
+ * units are checked in parallel with fork/join.
+ *
+ * <p>
+ * A failing node is marked failed, and its parents with it. At most
+ * {@link #getMaxViolations()} violations are printed, in tree order; the
+ * others are only counted.
+ */
+public class RuleSet extends Rule {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<MetricRule> rules;
+
+    private final int maxViolations;
+
+    private transient volatile Compiled compiled;
+
+    /**
+     * @param rules the rules
+     * @param maxViolations maximum number of violations printed
+     */
+    public RuleSet(List<MetricRule> rules, int maxViolations) {
+        this.rules = new ArrayList<MetricRule>(rules);
+        this.maxViolations = Math.max(0, maxViolations);
+    }
+
+    public RuleSet(List<MetricRule> rules) {
+        this(rules, 100);
+    }
+
+    public List<MetricRule> getRules() {
+        return Collections.unmodifiableList(rules);
+    }
+
+    public int getMaxViolations() {
+        return maxViolations;
+    }
+
+    public void enforce(CoverageReport report, TaskListener listener) {
+        Violations v = check(report);
+        PrintStream logger = listener.getLogger();
+        for (String message : v.messages) {
+            logger.println("[VectorCASTCoverage] [FAIL]: " + message);
+        }
+        if (v.count > v.messages.size()) {
+            logger.println("[VectorCASTCoverage] [FAIL]: ... and " + (v.count - v.messages.size()) + " more failures.");
+        }
+    }
+
+    /**
+     * Checks a tree, marking the failing nodes.
+     * @param report the tree
+     * @return the violations
+     */
+    Violations check(CoverageReport report) {
+        Compiled c = compiled;
+        if (c == null) {
+            compiled = c = new Compiled(rules);
+        }
+        return ForkJoinPool.commonPool().invoke(new Check(c, report, maxViolations));
+    }
+
+    @Override
+    public String toString() {
+        return "RuleSet" + rules;
+    }
+
+    /**
+     * Violations found in a subtree: the first messages in tree order and
+     * how many there are in total.
+     */
+    static final class Violations {
+        final List<String> messages = new ArrayList<String>();
+        int count;
+
+        void add(String message, int max) {
+            if (messages.size() < max) {
+                messages.add(message);
+            }
+            count++;
+        }
+
+        void addAll(Violations other, int max) {
+            for (String message : other.messages) {
+                if (messages.size() >= max) {
+                    break;
+                }
+                messages.add(message);
+            }
+            count += other.count;
+        }
+    }
+
+    /**
+     * The rules of one level and metric.
+     */
+    private static final class Limits {
+        /**
+         * Complexity limits, ascending.
+         */
+        final float[] complexities;
+        /**
+         * Minimum percentage from the limit at the same index on.
+         */
+        final float[] minimums;
+
+        Limits(List<MetricRule> rules) {
+            Collections.sort(rules, new Comparator<MetricRule>() {
+                public int compare(MetricRule a, MetricRule b) {
+                    return Float.compare(a.getMinComplexity(), b.getMinComplexity());
+                }
+            });
+            complexities = new float[rules.size()];
+            minimums = new float[rules.size()];
+            float max = Float.NEGATIVE_INFINITY;
+            for (int i = 0; i < complexities.length; i++) {
+                // a node meets the complexity of every rule before this one too
+                max = Math.max(max, rules.get(i).getMinPercentage());
+                complexities[i] = rules.get(i).getMinComplexity();
+                minimums[i] = max;
+            }
+        }
+
+        /**
+         * @return the minimum for a node of the given complexity, or NaN if
+         *      no rule applies
+         */
+        float minimumFor(float complexity) {
+            int i = Arrays.binarySearch(complexities, complexity);
+            if (i < 0) {
+                i = -i - 2;
+            } else {
+                // the last of equal limits
+                while (i + 1 < complexities.length && complexities[i + 1] == complexity) {
+                    i++;
+                }
+            }
+            return i < 0 ? Float.NaN : minimums[i];
+        }
+    }
+
+    /**
+     * The rules compiled into one {@link Limits} per level and metric.
+     */
+    private static final class Compiled {
+        final Limits[][] limits = new Limits[MetricRule.Level.values().length][];
+
+        Compiled(List<MetricRule> rules) {
+            for (MetricRule.Level level : MetricRule.Level.values()) {
+                Limits[] byMetric = new Limits[MetricRule.METRICS.length];
+                for (int m = 0; m < byMetric.length; m++) {
+                    List<MetricRule> selected = new ArrayList<MetricRule>();
+                    for (MetricRule r : rules) {
+                        if (r.getLevel() == level && MetricRule.metricOf(r.getMetric()) == m) {
+                            selected.add(r);
+                        }
+                    }
+                    if (!selected.isEmpty()) {
+                        byMetric[m] = new Limits(selected);
+                    }
+                }
+                limits[level.ordinal()] = byMetric;
+            }
+        }
+
+        void check(AbstractReport<?,?> node, Violations v, int max) {
+            MetricRule.Level level = MetricRule.Level.of(node);
+            if (level == null) {
+                return;
+            }
+            Limits[] byMetric = limits[level.ordinal()];
+            Ratio c = node.getComplexity();
+            float complexity = c != null && c.isInitialized() ? c.getNumeratorCount() : 0;
+            for (int m = 0; m < byMetric.length; m++) {
+                if (byMetric[m] == null) {
+                    continue;
+                }
+                Ratio r = MetricRule.ratioOf(node, m);
+                if (r == null || !r.isInitialized()) {
+                    continue;
+                }
+                float minimum = byMetric[m].minimumFor(complexity);
+                if (r.getPercentageFloat() < minimum) {
+                    node.setFailed();
+                    v.add(node.getDisplayName() + " failed (" + MetricRule.METRICS[m] + " below " + minimum + "%).", max);
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks a node and its subtree. Environments, and the units of each
+     * environment, are checked in parallel; the subprograms of a unit in
+     * the task of the unit.
+     */
+    private static final class Check extends RecursiveTask<Violations> {
+        private static final long serialVersionUID = 1L;
+
+        private final Compiled compiled;
+        private final AbstractReport<?,?> node;
+        private final int max;
+
+        Check(Compiled compiled, AbstractReport<?,?> node, int max) {
+            this.compiled = compiled;
+            this.node = node;
+            this.max = max;
+        }
+
+        @Override
+        protected Violations compute() {
+            Violations v = new Violations();
+            compiled.check(node, v, max);
+            if (!(node instanceof AggregatedReport)) {
+                return v;
+            }
+            MetricRule.Level level = MetricRule.Level.of(node);
+            if (level == MetricRule.Level.UNIT || level == MetricRule.Level.SUBPROGRAM) {
+                sequential(node, v);
+                return v;
+            }
+            List<Check> tasks = new ArrayList<Check>();
+            for (Object child : ((AggregatedReport<?,?,?>) node).getChildren().values()) {
+                tasks.add(new Check(compiled, (AbstractReport<?,?>) child, max));
+            }
+            // results are merged in tree order, whatever order they finish in
+            for (Check task : invokeAll(tasks)) {
+                v.addAll(task.join(), max);
+            }
+            return v;
+        }
+
+        private void sequential(AbstractReport<?,?> parent, Violations v) {
+            for (Object child : ((AggregatedReport<?,?,?>) parent).getChildren().values()) {
+                AbstractReport<?,?> n = (AbstractReport<?,?>) child;
+                compiled.check(n, v, max);
+                if (n instanceof AggregatedReport) {
+                    sequential(n, v);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.vectorcast.plugins.vectorcastcoverage.rules;
+
+import com.vectorcast.plugins.vectorcastcoverage.VectorCASTHealthReportThresholds;
+
+import java.io.Serializable;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Minimum coverage for the part of the report tree whose paths match a
+ * pattern, such as "<code>safety/*</code>" for the units of the safety
+ * environment. Paths are "environment", "environment/unit" and
+ * "environment/unit/subprogram"; see {@link PathAutomaton} for the pattern
+ * syntax.
+ *
+ * <p>
+ * Only the minimums of the thresholds are checked.
+ */
+public final class ScopedThreshold implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String pattern;
+    private final VectorCASTHealthReportThresholds thresholds;
+
+    @DataBoundConstructor
+    public ScopedThreshold(String pattern, VectorCASTHealthReportThresholds thresholds) {
+        this.pattern = pattern;
+        this.thresholds = thresholds;
+    }
+
+    public String getPattern() {
+        return pattern;
+    }
+
+    public VectorCASTHealthReportThresholds getThresholds() {
+        return thresholds;
+    }
+
+    /**
+     * @return the minimum percentages in the order of {@link MetricRule#METRICS},
+     *      all 0 if no thresholds were given
+     */
+    int[] minimums() {
+        VectorCASTHealthReportThresholds t = thresholds;
+        if (t == null) {
+            return new int[MetricRule.METRICS.length];
+        }
+        return new int[] {
+                t.getMinStatement(), t.getMinBranch(), t.getMinBasisPath(),
+                t.getMinMCDC(), t.getMinFunction(), t.getMinFunctionCall()};
+    }
+
+    @Override
+    public String toString() {
+        return pattern;
+    }
+}
@@ -0,0 +1,148 @@
+package com.vectorcast.plugins.vectorcastcoverage.rules;
+
+import hudson.model.TaskListener;
+import com.vectorcast.plugins.vectorcastcoverage.AbstractReport;
+import com.vectorcast.plugins.vectorcastcoverage.AggregatedReport;
+import com.vectorcast.plugins.vectorcastcoverage.CoverageReport;
+import com.vectorcast.plugins.vectorcastcoverage.Ratio;
+import com.vectorcast.plugins.vectorcastcoverage.Rule;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Enforces {@link ScopedThreshold}s: each node of the report tree is held to
+ * the thresholds of the first pattern its path matches, if any.
+ *
+ * <p>
+ * The patterns are compiled into one {@link PathAutomaton}. The tree is
+ * walked once, each node going on from the state of its parent, so a node
+ * is classified by reading its own name whatever the number of patterns.
+ * Subtrees that no pattern can match any more are skipped.
+ */
+public class ScopedThresholdRule extends Rule {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<ScopedThreshold> scopes;
+
+    private final int maxViolations;
+
+    private transient volatile PathAutomaton automaton;
+
+    /**
+     * @param scopes the thresholds, the first matching one applies
+     * @param maxViolations maximum number of violations printed
+     */
+    public ScopedThresholdRule(List<ScopedThreshold> scopes, int maxViolations) {
+        this.scopes = new ArrayList<ScopedThreshold>(scopes);
+        this.maxViolations = Math.max(0, maxViolations);
+    }
+
+    public ScopedThresholdRule(List<ScopedThreshold> scopes) {
+        this(scopes, 100);
+    }
+
+    public List<ScopedThreshold> getScopes() {
+        return Collections.unmodifiableList(scopes);
+    }
+
+    public void enforce(CoverageReport report, TaskListener listener) {
+        check(report, listener.getLogger());
+    }
+
+    /**
+     * Checks a tree, marking the failing nodes and printing the violations.
+     * @param report the tree
+     * @param logger where the violations are printed
+     * @return the number of violations
+     * @throws IllegalArgumentException if the patterns cannot be compiled,
+     *      see {@link #compile()}
+     */
+    public int check(CoverageReport report, PrintStream logger) {
+        RuleSet.Violations v = check(report);
+        for (String message : v.messages) {
+            logger.println("[VectorCASTCoverage] [FAIL]: " + message);
+        }
+        if (v.count > v.messages.size()) {
+            logger.println("[VectorCASTCoverage] [FAIL]: ... and " + (v.count - v.messages.size()) + " more failures.");
+        }
+        return v.count;
+    }
+
+    /**
+     * Compiles the patterns now instead of at the first check, so that
+     * patterns that cannot be compiled are reported when they are configured.
+     * @return this rule
+     * @throws IllegalArgumentException if the automaton of the patterns has
+     *      more than {@link PathAutomaton#MAX_STATES} states
+     */
+    public ScopedThresholdRule compile() {
+        automaton();
+        return this;
+    }
+
+    private PathAutomaton automaton() {
+        PathAutomaton a = automaton;
+        if (a == null) {
+            List<String> patterns = new ArrayList<String>();
+            for (ScopedThreshold s : scopes) {
+                patterns.add(s.getPattern());
+            }
+            automaton = a = new PathAutomaton(patterns);
+        }
+        return a;
+    }
+
+    RuleSet.Violations check(CoverageReport report) {
+        PathAutomaton a = automaton();
+        int[][] minimums = new int[scopes.size()][];
+        for (int i = 0; i < minimums.length; i++) {
+            minimums[i] = scopes.get(i).minimums();
+        }
+        RuleSet.Violations v = new RuleSet.Violations();
+        walk(a, minimums, report, "", a.start(), v);
+        return v;
+    }
+
+    private void walk(PathAutomaton a, int[][] minimums, AggregatedReport<?,?,?> parent, String path, int state, RuleSet.Violations v) {
+        // the root has no name of its own
+        int prefix = parent instanceof CoverageReport ? state : a.step(state, '/');
+        for (Object o : parent.getChildren().values()) {
+            AbstractReport<?,?> child = (AbstractReport<?,?>) o;
+            int s = a.step(prefix, child.getName());
+            if (a.isDead(s)) {
+                continue;
+            }
+            String p = path.isEmpty() ? child.getName() : path + "/" + child.getName();
+            int match = a.matchOf(s);
+            if (match >= 0) {
+                check(child, p, scopes.get(match), minimums[match], v);
+            }
+            if (child instanceof AggregatedReport) {
+                walk(a, minimums, (AggregatedReport<?,?,?>) child, p, s, v);
+            }
+        }
+    }
+
+    private void check(AbstractReport<?,?> node, String path, ScopedThreshold scope, int[] minimums, RuleSet.Violations v) {
+        for (int m = 0; m < minimums.length; m++) {
+            Ratio r = MetricRule.ratioOf(node, m);
+            if (r == null || !r.isInitialized()) {
+                continue;
+            }
+            if (r.getPercentage() < minimums[m]) {
+                node.setFailed();
+                v.add(path + ": " + MetricRule.METRICS[m] + " coverage " + r.getPercentage() + "% < "
+                        + minimums[m] + "% threshold of " + scope.getPattern() + ".", maxViolations);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ScopedThresholdRule" + scopes;
+    }
+}
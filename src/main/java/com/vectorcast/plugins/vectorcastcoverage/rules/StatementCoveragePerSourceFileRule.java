@@ -26,7 +26,7 @@ public class StatementCoveragePerSourceFileRule extends Rule {
                 float percentage = unitReport.getStatementCoverage().getPercentageFloat();
 
                 if (percentage < minPercentage) {
-                    listener.getLogger().println("VCASTCoverage: " + unitReport.getDisplayName() + " failed (below " + minPercentage + "%).");
+                    listener.getLogger().println("[VectorCASTCoverage] [FAIL]: " + unitReport.getDisplayName() + " failed (below " + minPercentage + "%).");
                     unitReport.setFailed();
                 }
             }
@@ -0,0 +1,102 @@
+package com.vectorcast.plugins.vectorcastcoverage;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+
+public class CoverageColumnsTest extends AbstractVectorCASTTestBase {
+
+    public void testViewMatchesTheTree() throws Exception {
+        CoverageReport r = new CoverageReport(null,
+                                              getClass().getResourceAsStream("top-level.xml"),
+                                              getClass().getResourceAsStream("coverage.xml"));
+        r.getChildren().get("VectorCAST_MinGW_C_TestSuite_ORDER").getChildren().get("manager").setFailed();
+
+        CoverageColumns c = new CoverageColumns(r);
+        assertEquals(r.getNodeCount(), c.size());
+        CoverageReport v = c.view(null);
+
+        assertEquals("VectorCAST", v.getName());
+        assertRatio(v.getStatementCoverage(), 45, 60);
+        assertTrue(v.isFailed());
+        assertEquals(r.getNodeCount(), v.getNodeCount());
+
+        EnvironmentReport env = v.getChildren().get("VectorCAST_MinGW_C_TestSuite_ORDER");
+        assertRatio(env.getStatementCoverage(), 23, 55);
+        assertSame(v, env.getParent());
+        assertTrue(env.isFailed());
+
+        UnitReport unit = env.getChildren().get("manager");
+        assertRatio(unit.getStatementCoverage(), 18, 44);
+        assertTrue(unit.isFailed());
+        assertFalse(env.getChildren().get("manager2").isFailed());
+
+        SubprogramReport sub = unit.getChildren().get("Add_Included_Dessert");
+        assertRatio(sub.getStatementCoverage(), 4, 8);
+        assertSame(unit, sub.getParent());
+        assertFalse(sub.isFailed());
+
+        assertEquals(r.getChildren().keySet(), v.getChildren().keySet());
+        EnvironmentReport empty = v.getChildren().get("EmptyEnvironment");
+        assertFalse(empty.hasChildren());
+        EnvironmentReport orig = r.getChildren().get("EmptyEnvironment");
+        assertEquals(orig.getBranchCoverage().isInitialized(), empty.getBranchCoverage().isInitialized());
+        assertEquals(orig.getMCDCCoverage().isInitialized(), empty.getMCDCCoverage().isInitialized());
+    }
+
+    public void testViewsAreIndependent() throws Exception {
+        CoverageColumns c = new CoverageColumns(new CoverageReport(null, getClass().getResourceAsStream("coverage.xml")));
+        CoverageReport a = c.view(null);
+        CoverageReport b = c.view(null);
+        a.getChildren().get("ENV2").setFailed();
+        assertTrue(a.isFailed());
+        assertFalse(b.isFailed());
+        assertFalse(b.getChildren().get("ENV2").isFailed());
+        assertTrue(c.getBytes() < (long) c.size() * CoverageReportCache.NODE_BYTES);
+    }
+
+    public void testUnchangedSubtreesAreShared() throws Exception {
+        File dir = Files.createTempDirectory("names").toFile();
+        NameDictionary names = NameDictionary.of(dir);
+        CoverageReport r = new CoverageReport(null, getClass().getResourceAsStream("coverage.xml"));
+        CoverageColumns first = new CoverageColumns(r, names);
+        CoverageColumns same = new CoverageColumns(new CoverageReport(null, getClass().getResourceAsStream("coverage.xml")), names);
+        assertTrue(same.getBytes() < first.getBytes() / 10);
+
+        CoverageReport changed = new CoverageReport(null, getClass().getResourceAsStream("coverage.xml"));
+        changed.getChildren().get("ENV2").setFailed();
+        CoverageColumns next = new CoverageColumns(changed, names);
+        assertTrue(next.getBytes() > same.getBytes());
+        assertTrue(next.getBytes() < first.getBytes());
+
+        CoverageReport v = next.view(null);
+        assertTrue(v.getChildren().get("ENV2").isFailed());
+        assertFalse(same.view(null).getChildren().get("ENV2").isFailed());
+        assertEquals(r.getNodeCount(), next.size());
+
+        new File(dir, NameDictionary.FILE_NAME).delete();
+        dir.delete();
+    }
+
+    public void testReleasedNodesAreChargedToAnotherTree() throws Exception {
+        File dir = Files.createTempDirectory("names").toFile();
+        NameDictionary names = NameDictionary.of(dir);
+        CoverageColumns first = new CoverageColumns(new CoverageReport(null, getClass().getResourceAsStream("coverage.xml")), names);
+        CoverageColumns same = new CoverageColumns(new CoverageReport(null, getClass().getResourceAsStream("coverage.xml")), names);
+        long firstBytes = first.getBytes();
+        long sameBytes = same.getBytes();
+        assertTrue(sameBytes < firstBytes / 10);
+
+        List<CoverageColumns> grown = first.release();
+        assertEquals(Collections.singletonList(same), grown);
+        assertTrue(first.release().isEmpty());
+        assertTrue(same.getBytes() >= firstBytes);
+        assertFalse(same.view(null).getChildren().get("ENV2").isFailed());
+
+        assertTrue(same.release().isEmpty());
+
+        new File(dir, NameDictionary.FILE_NAME).delete();
+        dir.delete();
+    }
+}
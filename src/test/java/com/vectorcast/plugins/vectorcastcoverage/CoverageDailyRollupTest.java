@@ -0,0 +1,77 @@
+package com.vectorcast.plugins.vectorcastcoverage;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.List;
+
+public class CoverageDailyRollupTest extends AbstractVectorCASTTestBase {
+
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        dir = Files.createTempDirectory("rollup").toFile();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        new File(dir, CoverageHistoryIndex.FILE_NAME).delete();
+        new File(dir, CoverageDailyRollup.FILE_NAME).delete();
+        dir.delete();
+        super.tearDown();
+    }
+
+    private static CoverageHistoryIndex.Entry entry(int number, int day, int hour, int covered) {
+        long t = LocalDate.of(2024, 3, day).atTime(hour, 0).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        return new CoverageHistoryIndex.Entry(number, t, (byte) 0, new Ratio(covered, 100));
+    }
+
+    private List<CoverageHistoryIndex.Entry> days() throws Exception {
+        return CoverageHistoryIndex.read(new File(dir, CoverageDailyRollup.FILE_NAME));
+    }
+
+    public void testLastBuildOfEachDay() throws Exception {
+        File index = new File(dir, CoverageHistoryIndex.FILE_NAME);
+        CoverageHistoryIndex.write(index, Arrays.asList(entry(1, 1, 9, 10), entry(2, 1, 17, 20), entry(3, 3, 9, 30)));
+        CoverageHistoryIndex.Entry fourth = entry(4, 3, 18, 40);
+        CoverageHistoryIndex.append(index, fourth);
+
+        // created from the index
+        CoverageDailyRollup.add(dir, fourth);
+        List<CoverageHistoryIndex.Entry> days = days();
+        assertEquals(2, days.size());
+        assertEquals(2, days.get(0).getNumber());
+        assertEquals(4, days.get(1).getNumber());
+        assertEquals(LocalDate.of(2024, 3, 3), CoverageDailyRollup.dayOf(days.get(1)));
+
+        // a new day follows, an earlier build of a recorded day is ignored
+        CoverageHistoryIndex.Entry fifth = entry(5, 4, 8, 50);
+        CoverageHistoryIndex.append(index, fifth);
+        CoverageDailyRollup.add(dir, fifth);
+        CoverageDailyRollup.add(dir, entry(3, 3, 9, 30));
+        days = days();
+        assertEquals(3, days.size());
+        assertEquals(4, days.get(1).getNumber());
+        assertRatio(days.get(2).getStatementCoverage(), 50, 100);
+    }
+
+    public void testDeletedBuildIsReplaced() throws Exception {
+        File index = new File(dir, CoverageHistoryIndex.FILE_NAME);
+        CoverageHistoryIndex.write(index, Arrays.asList(entry(1, 1, 9, 10), entry(2, 1, 17, 20), entry(3, 2, 9, 30)));
+        CoverageDailyRollup.add(dir, entry(3, 2, 9, 30));
+
+        CoverageHistoryIndex.setResult(index, 2, CoverageHistoryIndex.RESULT_DELETED);
+        CoverageDailyRollup.remove(dir, 2);
+        List<CoverageHistoryIndex.Entry> days = days();
+        assertEquals(2, days.size());
+        assertEquals(1, days.get(0).getNumber());
+
+        CoverageHistoryIndex.setResult(index, 3, CoverageHistoryIndex.RESULT_DELETED);
+        CoverageDailyRollup.remove(dir, 3);
+        assertEquals(1, days().size());
+    }
+}
@@ -0,0 +1,136 @@
+package com.vectorcast.plugins.vectorcastcoverage;
+
+import hudson.model.Result;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+public class CoverageHistoryIndexTest extends AbstractVectorCASTTestBase {
+
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("history", ".idx");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+        super.tearDown();
+    }
+
+    private static CoverageHistoryIndex.Entry entry(int number, Result result, Ratio statement) {
+        return new CoverageHistoryIndex.Entry(number, 1000L * number, CoverageHistoryIndex.encode(result), statement, null);
+    }
+
+    public void testAppendAndRead() throws Exception {
+        CoverageHistoryIndex.write(file, Arrays.asList(entry(1, Result.SUCCESS, new Ratio(1, 4))));
+        CoverageHistoryIndex.append(file, entry(2, Result.UNSTABLE, new Ratio(2, 4)));
+        // a build is only recorded once
+        CoverageHistoryIndex.append(file, entry(2, Result.SUCCESS, new Ratio(3, 4)));
+
+        assertEquals(8 + 2 * CoverageHistoryIndex.RECORD_SIZE, file.length());
+        List<CoverageHistoryIndex.Entry> entries = CoverageHistoryIndex.read(file);
+        assertEquals(2, entries.size());
+
+        CoverageHistoryIndex.Entry e = entries.get(1);
+        assertEquals(2, e.getNumber());
+        assertEquals(2000L, e.getTimestamp());
+        assertSame(Result.UNSTABLE, e.getResult());
+        assertRatio(e.getStatementCoverage(), 2, 4);
+        assertNull(e.getBranchCoverage());
+        assertNull(e.getComplexity());
+        assertEquals("#2", e.getDisplayName());
+    }
+
+    public void testBuildsFinishingOutOfOrderAreRecordedOnce() throws Exception {
+        CoverageHistoryIndex.write(file, Arrays.asList(entry(1, Result.SUCCESS, null)));
+        CoverageHistoryIndex.append(file, entry(3, Result.SUCCESS, null));
+        CoverageHistoryIndex.append(file, entry(2, Result.SUCCESS, null));
+        CoverageHistoryIndex.append(file, entry(3, Result.SUCCESS, null));
+        CoverageHistoryIndex.append(file, entry(2, Result.SUCCESS, null));
+        assertEquals(8 + 3 * CoverageHistoryIndex.RECORD_SIZE, file.length());
+        assertTrue(CoverageHistoryIndex.setResult(file, 2, CoverageHistoryIndex.encode(Result.FAILURE)));
+        assertSame(Result.FAILURE, CoverageHistoryIndex.read(file).get(1).getResult());
+
+        // a file replaced behind the back of the index is read again
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        out.writeInt(0x56434849);
+        out.writeInt(2);
+        out.close();
+        CoverageHistoryIndex.append(file, entry(2, Result.SUCCESS, null));
+        assertEquals(8 + CoverageHistoryIndex.RECORD_SIZE, file.length());
+    }
+
+    public void testResultIsUpdatedInPlace() throws Exception {
+        CoverageHistoryIndex.write(file, Arrays.asList(
+                entry(1, Result.SUCCESS, new Ratio(1, 4)),
+                entry(2, null, new Ratio(2, 4)),
+                entry(3, Result.SUCCESS, new Ratio(3, 4))));
+
+        assertNull(CoverageHistoryIndex.read(file).get(1).getResult());
+        assertTrue(CoverageHistoryIndex.setResult(file, 2, CoverageHistoryIndex.encode(Result.FAILURE)));
+        assertSame(Result.FAILURE, CoverageHistoryIndex.read(file).get(1).getResult());
+
+        assertTrue(CoverageHistoryIndex.setResult(file, 1, CoverageHistoryIndex.RESULT_DELETED));
+        List<CoverageHistoryIndex.Entry> entries = CoverageHistoryIndex.read(file);
+        assertEquals(2, entries.size());
+        assertEquals(2, entries.get(0).getNumber());
+
+        assertFalse(CoverageHistoryIndex.setResult(file, 7, CoverageHistoryIndex.RESULT_DELETED));
+    }
+
+    public void testRecordsAreSortedAndPartialRecordsIgnored() throws Exception {
+        CoverageHistoryIndex.write(file, Arrays.asList(
+                entry(1, Result.SUCCESS, null),
+                entry(3, Result.SUCCESS, null),
+                entry(2, Result.SUCCESS, null)));
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write(new byte[] {0, 0, 0, 9, 0});
+        out.close();
+
+        List<CoverageHistoryIndex.Entry> entries = CoverageHistoryIndex.read(file);
+        assertEquals(3, entries.size());
+        assertEquals(1, entries.get(0).getNumber());
+        assertEquals(2, entries.get(1).getNumber());
+        assertEquals(3, entries.get(2).getNumber());
+
+        // the next record replaces the partial one
+        CoverageHistoryIndex.append(file, entry(4, Result.SUCCESS, null));
+        assertEquals(8 + 4 * CoverageHistoryIndex.RECORD_SIZE, file.length());
+        assertEquals(4, CoverageHistoryIndex.read(file).get(3).getNumber());
+    }
+
+    public void testFloatVersionIsConverted() throws Exception {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        out.writeInt(0x56434849);
+        out.writeInt(1);
+        for (int number = 1; number <= 2; number++) {
+            out.writeInt(number);
+            out.writeLong(1000L * number);
+            out.writeByte(number == 1 ? CoverageHistoryIndex.RESULT_DELETED : CoverageHistoryIndex.encode(Result.SUCCESS));
+            out.writeByte(1);
+            out.writeFloat(16777216f);
+            out.writeFloat(33554432f);
+            for (int i = 2; i < 14; i++) {
+                out.writeFloat(0);
+            }
+        }
+        out.close();
+
+        List<CoverageHistoryIndex.Entry> entries = CoverageHistoryIndex.read(file);
+        assertEquals(1, entries.size());
+        assertEquals(2, entries.get(0).getNumber());
+        assertRatio(entries.get(0).getStatementCoverage(), 16777216L, 33554432L);
+        // the deleted record is kept
+        assertEquals(8 + 2 * CoverageHistoryIndex.RECORD_SIZE, file.length());
+
+        CoverageHistoryIndex.append(file, entry(3, Result.SUCCESS, new Ratio(16777217L, 33554433L)));
+        assertRatio(CoverageHistoryIndex.read(file).get(1).getStatementCoverage(), 16777217L, 33554433L);
+    }
+}
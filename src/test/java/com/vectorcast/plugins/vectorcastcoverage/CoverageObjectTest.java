@@ -1,5 +1,10 @@
 package com.vectorcast.plugins.vectorcastcoverage;
 
+import java.awt.Dimension;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 /**
  * @author Manuel Carrasco
  */
@@ -48,4 +53,45 @@ public class CoverageObjectTest extends AbstractVectorCASTTestBase {
 
     }
  
+
+    public void testGraphSizeIsLimited() {
+        assertEquals(new Dimension(640, 480), CoverageObject.safeDimension(640, 480, 500, 200));
+        assertEquals(new Dimension(2560, 1440), CoverageObject.safeDimension(100000, 100000, 500, 200));
+        assertEquals(new Dimension(500, 200), CoverageObject.safeDimension(0, 480, 500, 200));
+        assertEquals(new Dimension(500, 200), CoverageObject.safeDimension(640, -1, 500, 200));
+    }
+
+    public void testTrendJson() throws Exception {
+        List<CoverageHistoryIndex.Entry> trend = Arrays.asList(
+                new CoverageHistoryIndex.Entry(3, 1000L, (byte) 0, new Ratio(1, 4), null, null, null, null, null, new Ratio(12, 0)),
+                new CoverageHistoryIndex.Entry(5, 2000L, (byte) 0, new Ratio(1, 2)));
+        assertEquals("{\"builds\":[3,5],\"timestamps\":[1000,2000],\"statement\":[25.0,50.0],\"branch\":[null,null],"
+                + "\"basisPath\":[null,null],\"mcdc\":[null,null],\"function\":[null,null],\"functionCall\":[null,null],"
+                + "\"complexity\":[12.0,null]}", CoverageObject.toJson(trend));
+    }
+
+    public void testTrendSampling() throws Exception {
+        List<CoverageHistoryIndex.Entry> trend = new ArrayList<CoverageHistoryIndex.Entry>();
+        for (int i = 1; i <= 100; i++) {
+            trend.add(new CoverageHistoryIndex.Entry(i, i, (byte) 0, new Ratio(i, 100)));
+        }
+        List<CoverageHistoryIndex.Entry> sampled = TrendSampler.sample(trend, 10);
+        assertEquals(10, sampled.size());
+        assertEquals(1, sampled.get(0).getNumber());
+        assertEquals(100, sampled.get(9).getNumber());
+        assertSame(trend, TrendSampler.sample(trend, 100));
+    }
+
+    public void testTrendSamplingKeepsDrops() throws Exception {
+        List<CoverageHistoryIndex.Entry> trend = new ArrayList<CoverageHistoryIndex.Entry>();
+        for (int i = 1; i <= 1000; i++) {
+            // branch coverage drops for a single build
+            trend.add(new CoverageHistoryIndex.Entry(i, i, (byte) 0, new Ratio(80, 100), new Ratio(i == 517 ? 10 : 90, 100)));
+        }
+        boolean found = false;
+        for (CoverageHistoryIndex.Entry e : TrendSampler.sample(trend, 20)) {
+            found |= e.getNumber() == 517;
+        }
+        assertTrue(found);
+    }
 }
@@ -0,0 +1,50 @@
+package com.vectorcast.plugins.vectorcastcoverage;
+
+import java.io.File;
+
+public class CoverageReportCacheTest extends AbstractVectorCASTTestBase {
+
+    public void testPutGetAndEvict() throws Exception {
+        CoverageReport r = new CoverageReport(null, getClass().getResourceAsStream("coverage.xml"));
+        File folder = new File("build-1/vectorcastcoverage");
+        try {
+            assertNull(CoverageReportCache.get(folder));
+            CoverageReportCache.put(folder, r);
+            assertSame(r, CoverageReportCache.get(folder));
+
+            // nothing fits into an empty budget
+            CoverageReportCache.setSize(0);
+            assertNull(CoverageReportCache.get(folder));
+            assertNotNull(CoverageReportCache.getStatistics());
+        } finally {
+            CoverageReportCache.setSize(CoverageReportCache.DEFAULT_SIZE_MB);
+            CoverageReportCache.invalidate(folder);
+        }
+    }
+
+    public void testColumnarSettingDropsTheTrees() throws Exception {
+        CoverageReport r = new CoverageReport(null, getClass().getResourceAsStream("coverage.xml"));
+        File folder = new File("build-1/vectorcastcoverage");
+        boolean columnar = CoverageReportCache.isColumnar();
+        try {
+            CoverageReportCache.setColumnar(false);
+            CoverageReportCache.put(folder, r);
+            CoverageReportCache.setColumnar(true);
+            assertNull(CoverageReportCache.get(folder));
+
+            CoverageReportCache.put(folder, r);
+            CoverageReport v = CoverageReportCache.get(folder);
+            assertNotSame(r, v);
+            assertEquals(r.getNodeCount(), v.getNodeCount());
+        } finally {
+            CoverageReportCache.setColumnar(columnar);
+            CoverageReportCache.invalidate(folder);
+        }
+    }
+
+    public void testNodeCount() throws Exception {
+        CoverageReport r = new CoverageReport(null, getClass().getResourceAsStream("coverage.xml"));
+        // root, 4 environments, 4 units, 5 subprograms
+        assertEquals(14, r.getNodeCount());
+    }
+}
@@ -0,0 +1,142 @@
+package com.vectorcast.plugins.vectorcastcoverage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class CoverageReportSnapshotTest extends AbstractVectorCASTTestBase {
+
+    public void testRoundTrip() throws Exception {
+        checkRoundTrip();
+    }
+
+    public void testFileIsReleasedWhileChildrenArePending() throws Exception {
+        CoverageReport r = new CoverageReport(null, getClass().getResourceAsStream("coverage.xml"));
+        File f = File.createTempFile("coverage", ".bin");
+        CoverageReportSnapshot.write(r, f);
+        CoverageReport s = CoverageReportSnapshot.read(null, f);
+        // nothing holds on to the file, as a build is deleted
+        assertTrue(f.delete());
+        assertRatio(s.getChildren().get("VectorCAST_MinGW_C_TestSuite_ORDER")
+                .getChildren().get("manager").getStatementCoverage(), 18, 44);
+    }
+
+    private void checkRoundTrip() throws Exception {
+        CoverageReport r = new CoverageReport(null,
+                                              getClass().getResourceAsStream("top-level.xml"),
+                                              getClass().getResourceAsStream("coverage.xml"));
+        r.getChildren().get("VectorCAST_MinGW_C_TestSuite_ORDER").getChildren().get("manager").setFailed();
+
+        File f = File.createTempFile("coverage", ".bin");
+        try {
+            CoverageReportSnapshot.write(r, f);
+            CoverageReport s = CoverageReportSnapshot.read(null, f);
+
+            assertEquals("VectorCAST", s.getName());
+            assertRatio(s.getStatementCoverage(), 45, 60);
+            assertTrue(s.isFailed());
+
+            EnvironmentReport env = s.getChildren().get("VectorCAST_MinGW_C_TestSuite_ORDER");
+            assertRatio(env.getStatementCoverage(), 23, 55);
+            assertSame(s, env.getParent());
+            assertTrue(env.isFailed());
+
+            UnitReport unit = env.getChildren().get("manager");
+            assertRatio(unit.getStatementCoverage(), 18, 44);
+            assertTrue(unit.isFailed());
+
+            SubprogramReport sub = unit.getChildren().get("Add_Included_Dessert");
+            assertRatio(sub.getStatementCoverage(), 4, 8);
+            assertSame(unit, sub.getParent());
+            assertFalse(sub.isFailed());
+
+            EnvironmentReport empty = s.getChildren().get("EmptyEnvironment");
+            assertFalse(empty.hasChildren());
+            EnvironmentReport orig = r.getChildren().get("EmptyEnvironment");
+            assertEquals(orig.getBranchCoverage().isInitialized(), empty.getBranchCoverage().isInitialized());
+            assertEquals(orig.getMCDCCoverage().isInitialized(), empty.getMCDCCoverage().isInitialized());
+        } finally {
+            f.delete();
+        }
+    }
+
+    public void testReadsFloatVersion() throws Exception {
+        File f = File.createTempFile("coverage", ".bin");
+        try {
+            // version 3: a root named "R" with statement coverage 3/4 as floats
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(f));
+            out.writeInt(0x56435253);
+            out.writeInt(3);
+            out.writeByte(0x08);
+            out.writeShort(1);
+            out.writeByte('R');
+            out.writeByte(0x01);
+            out.writeFloat(3);
+            out.writeFloat(4);
+            out.writeInt(0);
+            out.writeInt(1);
+            out.writeInt(8);
+            out.close();
+
+            CoverageReport s = CoverageReportSnapshot.read(null, f);
+            assertEquals("R", s.getName());
+            assertRatio(s.getStatementCoverage(), 3, 4);
+            assertFalse(s.getBranchCoverage().isInitialized());
+        } finally {
+            f.delete();
+        }
+    }
+
+    public void testRejectsUnknownVersion() throws Exception {
+        File f = File.createTempFile("coverage", ".bin");
+        try {
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(f));
+            out.writeInt(0x56435253);
+            out.writeInt(99);
+            out.writeInt(1);
+            out.writeInt(8);
+            out.close();
+            try {
+                CoverageReportSnapshot.read(null, f);
+                fail("expected IOException");
+            } catch (IOException e) {
+                // expected
+            }
+        } finally {
+            f.delete();
+        }
+    }
+
+    public void testVerifyRejectsCorruptSnapshots() throws Exception {
+        CoverageReport r = new CoverageReport(null, getClass().getResourceAsStream("coverage.xml"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CoverageReportSnapshot.write(r, out);
+        byte[] good = out.toByteArray();
+        CoverageReportSnapshot.verify(ByteBuffer.wrap(good));
+
+        byte[] bad = good.clone();
+        ByteBuffer.wrap(bad).putInt(bad.length - 8, r.getNodeCount() + 1);
+        assertRejected(bad);
+
+        bad = good.clone();
+        // the root's child table points past itself
+        ByteBuffer.wrap(bad).putInt(bad.length - 12, bad.length);
+        assertRejected(bad);
+
+        bad = Arrays.copyOfRange(good, 0, good.length / 2);
+        assertRejected(bad);
+    }
+
+    private static void assertRejected(byte[] bytes) {
+        try {
+            CoverageReportSnapshot.verify(ByteBuffer.wrap(bytes));
+            fail("corrupt snapshot accepted");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -1,5 +1,9 @@
 package com.vectorcast.plugins.vectorcastcoverage;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
 /**
  * @author Kohsuke Kawaguchi
  */
@@ -61,4 +65,61 @@ public class CoverageReportTest extends AbstractVectorCASTTestBase {
         assertTrue(env.hasChildren());
         assertFalse(env.hasChildrenStatementCoverage());
     }
+
+    public void testRejectsDoctype() throws Exception {
+        String xml = "<?xml version=\"1.0\"?>"
+                + "<!DOCTYPE report [<!ENTITY name \"ENV\">]>"
+                + "<report><version value=\"3\"/><environment name=\"&name;\"/></report>";
+        try {
+            new CoverageReport(null, new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+            fail("CoverageReport should have rejected the DOCTYPE declaration.");
+        } catch (IOException e) {
+            // OK, we are expecting this.
+        }
+    }
+
+    public void testSameEnvironmentInSeveralFilesIsSummed() throws Exception {
+        CoverageReport r = new CoverageReport(null,
+                                              getClass().getResourceAsStream("coverage.xml"),
+                                              getClass().getResourceAsStream("coverageh.xml"),
+                                              getClass().getResourceAsStream("coverage.xml"));
+
+        EnvironmentReport env = r.getChildren().get("VectorCAST_MinGW_C_TestSuite_ORDER");
+        assertRatio(env.getStatementCoverage(), 46, 110);
+        assertSame(r, env.getParent());
+
+        UnitReport unit = env.getChildren().get("manager");
+        assertRatio(unit.getStatementCoverage(), 36, 88);
+        assertSame(env, unit.getParent());
+
+        SubprogramReport sub = unit.getChildren().get("Add_Included_Dessert");
+        assertRatio(sub.getStatementCoverage(), 8, 16);
+
+        assertRatio(r.getChildren().get("AnotherEnv").getStatementCoverage(), 20, 40);
+    }
+
+    public void testFileOrderDoesNotMatter() throws Exception {
+        CoverageReport a = new CoverageReport(null,
+                                              getClass().getResourceAsStream("top-level.xml"),
+                                              getClass().getResourceAsStream("coverage.xml"),
+                                              getClass().getResourceAsStream("coverageh.xml"),
+                                              getClass().getResourceAsStream("coverage.xml"));
+        CoverageReport b = new CoverageReport(null,
+                                              getClass().getResourceAsStream("coverage.xml"),
+                                              getClass().getResourceAsStream("coverageh.xml"),
+                                              getClass().getResourceAsStream("coverage.xml"),
+                                              getClass().getResourceAsStream("top-level.xml"));
+
+        assertRatio(a.getStatementCoverage(), 45, 60);
+        assertRatio(b.getStatementCoverage(), 45, 60);
+        assertEquals(a.getChildren().keySet(), b.getChildren().keySet());
+        for (String name : a.getChildren().keySet()) {
+            EnvironmentReport x = a.getChildren().get(name);
+            EnvironmentReport y = b.getChildren().get(name);
+            assertEquals(x.getStatementCoverage(), y.getStatementCoverage());
+            assertEquals(x.getBranchCoverage(), y.getBranchCoverage());
+            assertEquals(x.getChildren().keySet(), y.getChildren().keySet());
+        }
+    }
+
 }
@@ -0,0 +1,206 @@
+package com.vectorcast.plugins.vectorcastcoverage;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+public class CoverageSeriesStoreTest extends AbstractVectorCASTTestBase {
+
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        dir = Files.createTempDirectory("series").toFile();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        new File(dir, CoverageSeriesStore.NODES_FILE).delete();
+        new File(dir, CoverageSeriesStore.SERIES_FILE).delete();
+        new File(dir, CoverageSeriesStore.STATE_FILE).delete();
+        dir.delete();
+        super.tearDown();
+    }
+
+    public void testRowsPerBuild() throws Exception {
+        CoverageReport first = new CoverageReport(null, getClass().getResourceAsStream("coverage.xml"));
+        CoverageReport second = new CoverageReport(null,
+                                                   getClass().getResourceAsStream("coverage.xml"),
+                                                   getClass().getResourceAsStream("coverageh.xml"));
+        CoverageSeriesStore.append(dir, 1, first);
+        CoverageSeriesStore.append(dir, 2, second);
+        // a build is only recorded once
+        CoverageSeriesStore.append(dir, 2, first);
+
+        Ratio[] sub = CoverageSeriesStore.read(dir, 1,
+                Arrays.asList("VectorCAST_MinGW_C_TestSuite_ORDER", "manager", "Add_Included_Dessert"));
+        assertRatio(sub[0], 4, 8);
+
+        Ratio[] env = CoverageSeriesStore.read(dir, 2, Arrays.asList("VectorCAST_MinGW_C_TestSuite_ORDER"));
+        assertRatio(env[0], 23, 55);
+
+        // only in the second build
+        assertNull(CoverageSeriesStore.read(dir, 1, Arrays.asList("AnotherEnv")));
+        assertRatio(CoverageSeriesStore.read(dir, 2, Arrays.asList("AnotherEnv"))[0], 20, 40);
+
+        assertNull(CoverageSeriesStore.read(dir, 3, Arrays.asList("AnotherEnv")));
+        assertNull(CoverageSeriesStore.read(dir, 1, Arrays.asList("NoSuchEnv")));
+    }
+
+    public void testOnlyChangedNodesAreWritten() throws Exception {
+        CoverageReport r = new CoverageReport(null, getClass().getResourceAsStream("coverage.xml"));
+        File series = new File(dir, CoverageSeriesStore.SERIES_FILE);
+        CoverageSeriesStore.append(dir, 1, r);
+        long full = series.length();
+        CoverageSeriesStore.append(dir, 2, r);
+        long same = series.length() - full;
+        // a segment without rows
+        assertEquals(16, same);
+
+        CoverageReport changed = new CoverageReport(null, getClass().getResourceAsStream("coverage.xml"));
+        changed.getChildren().remove("ENV2");
+        CoverageSeriesStore.append(dir, 3, changed);
+        CoverageSeriesStore.append(dir, 4, r);
+
+        List<String> env = Arrays.asList("VectorCAST_MinGW_C_TestSuite_ORDER");
+        assertRatio(CoverageSeriesStore.read(dir, 2, env)[0], 23, 55);
+        assertRatio(CoverageSeriesStore.read(dir, 3, env)[0], 23, 55);
+        assertNotNull(CoverageSeriesStore.read(dir, 2, Arrays.asList("ENV2")));
+        assertNull(CoverageSeriesStore.read(dir, 3, Arrays.asList("ENV2")));
+        assertNotNull(CoverageSeriesStore.read(dir, 4, Arrays.asList("ENV2")));
+
+        // rebuilt from the series
+        new File(dir, CoverageSeriesStore.STATE_FILE).delete();
+        long length = series.length();
+        CoverageSeriesStore.append(dir, 5, r);
+        assertEquals(length + 16, series.length());
+
+        // the rows of the dropped builds are carried into build 4
+        assertTrue(CoverageSeriesStore.prune(dir, new HashSet<Integer>(Arrays.asList(4, 5))));
+        assertNull(CoverageSeriesStore.read(dir, 3, env));
+        assertRatio(CoverageSeriesStore.read(dir, 4, env)[0], 23, 55);
+        assertNotNull(CoverageSeriesStore.read(dir, 4, Arrays.asList("ENV2")));
+        assertNotNull(CoverageSeriesStore.read(dir, 5, Arrays.asList("ENV2")));
+        length = series.length();
+        CoverageSeriesStore.append(dir, 6, r);
+        assertEquals(length + 16, series.length());
+    }
+
+    public void testLongNames() throws Exception {
+        CoverageReport r = new CoverageReport(null, getClass().getResourceAsStream("coverage.xml"));
+        StringBuilder name = new StringBuilder();
+        while (name.length() < 70000) {
+            name.append("long_environment_name_");
+        }
+        EnvironmentReport env = r.getChildren().get("ENV2");
+        r.getChildren().remove("ENV2");
+        env.setName(name.toString());
+        r.add(env);
+        CoverageSeriesStore.append(dir, 1, r);
+
+        assertNotNull(CoverageSeriesStore.read(dir, 1, Arrays.asList(name.toString())));
+    }
+
+    public void testMissingMetricsAreNull() throws Exception {
+        CoverageReport r = new CoverageReport(null, getClass().getResourceAsStream("coverage.xml"));
+        CoverageSeriesStore.append(dir, 5, r);
+
+        EnvironmentReport empty = r.getChildren().get("EmptyEnvironment");
+        Ratio[] ratios = CoverageSeriesStore.read(dir, 5, Arrays.asList("EmptyEnvironment"));
+        assertEquals(empty.getMCDCCoverage().isInitialized(), ratios[3] != null);
+        assertEquals(empty.getFunctionCallCoverage().isInitialized(), ratios[5] != null);
+    }
+
+    public void testPruneDropsDeletedBuilds() throws Exception {
+        CoverageReport r = new CoverageReport(null, getClass().getResourceAsStream("coverage.xml"));
+        for (int n = 1; n <= 4; n++) {
+            CoverageSeriesStore.append(dir, n, r);
+        }
+        File series = new File(dir, CoverageSeriesStore.SERIES_FILE);
+        long length = series.length();
+        List<String> env = Arrays.asList("VectorCAST_MinGW_C_TestSuite_ORDER");
+
+        // one stale build out of four is kept
+        assertFalse(CoverageSeriesStore.prune(dir, new HashSet<Integer>(Arrays.asList(2, 3, 4))));
+        assertEquals(length, series.length());
+
+        assertTrue(CoverageSeriesStore.prune(dir, new HashSet<Integer>(Arrays.asList(3, 4))));
+        assertTrue(series.length() < length);
+        assertNull(CoverageSeriesStore.read(dir, 1, env));
+        assertNull(CoverageSeriesStore.read(dir, 2, env));
+        assertRatio(CoverageSeriesStore.read(dir, 4, env)[0], 23, 55);
+
+        CoverageSeriesStore.append(dir, 5, r);
+        assertRatio(CoverageSeriesStore.read(dir, 5, env)[0], 23, 55);
+        assertRatio(CoverageSeriesStore.read(dir, 3, env)[0], 23, 55);
+    }
+
+    public void testFloatVersionIsConverted() throws Exception {
+        DataOutputStream nodes = new DataOutputStream(new FileOutputStream(new File(dir, CoverageSeriesStore.PATHS_FILE)));
+        nodes.writeUTF("OldEnv");
+        nodes.close();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(new File(dir, CoverageSeriesStore.SERIES_FILE)));
+        out.writeInt(0x56435353);
+        out.writeInt(1);
+        out.writeInt(1);
+        out.writeInt(1);
+        out.writeInt(0);
+        out.writeByte(1);
+        out.writeFloat(23);
+        out.writeFloat(55);
+        for (int i = 2; i < 14; i++) {
+            out.writeFloat(0);
+        }
+        // a segment cut short
+        out.writeInt(2);
+        out.writeInt(1);
+        out.close();
+
+        assertRatio(CoverageSeriesStore.read(dir, 1, Arrays.asList("OldEnv"))[0], 23, 55);
+        assertNull(CoverageSeriesStore.read(dir, 2, Arrays.asList("OldEnv")));
+
+        CoverageSeriesStore.append(dir, 2, new CoverageReport(null, getClass().getResourceAsStream("coverage.xml")));
+        assertRatio(CoverageSeriesStore.read(dir, 2, Arrays.asList("VectorCAST_MinGW_C_TestSuite_ORDER"))[0], 23, 55);
+        assertRatio(CoverageSeriesStore.read(dir, 1, Arrays.asList("OldEnv"))[0], 23, 55);
+        assertNull(CoverageSeriesStore.read(dir, 2, Arrays.asList("OldEnv")));
+        assertFalse(new File(dir, CoverageSeriesStore.PATHS_FILE).exists());
+    }
+
+    public void testDenseVersionIsConverted() throws Exception {
+        DataOutputStream nodes = new DataOutputStream(new FileOutputStream(new File(dir, CoverageSeriesStore.PATHS_FILE)));
+        nodes.writeUTF("OldEnv");
+        nodes.writeUTF("OldEnv\u0000unit");
+        nodes.close();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(new File(dir, CoverageSeriesStore.SERIES_FILE)));
+        out.writeInt(0x56435353);
+        out.writeInt(2);
+        for (int n = 1; n <= 2; n++) {
+            out.writeInt(n);
+            out.writeInt(2);
+            out.writeInt(0);
+            out.writeInt(1);
+            for (int row = 0; row < 2; row++) {
+                out.writeByte(1);
+                out.writeLong(row == 0 ? 23 : n);
+                out.writeLong(55);
+                for (int i = 2; i < 14; i++) {
+                    out.writeLong(0);
+                }
+            }
+        }
+        out.close();
+
+        assertRatio(CoverageSeriesStore.read(dir, 1, Arrays.asList("OldEnv", "unit"))[0], 1, 55);
+        assertRatio(CoverageSeriesStore.read(dir, 2, Arrays.asList("OldEnv", "unit"))[0], 2, 55);
+        assertRatio(CoverageSeriesStore.read(dir, 2, Arrays.asList("OldEnv"))[0], 23, 55);
+
+        CoverageSeriesStore.append(dir, 3, new CoverageReport(null, getClass().getResourceAsStream("coverage.xml")));
+        assertNull(CoverageSeriesStore.read(dir, 3, Arrays.asList("OldEnv")));
+        assertRatio(CoverageSeriesStore.read(dir, 2, Arrays.asList("OldEnv", "unit"))[0], 2, 55);
+    }
+}
@@ -0,0 +1,63 @@
+package com.vectorcast.plugins.vectorcastcoverage;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+public class NameDictionaryTest extends AbstractVectorCASTTestBase {
+
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        dir = Files.createTempDirectory("names").toFile();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+        super.tearDown();
+    }
+
+    public void testIdsAreStable() throws Exception {
+        NameDictionary d = NameDictionary.of(dir);
+        assertSame(d, NameDictionary.of(dir));
+        int a = d.idOf("manager");
+        int b = d.idOf("Add_Included_Dessert");
+        assertEquals(a, d.idOf("manager"));
+        assertFalse(a == b);
+        d.save();
+
+        // a partial record left by a crash is dropped by the next save
+        RandomAccessFile f = new RandomAccessFile(new File(dir, NameDictionary.FILE_NAME), "rw");
+        try {
+            f.seek(f.length());
+            f.writeShort(20);
+            f.write('x');
+        } finally {
+            f.close();
+        }
+        int c = d.idOf("database");
+        d.save();
+
+        NameDictionary reread = new NameDictionary(new File(dir, NameDictionary.FILE_NAME));
+        assertEquals(3, reread.size());
+        assertEquals(a, reread.idOf("manager"));
+        assertEquals(b, reread.idOf("Add_Included_Dessert"));
+        assertEquals("database", reread.nameOf(c));
+    }
+
+    public void testColumnsShareNames() throws Exception {
+        NameDictionary d = NameDictionary.of(dir);
+        CoverageColumns first = new CoverageColumns(new CoverageReport(null, getClass().getResourceAsStream("coverage.xml")), d);
+        int size = d.size();
+        CoverageColumns second = new CoverageColumns(new CoverageReport(null, getClass().getResourceAsStream("coverage.xml")), d);
+        assertEquals(size, d.size());
+        assertTrue(second.getBytes() < new CoverageColumns(first.view(null)).getBytes());
+        assertSame(first.view(null).getChildren().keySet().iterator().next(), second.view(null).getChildren().keySet().iterator().next());
+    }
+}
@@ -0,0 +1,89 @@
+package com.vectorcast.plugins.vectorcastcoverage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH comparison of the in-place {@link Ratio} scanner against the
+ * substring based parser it replaced.
+ *
+ * <p>
+ * Not a unit test; run it from the IDE or with
+ * <code>java -cp target/test-classes:&lt;test classpath&gt; com.vectorcast.plugins.vectorcastcoverage.RatioParseBenchmark</code>
+ * and add <code>-prof gc</code> to the options to compare allocation rates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RatioParseBenchmark {
+
+    private final String[] values = {
+        "42% (23 / 55)", "26% (13 / 50)", "33% (1 /3)", "0% (17 / 0)", "56% (1234 / 2204)", "65% (1,3/2)"
+    };
+
+    private final Ratio target = new Ratio();
+
+    @Benchmark
+    public void legacyParseValue(Blackhole bh) throws IOException {
+        for (String v : values) {
+            bh.consume(legacyParse(v));
+        }
+    }
+
+    @Benchmark
+    public void parseValue(Blackhole bh) throws IOException {
+        for (String v : values) {
+            bh.consume(Ratio.parseValue(v));
+        }
+    }
+
+    @Benchmark
+    public Ratio addValue() {
+        for (String v : values) {
+            target.addValue(v);
+        }
+        return target;
+    }
+
+    /**
+     * Copy of the parser used by Ratio.parseValue before the scanner.
+     */
+    private static float[] legacyParse(String v) {
+        int idx = v.indexOf('(');
+        v = v.substring(idx+1,v.length()-1);
+        idx = v.indexOf('/');
+        return new float[]{ legacyParseFloat(v.substring(0,idx)), legacyParseFloat(v.substring(idx+1)) };
+    }
+
+    private static float legacyParseFloat(String v) {
+        int idx = v.indexOf(',');
+        if (idx >= 0) {
+            v = v.substring(0, idx) + "." + v.substring(idx+1);
+        }
+        return Float.parseFloat(v);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .include(RatioParseBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
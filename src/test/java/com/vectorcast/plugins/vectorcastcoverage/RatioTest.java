@@ -6,19 +6,22 @@ package com.vectorcast.plugins.vectorcastcoverage;
 public class RatioTest extends AbstractVectorCASTTestBase {
 
     /**
-     * Tests that {@link Ratio#parseValue(String)} parses correctly float
-     * numbers with either dot or comma as decimal point.
+     * Tests that {@link Ratio#parseValue(String)} parses correctly numbers
+     * with either dot or comma as decimal point, rounding a fraction to the
+     * nearest count.
      *
      * @throws Exception
      */
     public void testParseValue() throws Exception {
-        assertRatio(Ratio.parseValue("X% (1/2)"), 1.0f, 2.0f);
-        assertRatio(Ratio.parseValue("X% (1,3/2)"), 1.3f, 2.0f);
-        assertRatio(Ratio.parseValue("X% (1.3/2)"), 1.3f, 2.0f);
-        assertRatio(Ratio.parseValue("X% (,3/2)"), 0.3f, 2.0f);
-        assertRatio(Ratio.parseValue("X% (.3/2)"), 0.3f, 2.0f);
-        assertRatio(Ratio.parseValue("X% (1./2)"), 1.0f, 2.0f);
-        assertRatio(Ratio.parseValue("X% (1,/2)"), 1.0f, 2.0f);
+        assertRatio(Ratio.parseValue("X% (1/2)"), 1, 2);
+        assertRatio(Ratio.parseValue("X% (1,3/2)"), 1, 2);
+        assertRatio(Ratio.parseValue("X% (1.3/2)"), 1, 2);
+        assertRatio(Ratio.parseValue("X% (,3/2)"), 0, 2);
+        assertRatio(Ratio.parseValue("X% (.3/2)"), 0, 2);
+        assertRatio(Ratio.parseValue("X% (1./2)"), 1, 2);
+        assertRatio(Ratio.parseValue("X% (1,/2)"), 1, 2);
+        assertRatio(Ratio.parseValue("X% (1,5/2,5)"), 2, 3);
+        assertRatio(Ratio.parseValue("X% (.7/2)"), 1, 2);
         try {
             Ratio.parseValue("X% (1.a/2)");
             fail("Ratio.parseValue() should have raised NumberFormatException.");
@@ -26,8 +29,70 @@ public class RatioTest extends AbstractVectorCASTTestBase {
             // OK, we are expecting this.
         }
         Ratio r = Ratio.parseValue("X% (1,3/2)");
-        assertRatio(r, 1.3f, 2.0f);
+        assertRatio(r, 1, 2);
         r.addValue("X% (1,3/2)");
-        assertRatio(r, 2.6f, 4.0f);
+        assertRatio(r, 2, 4);
     }
-}
\ No newline at end of file
+
+    /**
+     * Tests that the deprecated float API still works, rounding a fraction.
+     */
+    @SuppressWarnings("deprecation")
+    public void testFloatApi() throws Exception {
+        Ratio r = new Ratio(45f, 60f);
+        assertRatio(r, 45, 60);
+        assertEquals(45f, r.getNumerator());
+        assertEquals(60f, r.getDenominator());
+        assertEquals(new Ratio(45, 60), r);
+        assertRatio(new Ratio(1.3f, 2f), 1, 2);
+    }
+
+    /**
+     * Tests that counts past the 24 bits of a float stay exact whatever
+     * order they are added in.
+     */
+    public void testLargeCountsAreExact() throws Exception {
+        Ratio a = Ratio.parseValue("50% (16777217 / 33554434)");
+        assertRatio(a, 16777217L, 33554434L);
+        a.addValue("0% (1 / 1)");
+        assertRatio(a, 16777218L, 33554435L);
+
+        Ratio b = Ratio.parseValue("0% (1 / 1)");
+        b.addValue("50% (16777217 / 33554434)");
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+
+        Ratio big = new Ratio(3000000000000L, 4000000000000L);
+        assertEquals(75, big.getPercentage());
+        assertEquals("3000000000000/4000000000000", big.toString());
+    }
+
+    /**
+     * Tests that the in-place scanner handles the spacing used by
+     * VectorCAST around the "/" and keeps accumulating in place.
+     *
+     * @throws Exception
+     */
+    public void testScanValue() throws Exception {
+        assertRatio(Ratio.parseValue("42% (23 / 55)"), 23, 55);
+        assertRatio(Ratio.parseValue("33% (1 /3)"), 1, 3);
+        assertRatio(Ratio.parseValue("0% (17 / 0)"), 17, 0);
+        assertRatio(Ratio.parseValue("X% ( 2,0 / 10 )"), 2, 10);
+        assertRatio(Ratio.parseValue("X% ( 2,5 / 10 )"), 3, 10);
+        assertRatio(Ratio.parseValue("X% (1e1/2)"), 10, 2);
+        try {
+            Ratio.parseValue("X% (1/)");
+            fail("Ratio.parseValue() should have raised NumberFormatException.");
+        } catch (NumberFormatException e) {
+            // OK, we are expecting this.
+        }
+        Ratio r = new Ratio();
+        assertFalse(r.isInitialized());
+        r.addValue("42% (23 / 55)");
+        r.addValue("50% (20 / 40)");
+        assertTrue(r.isInitialized());
+        assertRatio(r, 43, 95);
+        r.setValue("75% (45 / 60)");
+        assertRatio(r, 45, 60);
+    }
+}
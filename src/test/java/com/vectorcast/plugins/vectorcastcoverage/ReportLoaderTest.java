@@ -0,0 +1,100 @@
+package com.vectorcast.plugins.vectorcastcoverage;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ReportLoaderTest extends AbstractVectorCASTTestBase {
+
+    public void testConcurrentRequestsShareOneLoad() throws Exception {
+        final File folder = new File("shared/vectorcastcoverage");
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger loads = new AtomicInteger();
+        final Callable<CoverageReport> loader = new Callable<CoverageReport>() {
+            public CoverageReport call() throws Exception {
+                loads.incrementAndGet();
+                release.await();
+                return new CoverageReport(null, getClass().getResourceAsStream("coverage.xml"));
+            }
+        };
+
+        final AtomicReference<CoverageReport>[] results = new AtomicReference[4];
+        Thread[] threads = new Thread[results.length];
+        for (int i = 0; i < threads.length; i++) {
+            final AtomicReference<CoverageReport> result = results[i] = new AtomicReference<CoverageReport>();
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        result.set(ReportLoader.load(folder, loader));
+                    } catch (Exception e) {
+                        // left null
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        Thread.sleep(200);
+        release.countDown();
+        for (Thread t : threads) {
+            t.join(10000);
+        }
+
+        assertEquals(1, loads.get());
+        assertNotNull(results[0].get());
+        for (AtomicReference<CoverageReport> r : results) {
+            assertSame(results[0].get(), r.get());
+        }
+        assertEquals(0, ReportLoader.getInFlightCount());
+    }
+
+    public void testQueuedLoadIsDroppedWhenNobodyWaits() throws Exception {
+        // keep the loader threads busy
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch busy = new CountDownLatch(2);
+        Callable<CoverageReport> blocker = new Callable<CoverageReport>() {
+            public CoverageReport call() throws Exception {
+                busy.countDown();
+                release.await();
+                return null;
+            }
+        };
+        Thread[] blockers = { loadIn("busy1", blocker), loadIn("busy2", blocker) };
+        assertTrue(busy.await(10, TimeUnit.SECONDS));
+
+        final AtomicInteger loads = new AtomicInteger();
+        Thread waiter = loadIn("queued", new Callable<CoverageReport>() {
+            public CoverageReport call() {
+                loads.incrementAndGet();
+                return null;
+            }
+        });
+        Thread.sleep(200);
+        waiter.interrupt();
+        waiter.join(10000);
+
+        release.countDown();
+        for (Thread t : blockers) {
+            t.join(10000);
+        }
+        Thread.sleep(200);
+        assertEquals(0, loads.get());
+        assertEquals(0, ReportLoader.getInFlightCount());
+    }
+
+    private static Thread loadIn(final String name, final Callable<CoverageReport> loader) {
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    ReportLoader.load(new File(name), loader);
+                } catch (Exception e) {
+                    // interrupted
+                }
+            }
+        };
+        t.start();
+        return t;
+    }
+}
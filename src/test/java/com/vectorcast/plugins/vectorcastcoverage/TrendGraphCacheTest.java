@@ -0,0 +1,28 @@
+package com.vectorcast.plugins.vectorcastcoverage;
+
+public class TrendGraphCacheTest extends AbstractVectorCASTTestBase {
+
+    public void testInvalidateDropsOnlyTheJob() {
+        TrendGraphCache.put("folder/job\u00003\u00003\u0000VectorCASTBuildAction\u0000500x200", new byte[] {1}, "image/png");
+        TrendGraphCache.put("folder/job2\u00003\u00003\u0000VectorCASTBuildAction\u0000500x200", new byte[] {2}, "image/png");
+
+        TrendGraphCache.invalidate("folder/job");
+
+        assertNull(TrendGraphCache.get("folder/job\u00003\u00003\u0000VectorCASTBuildAction\u0000500x200"));
+        assertNotNull(TrendGraphCache.get("folder/job2\u00003\u00003\u0000VectorCASTBuildAction\u0000500x200"));
+    }
+
+    public void testETag() {
+        TrendGraphCache.Rendered image = TrendGraphCache.put("job\u00001", new byte[] {1, 2, 3}, "image/png");
+        String etag = image.getETag();
+
+        assertEquals(etag, TrendGraphCache.put("other\u00001", new byte[] {1, 2, 3}, "image/png").getETag());
+        assertFalse(etag.equals(TrendGraphCache.put("other\u00002", new byte[] {1, 2, 4}, "image/png").getETag()));
+
+        assertTrue(image.matches(etag));
+        assertTrue(image.matches("\"x\", W/" + etag));
+        assertTrue(image.matches("*"));
+        assertFalse(image.matches("\"x\""));
+        assertFalse(image.matches(null));
+    }
+}
@@ -1,5 +1,15 @@
 package com.vectorcast.plugins.vectorcastcoverage;
 
+import com.vectorcast.plugins.vectorcastcoverage.rules.StatementCoveragePerSourceFileRule;
+import hudson.util.NullStream;
+import hudson.util.StreamTaskListener;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
 /**
  * @author Kohsuke Kawaguchi
  */
@@ -63,4 +73,35 @@ public class VectorCASTBuildActionTest extends AbstractVectorCASTTestBase {
       assertEquals("Coverage: Statement 43/95 (45%). Branch 17/66 (26%). MC/DC 2/17 (12%).   ",
                    r.getBuildHealth().getDescription());
   }
+
+    public void testLoadRejectsUnsupportedVersion() throws Exception {
+      InputStream in = new ByteArrayInputStream(("<report><version value=\"2\"/>"
+              + "<combined-coverage type=\"statement, %\" value=\"75% (45 / 60)\"/></report>").getBytes(StandardCharsets.UTF_8));
+      try {
+          VectorCASTBuildAction.load(null,null,
+                  new VectorCASTHealthReportThresholds(30, 90, 25, 80, 20, 70, 15, 60, 20, 70, 80, 90),
+                  in);
+          fail("VectorCASTBuildAction.load() should have rejected version 2.");
+      } catch (IOException e) {
+          // OK, we are expecting this.
+      }
+    }
+
+    public void testFailedNodesMarkTheSameNodes() throws Exception {
+      CoverageReport enforced = new CoverageReport(null, getClass().getResourceAsStream("coverage.xml"));
+      new StatementCoveragePerSourceFileRule(60).enforce(enforced, new StreamTaskListener(new NullStream()));
+      int[] ids = FailedNodes.collect(enforced);
+      assertTrue(ids.length > 0);
+      assertEquals(0, ids[0]);
+
+      CoverageReport reloaded = new CoverageReport(null, getClass().getResourceAsStream("coverage.xml"));
+      assertFalse(reloaded.isFailed());
+      FailedNodes.apply(reloaded, ids);
+      assertTrue(Arrays.equals(ids, FailedNodes.collect(reloaded)));
+      for (EnvironmentReport env : enforced.getChildren().values()) {
+          for (UnitReport unit : env.getChildren().values()) {
+              assertEquals(unit.isFailed(), reloaded.getChildren().get(env.getName()).getChildren().get(unit.getName()).isFailed());
+          }
+      }
+    }
 }
@@ -1,12 +1,18 @@
 package com.vectorcast.plugins.vectorcastcoverage;
 
 import com.vectorcast.plugins.vectorcastcoverage.VectorCASTPublisher;
+import com.vectorcast.plugins.vectorcastcoverage.rules.MetricRule;
+import com.vectorcast.plugins.vectorcastcoverage.rules.RuleSet;
 import hudson.FilePath;
+import hudson.util.NullStream;
+import hudson.util.StreamTaskListener;
 
 import junit.framework.Assert;
 
 import java.io.File;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
+import java.util.Arrays;
 
 /**
  * 
@@ -62,4 +68,43 @@ public class VectorCASTPublisherTest extends AbstractVectorCASTTestBase {
 
 	}
 
+	public void testParseOnAgent() throws Exception {
+		File w = Files.createTempDirectory("workspace" + ".test").toFile();
+		FilePath workspace = new FilePath(w);
+		try {
+			workspace.child("coverage.xml").copyFrom(getClass().getResource("coverage.xml"));
+
+			RemoteCoverageParser.Result result = new RemoteCoverageParser("coverage.xml").invoke(w, null);
+			Assert.assertEquals(1, result.getPaths().length);
+			Assert.assertNull(result.getError());
+
+			CoverageReport r = CoverageReportSnapshot.read(null, ByteBuffer.wrap(result.getSnapshot()));
+			EnvironmentReport env = r.getChildren().get("VectorCAST_MinGW_C_TestSuite_ORDER");
+			assertRatio(env.getStatementCoverage(), 23, 55);
+			Assert.assertNotNull(result.getRatios()[0]);
+
+			// a broken report is returned as an error, not thrown
+			workspace.child("coverage.xml").write("<report>", "UTF-8");
+			result = new RemoteCoverageParser("coverage.xml").invoke(w, null);
+			Assert.assertNull(result.getSnapshot());
+			Assert.assertNotNull(result.getError());
+		} finally {
+			workspace.deleteRecursive();
+		}
+	}
+
+	public void testMetricRulesAreEnforcedAsARuleSet() throws Exception {
+		VectorCASTPublisher pub = new VectorCASTPublisher();
+		Assert.assertNull(pub.getEffectiveRule());
+
+		pub.setMetricRules(Arrays.asList(new MetricRule(MetricRule.Level.UNIT, "statement", 60)));
+		Rule rule = pub.getEffectiveRule();
+		Assert.assertTrue(rule instanceof RuleSet);
+		Assert.assertEquals(1, ((RuleSet) rule).getRules().size());
+
+		CoverageReport r = new CoverageReport(null, getClass().getResourceAsStream("coverage.xml"));
+		rule.enforce(r, new StreamTaskListener(new NullStream()));
+		Assert.assertTrue(r.isFailed());
+	}
+
 }
@@ -0,0 +1,80 @@
+package com.vectorcast.plugins.vectorcastcoverage.rules;
+
+import com.vectorcast.plugins.vectorcastcoverage.CoverageReport;
+import com.vectorcast.plugins.vectorcastcoverage.EnvironmentReport;
+import com.vectorcast.plugins.vectorcastcoverage.UnitReport;
+import hudson.util.StreamTaskListener;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class RuleSetTest extends TestCase {
+
+    private CoverageReport load() throws Exception {
+        return new CoverageReport(null, getClass().getResourceAsStream("/com/vectorcast/plugins/vectorcastcoverage/coverage.xml"));
+    }
+
+    public void testStrictestRuleOfALevelApplies() throws Exception {
+        CoverageReport r = load();
+        RuleSet rules = new RuleSet(Arrays.asList(
+                new MetricRule(MetricRule.Level.UNIT, "statement", 10),
+                new MetricRule(MetricRule.Level.UNIT, "statement", 42),
+                new MetricRule(MetricRule.Level.UNIT, "branch", 0)));
+        RuleSet.Violations v = rules.check(r);
+
+        EnvironmentReport order = r.getChildren().get("VectorCAST_MinGW_C_TestSuite_ORDER");
+        UnitReport manager = order.getChildren().get("manager");
+        assertTrue(manager.isFailed());
+        assertFalse(order.getChildren().get("manager2").isFailed());
+        assertTrue(r.getChildren().get("ENV2").getChildren().get("manager3").isFailed());
+        // failures propagate to the parents
+        assertTrue(order.isFailed());
+        assertTrue(r.isFailed());
+        // subprograms are not checked by unit rules
+        assertFalse(manager.getChildren().get("Add_Tax_Tip").isFailed());
+        assertEquals(2, v.count);
+    }
+
+    public void testComplexityLimitedRule() throws Exception {
+        CoverageReport r = load();
+        new RuleSet(Arrays.asList(
+                new MetricRule(MetricRule.Level.SUBPROGRAM, "statement", 50),
+                new MetricRule(MetricRule.Level.SUBPROGRAM, "statement", 60, 5))).check(r);
+
+        UnitReport manager = r.getChildren().get("VectorCAST_MinGW_C_TestSuite_ORDER").getChildren().get("manager");
+        // complexity 4: 0% is below 50%
+        assertTrue(manager.getChildren().get("Add_Tax_Tip").isFailed());
+        // complexity 3: 50% meets 50%
+        assertFalse(manager.getChildren().get("Add_Included_Dessert").isFailed());
+        // complexity 6: 56% is below 60%
+        assertTrue(manager.getChildren().get("Place_Order").isFailed());
+    }
+
+    public void testViolationsAreBounded() throws Exception {
+        RuleSet.Violations v = new RuleSet(Arrays.asList(
+                new MetricRule(MetricRule.Level.SUBPROGRAM, "statement", 100),
+                new MetricRule(MetricRule.Level.UNIT, "statement", 100)), 2).check(load());
+        assertEquals(2, v.messages.size());
+        assertTrue(v.count > 2);
+        // tree order: children are sorted by name, ENV2 comes first
+        assertTrue(v.messages.get(0), v.messages.get(0).startsWith("manager3 "));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new RuleSet(Arrays.asList(
+                new MetricRule(MetricRule.Level.SUBPROGRAM, "statement", 100)), 2).enforce(load(), new StreamTaskListener(out));
+        String log = out.toString();
+        assertTrue(log, log.startsWith("[VectorCASTCoverage] [FAIL]: Add_Tax_Tip failed"));
+        assertTrue(log, log.contains("[VectorCASTCoverage] [FAIL]: ... and "));
+    }
+
+    public void testUnknownMetric() {
+        try {
+            new MetricRule(MetricRule.Level.UNIT, "lines", 50);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
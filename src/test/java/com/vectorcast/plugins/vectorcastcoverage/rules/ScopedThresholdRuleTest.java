@@ -0,0 +1,97 @@
+package com.vectorcast.plugins.vectorcastcoverage.rules;
+
+import com.vectorcast.plugins.vectorcastcoverage.CoverageReport;
+import com.vectorcast.plugins.vectorcastcoverage.UnitReport;
+import com.vectorcast.plugins.vectorcastcoverage.VectorCASTHealthReportThresholds;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class ScopedThresholdRuleTest extends TestCase {
+
+    private static final String ORDER = "VectorCAST_MinGW_C_TestSuite_ORDER";
+
+    private CoverageReport load() throws Exception {
+        return new CoverageReport(null, getClass().getResourceAsStream("/com/vectorcast/plugins/vectorcastcoverage/coverage.xml"));
+    }
+
+    private static ScopedThreshold statement(String pattern, int min) {
+        return new ScopedThreshold(pattern, new VectorCASTHealthReportThresholds(min, 100, 0, 100, 0, 100, 0, 100, 0, 100, 0, 100));
+    }
+
+    private static int match(PathAutomaton a, String path) {
+        return a.matchOf(a.step(a.start(), path));
+    }
+
+    public void testGlobs() {
+        PathAutomaton a = new PathAutomaton(Arrays.asList("safety/*", "legacy/**", "*/util?", "**/main", "a\\*b"));
+        assertEquals(0, match(a, "safety/brakes"));
+        assertEquals(-1, match(a, "safety"));
+        assertEquals(-1, match(a, "safety/brakes/check"));
+        assertEquals(1, match(a, "legacy/io/read"));
+        assertEquals(1, match(a, "legacy/"));
+        assertEquals(2, match(a, "env/utils"));
+        assertEquals(-1, match(a, "env/util"));
+        assertEquals(3, match(a, "env/unit/main"));
+        assertEquals(-1, match(a, "env/unit/mains"));
+        assertEquals(4, match(a, "a*b"));
+        assertEquals(-1, match(a, "axb"));
+        // "**" can still match anything
+        assertFalse(a.isDead(a.step(a.start(), "x/y/z")));
+
+        PathAutomaton b = new PathAutomaton(Arrays.asList("safety/*"));
+        assertTrue(b.isDead(b.step(b.start(), "legacy")));
+        assertTrue(b.isDead(b.step(b.start(), "safety/brakes/")));
+        assertFalse(b.isDead(b.step(b.start(), "safety/")));
+    }
+
+    public void testFirstMatchWins() {
+        PathAutomaton a = new PathAutomaton(Arrays.asList("safety/brakes", "safety/*", "**"));
+        assertEquals(0, match(a, "safety/brakes"));
+        assertEquals(1, match(a, "safety/doors"));
+        assertEquals(2, match(a, "safety"));
+    }
+
+    public void testNodesGetTheThresholdsOfTheirScope() throws Exception {
+        CoverageReport r = load();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int failures = new ScopedThresholdRule(Arrays.asList(
+                statement(ORDER + "/manager", 42),
+                statement("ENV2/*", 0),
+                statement(ORDER + "/*/Place_Order", 60))).check(r, new PrintStream(out, true));
+
+        UnitReport manager = r.getChildren().get(ORDER).getChildren().get("manager");
+        assertTrue(manager.isFailed());
+        assertFalse(r.getChildren().get(ORDER).getChildren().get("manager2").isFailed());
+        assertFalse(r.getChildren().get("ENV2").isFailed());
+        assertTrue(manager.getChildren().get("Place_Order").isFailed());
+        assertFalse(manager.getChildren().get("Add_Tax_Tip").isFailed());
+        assertTrue(r.isFailed());
+        assertEquals(2, failures);
+        assertTrue(out.toString(), out.toString().contains(ORDER + "/manager/Place_Order: statement coverage"));
+    }
+
+    public void testScopeWithoutThresholdsNeverFails() throws Exception {
+        CoverageReport r = load();
+        int failures = new ScopedThresholdRule(Arrays.asList(new ScopedThreshold("**", null)))
+                .check(r, new PrintStream(new ByteArrayOutputStream(), true));
+        assertEquals(0, failures);
+        assertFalse(r.isFailed());
+    }
+
+    public void testTooComplexPatternsAreRejected() throws Exception {
+        // the automaton has to remember which of the last 15 characters were an "a"
+        ScopedThresholdRule rule = new ScopedThresholdRule(Arrays.asList(statement("**a??????????????", 50)));
+        try {
+            rule.compile();
+            fail("compile() should have rejected the patterns.");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Patterns too complex"));
+        }
+        ScopedThresholdRule simple = new ScopedThresholdRule(Arrays.asList(statement("safety/*", 50)));
+        assertSame(simple, simple.compile());
+    }
+}